@@ -0,0 +1,22 @@
+package com.config;
+
+import com.service.ExecutionLanes;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+    private final ExecutionLanes executionLanes;
+
+    public WebConfig(ExecutionLanes executionLanes) {
+        this.executionLanes = executionLanes;
+    }
+
+    // Потоковые экспорты и предпросмотр выполняются в интерактивной полосе
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(executionLanes.getInteractiveExecutor());
+    }
+}
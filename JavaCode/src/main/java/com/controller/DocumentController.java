@@ -2,22 +2,29 @@ package com.controller;
 
 import com.dto.*;
 import com.model.Document;
-import com.model.InMemoryMultipartFile;
 import com.model.Template;
 import com.model.User;
 import com.service.*;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
 import org.springframework.http.*;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/documents")
@@ -25,22 +32,54 @@ import java.util.Optional;
 @PreAuthorize("hasRole('USER')") // ✅ ВЕСЬ КОНТРОЛЛЕР ТОЛЬКО ДЛЯ USER
 public class DocumentController {
 
+    private static final int MAX_PROGRESS_PAGE = 1000;
+
     private final DocumentService documentService;
     private final TemplateService templateService;
     private final UserService userService;
     private final FileProcessingService fileProcessingService;
     private final BatchDocumentService batchDocumentService;
+    private final PdfConversionService pdfConversionService;
+    private final GenerationScheduler generationScheduler;
+    private final PreviewService previewService;
+    private final PreviewSessionService previewSessionService;
+    private final SpreadsheetService spreadsheetService;
+    private final TempStorageJanitor tempStorageJanitor;
+    private final BatchProgressStreamService batchProgressStreamService;
+    private final BatchValidationService batchValidationService;
+    private final OutputBufferService outputBufferService;
+    private final ExecutionLanes executionLanes;
 
     public DocumentController(DocumentService documentService,
                               TemplateService templateService,
                               UserService userService,
                               FileProcessingService fileProcessingService,
-                              BatchDocumentService batchDocumentService) {
+                              BatchDocumentService batchDocumentService,
+                              PdfConversionService pdfConversionService,
+                              GenerationScheduler generationScheduler,
+                              PreviewService previewService,
+                              PreviewSessionService previewSessionService,
+                              SpreadsheetService spreadsheetService,
+                              TempStorageJanitor tempStorageJanitor,
+                              BatchProgressStreamService batchProgressStreamService,
+                              BatchValidationService batchValidationService,
+                              OutputBufferService outputBufferService,
+                              ExecutionLanes executionLanes) {
         this.documentService = documentService;
         this.templateService = templateService;
         this.userService = userService;
         this.fileProcessingService = fileProcessingService;
         this.batchDocumentService = batchDocumentService;
+        this.pdfConversionService = pdfConversionService;
+        this.generationScheduler = generationScheduler;
+        this.previewService = previewService;
+        this.previewSessionService = previewSessionService;
+        this.spreadsheetService = spreadsheetService;
+        this.tempStorageJanitor = tempStorageJanitor;
+        this.batchProgressStreamService = batchProgressStreamService;
+        this.batchValidationService = batchValidationService;
+        this.outputBufferService = outputBufferService;
+        this.executionLanes = executionLanes;
     }
 
     private User getCurrentUser(Authentication authentication) {
@@ -68,7 +107,7 @@ public class DocumentController {
 
         String name = (String) requestBody.get("name");
         Long templateId = Long.valueOf(requestBody.get("templateId").toString());
-        Map<String, String> data = (Map<String, String>) requestBody.get("data");
+        Map<String, String> data = TemplateDataDeserializer.fromObject(requestBody.get("data"));
 
         Template template = templateService.getTemplateById(templateId)
                 .orElseThrow(() -> new RuntimeException("Template not found"));
@@ -84,39 +123,114 @@ public class DocumentController {
             Authentication authentication,
             @RequestBody BatchGenerationRequest batchRequest) {
 
+        // Пробный прогон не рендерит документы и не занимает слот генерации
+        if (batchRequest.isDryRun()) {
+            return ResponseEntity.ok(batchValidationService.validate(batchRequest));
+        }
+
         User user = getCurrentUser(authentication);
 
-        BatchGenerationResult result =
-                batchDocumentService.generateBatch(batchRequest, user);
+        // Слот генерации берёт сам сервис, и только для синхронного запуска
+        BatchGenerationResult result = batchDocumentService.generateBatch(batchRequest, user);
 
         return ResponseEntity.ok(result);
     }
 
     // ✅ Скачать ZIP
+    // Архив может занимать гигабайты: файл отдаётся с диска на потоке запроса (с поддержкой Range),
+    // не занимая интерактивную полосу и без ограничения времени асинхронного запроса.
+    // Файл остаётся до истечения срока итога пакета — его удаляет очистка temp
     @GetMapping("/batch/download/{batchId}")
-    public ResponseEntity<byte[]> downloadBatch(@PathVariable String batchId) throws Exception {
+    public ResponseEntity<Resource> downloadBatch(@PathVariable String batchId) {
 
         Path zipPath = Paths.get("temp", batchId + ".zip");
 
-        if (!Files.exists(zipPath)) {
-            return ResponseEntity.notFound().build();
+        if (!Files.isRegularFile(zipPath)) {
+            return batchOutputMissing(batchId);
         }
 
-        byte[] zipContent = Files.readAllBytes(zipPath);
-        Files.deleteIfExists(zipPath);
-
         return ResponseEntity.ok()
                 .contentType(MediaType.APPLICATION_OCTET_STREAM)
                 .header(HttpHeaders.CONTENT_DISPOSITION,
                         "attachment; filename=\"" + batchId + ".zip\"")
-                .body(zipContent);
+                .body(new FileSystemResource(zipPath));
+    }
+
+    // ✅ Скачать документы пакета, собранные в один файл (PDF или DOCX); отдаётся так же, как ZIP
+    @GetMapping("/batch/download/{batchId}/merged")
+    public ResponseEntity<Resource> downloadMergedBatch(@PathVariable String batchId) {
+
+        for (String format : List.of(DocumentMergeService.FORMAT_PDF, DocumentMergeService.FORMAT_DOCX)) {
+            Path mergedPath = Paths.get("temp", batchId + "-merged." + format);
+            if (!Files.isRegularFile(mergedPath)) {
+                continue;
+            }
+
+            String contentType = DocumentMergeService.FORMAT_PDF.equals(format)
+                    ? "application/pdf"
+                    : FileProcessingService.DOCX_CONTENT_TYPE;
+
+            return ResponseEntity.ok()
+                    .header("Content-Type", contentType)
+                    .header(HttpHeaders.CONTENT_DISPOSITION,
+                            "attachment; filename=\"" + batchId + "." + format + "\"")
+                    .body(new FileSystemResource(mergedPath));
+        }
+
+        return batchOutputMissing(batchId);
+    }
+
+    // 410, если файл удалён очисткой temp, пока итог пакета ещё действует; иначе 404
+    private <T> ResponseEntity<T> batchOutputMissing(String batchId) {
+        if (batchDocumentService.isOutputEvicted(batchId)) {
+            return ResponseEntity.status(HttpStatus.GONE).build();
+        }
+        return ResponseEntity.notFound().build();
     }
 
     // ✅ Получить прогресс batch
+    // По умолчанию — сводка; details=items или details=errors — страница построчных итогов
     @GetMapping("/batch/progress/{batchId}")
-    public ResponseEntity<?> getProgress(@PathVariable String batchId) {
-        BatchGenerationResult result = batchDocumentService.getProgress(batchId);
-        return ResponseEntity.ok(result);
+    public ResponseEntity<?> getProgress(@PathVariable String batchId,
+                                         @RequestParam(required = false) String details,
+                                         @RequestParam(defaultValue = "0") int offset,
+                                         @RequestParam(defaultValue = "100") int limit) {
+        if (details == null) {
+            BatchGenerationResult result = batchDocumentService.getProgress(batchId);
+            return ResponseEntity.ok(result);
+        }
+        if (!"items".equals(details) && !"errors".equals(details)) {
+            return ResponseEntity.badRequest().body("details must be items or errors");
+        }
+        int pageLimit = Math.min(Math.max(limit, 1), MAX_PROGRESS_PAGE);
+        return batchDocumentService.getProgressDetails(batchId, details, Math.max(offset, 0), pageLimit)
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElseGet(() -> batchOutputMissing(batchId));
+    }
+
+    // ✅ Поток прогресса batch (server-sent events) вместо частого опроса /batch/progress
+    // События progress — не чаще batch.progress.stream.interval-ms и только при изменениях, последнее — complete
+    @GetMapping(value = "/batch/progress/{batchId}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> streamProgress(@PathVariable String batchId) {
+        BatchGenerationResult current = batchDocumentService.getProgress(batchId);
+        if (current == null) {
+            return ResponseEntity.notFound().build();
+        }
+        SseEmitter emitter = batchProgressStreamService.subscribe(batchId, current);
+        if (emitter == null) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body("Too many progress streams");
+        }
+        return ResponseEntity.ok()
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                // Прокси (nginx) не должен копить события в буфере
+                .header("X-Accel-Buffering", "no")
+                .body(emitter);
+    }
+
+    // ✅ Состояние временного хранилища пакетов: занятое место, квота, очистка
+    @GetMapping("/batch/storage")
+    public ResponseEntity<Map<String, Object>> getBatchStorage() {
+        return ResponseEntity.ok(tempStorageJanitor.getStats());
     }
 
     // ✅ Экспорт текста
@@ -161,7 +275,7 @@ public class DocumentController {
 
     // ✅ Экспорт DOCX
     @GetMapping("/{id}/export-docx")
-    public ResponseEntity<byte[]> exportDocumentToDocx(
+    public Callable<ResponseEntity<?>> exportDocumentToDocx(
             Authentication authentication,
             @PathVariable Long id) {
 
@@ -171,44 +285,64 @@ public class DocumentController {
                 .orElseThrow(() -> new RuntimeException("Document not found"));
 
         if (!document.getUser().getId().equals(user.getId())) {
-            return ResponseEntity.status(403).build();
+            return () -> ResponseEntity.status(403).build();
         }
 
         Template template = document.getTemplate();
         Map<String, String> data = document.getData();
 
-        try {
-            byte[] docxContent;
+        // Файл собирается в буфер (без промежуточного byte[]) в интерактивной полосе до того, как
+        // появятся заголовки ответа: отказ планировщика уходит клиенту обычным 429, а не телом файла.
+        // В ответ буфер пишется после освобождения слота, медленный клиент его не держит
+        return () -> {
+            OutputBuffer docx = outputBufferService.newBuffer();
+            try {
+                try (GenerationScheduler.Permit permit = generationScheduler.acquire(user.getUsername());
+                     ExecutionLanes.InteractiveTimer timer = executionLanes.timeInteractive()) {
+                    fileProcessingService.generateDocx(template, data, docx);
+                }
+            } catch (IOException | RuntimeException e) {
+                docx.release();
+                throw e;
+            }
+            return bufferedFile(docx, FileProcessingService.DOCX_CONTENT_TYPE, document.getName() + ".docx");
+        };
+    }
 
-            if (template.getDocxFileContent() != null) {
+    // ✅ Экспорт PDF
+    @GetMapping("/{id}/export-pdf")
+    public Callable<ResponseEntity<?>> exportDocumentToPdf(
+            Authentication authentication,
+            @PathVariable Long id) {
 
-                MultipartFile templateFile = new InMemoryMultipartFile(
-                        template.getOriginalFileName(),
-                        "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
-                        template.getDocxFileContent()
-                );
+        User user = getCurrentUser(authentication);
 
-                docxContent = fileProcessingService.generateDocxFromTemplate(templateFile, data);
-            } else {
-                docxContent = fileProcessingService.generateDocxFromTextTemplate(
-                        template.getContent(), data);
-            }
+        Document document = documentService.getDocumentById(id)
+                .orElseThrow(() -> new RuntimeException("Document not found"));
 
-            return ResponseEntity.ok()
-                    .header("Content-Type",
-                            "application/vnd.openxmlformats-officedocument.wordprocessingml.document")
-                    .header("Content-Disposition",
-                            "attachment; filename=\"" + document.getName() + ".docx\"")
-                    .body(docxContent);
-
-        } catch (Exception e) {
-            return ResponseEntity.internalServerError().build();
+        if (!document.getUser().getId().equals(user.getId())) {
+            return () -> ResponseEntity.status(403).build();
         }
+
+        Template template = document.getTemplate();
+        Map<String, String> data = document.getData();
+
+        // DOCX — входные данные конвертера, поэтому собирается в памяти; PDF собирается в буфер
+        // на потоке конвертера до заголовков ответа, как и DOCX
+        return () -> {
+            OutputBuffer pdf;
+            try (GenerationScheduler.Permit permit = generationScheduler.acquire(user.getUsername());
+                 ExecutionLanes.InteractiveTimer timer = executionLanes.timeInteractive()) {
+                byte[] docxContent = fileProcessingService.generateDocx(template, data);
+                pdf = pdfConversionService.convertDocxToPdf(docxContent);
+            }
+            return bufferedFile(pdf, "application/pdf", document.getName() + ".pdf");
+        };
     }
 
-    // ✅ Экспорт PDF
-    @GetMapping("/{id}/export-pdf")
-    public ResponseEntity<byte[]> exportDocumentToPdf(
+    // ✅ Экспорт XLSX: поля и текст документа
+    @GetMapping("/{id}/export-xlsx")
+    public Callable<ResponseEntity<?>> exportDocumentToXlsx(
             Authentication authentication,
             @PathVariable Long id) {
 
@@ -218,57 +352,130 @@ public class DocumentController {
                 .orElseThrow(() -> new RuntimeException("Document not found"));
 
         if (!document.getUser().getId().equals(user.getId())) {
-            return ResponseEntity.status(403).build();
+            return () -> ResponseEntity.status(403).build();
         }
 
-        try {
-            byte[] pdfContent =
-                    fileProcessingService.generatePdfDocument(document.getGeneratedContent());
-
-            return ResponseEntity.ok()
-                    .header("Content-Type", "application/pdf")
-                    .header("Content-Disposition",
-                            "attachment; filename=\"" + document.getName() + ".pdf\"")
-                    .body(pdfContent);
+        Map<String, String> data = document.getData();
+        String content = document.getGeneratedContent();
+
+        // Как DOCX: книга собирается в буфер под слотом генерации до заголовков ответа
+        return () -> {
+            OutputBuffer xlsx = outputBufferService.newBuffer();
+            try {
+                try (GenerationScheduler.Permit permit = generationScheduler.acquire(user.getUsername());
+                     ExecutionLanes.InteractiveTimer timer = executionLanes.timeInteractive()) {
+                    spreadsheetService.generateXlsx(data, content, xlsx);
+                }
+            } catch (IOException | RuntimeException e) {
+                xlsx.release();
+                throw e;
+            }
+            return bufferedFile(xlsx, SpreadsheetService.XLSX_CONTENT_TYPE, document.getName() + ".xlsx");
+        };
+    }
 
-        } catch (Exception e) {
-            return ResponseEntity.internalServerError().build();
+    // Готовый файл из буфера: пишется в ответ потоком сервлета, буфер освобождается, когда поток закрыт
+    private static ResponseEntity<Resource> bufferedFile(OutputBuffer buffer, String contentType,
+                                                         String fileName) throws IOException {
+        InputStream content;
+        try {
+            content = new FilterInputStream(buffer.openInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        buffer.release();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw e;
         }
+
+        return ResponseEntity.ok()
+                .header("Content-Type", contentType)
+                .header("Content-Disposition", "attachment; filename=\"" + fileName + "\"")
+                .contentLength(buffer.size())
+                .body(new InputStreamResource(content));
     }
 
-    // Предпросмотр DOCX без сохранения
+    // Предпросмотр DOCX без сохранения; рендер в интерактивной полосе до заголовков ответа
     @PostMapping("/preview-docx")
-    public ResponseEntity<byte[]> previewDocx(
+    public Callable<ResponseEntity<byte[]>> previewDocx(
             Authentication authentication,
             @RequestBody Map<String, Object> requestBody
     ) {
         Long templateId = Long.valueOf(requestBody.get("templateId").toString());
-        Map<String, String> data = (Map<String, String>) requestBody.get("data");
+        Map<String, String> data = TemplateDataDeserializer.fromObject(requestBody.get("data"));
 
         Template template = templateService.getTemplateById(templateId)
                 .orElseThrow(() -> new RuntimeException("Template not found"));
 
-        try {
-            byte[] docxContent;
-
-            if (template.getDocxFileContent() != null) {
-                MultipartFile templateFile = new InMemoryMultipartFile(
-                        template.getOriginalFileName(),
-                        "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
-                        template.getDocxFileContent()
-                );
-                docxContent = fileProcessingService.generateDocxFromTemplate(templateFile, data);
-            } else {
-                docxContent = fileProcessingService.generateDocxFromTextTemplate(
-                        template.getContent(), data);
-            }
+        // Одинаковые одновременные запросы объединяются в один рендер (см. PreviewService)
+        String username = authentication.getName();
+        return () -> ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(FileProcessingService.DOCX_CONTENT_TYPE))
+                .body(previewService.renderPreview(username, template, data));
+    }
 
-            return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType("application/vnd.openxmlformats-officedocument.wordprocessingml.document"))
-                    .body(docxContent);
+    // Сессия предпросмотра: шаблон разбирается один раз, дальше присылаются только изменённые поля
+    @PostMapping("/preview-sessions")
+    public Callable<ResponseEntity<?>> openPreviewSession(
+            Authentication authentication,
+            @RequestBody Map<String, Object> requestBody
+    ) {
+        Long templateId = Long.valueOf(requestBody.get("templateId").toString());
+        Map<String, String> data = TemplateDataDeserializer.fromObject(requestBody.get("data"));
+
+        Template template = templateService.getTemplateById(templateId)
+                .orElseThrow(() -> new RuntimeException("Template not found"));
+
+        String username = authentication.getName();
+        return () -> {
+            String sessionId = previewSessionService.openSession(username, template, data);
+            return ResponseEntity.ok(Map.of("sessionId", sessionId));
+        };
+    }
 
-        } catch (Exception e) {
-            return ResponseEntity.internalServerError().build();
+    // Применить изменённые поля и получить текущий DOCX.
+    // Рендер идёт в интерактивной полосе (Callable выполняется её пулом), как предпросмотр
+    @PatchMapping("/preview-sessions/{sessionId}")
+    public Callable<ResponseEntity<byte[]>> updatePreviewSession(
+            Authentication authentication,
+            @PathVariable String sessionId,
+            @RequestBody(required = false) Map<String, String> changes
+    ) {
+        String username = authentication.getName();
+        return () -> previewSessionService.updateSession(username, sessionId, changes)
+                .map(content -> ResponseEntity.ok()
+                        .contentType(MediaType.parseMediaType(FileProcessingService.DOCX_CONTENT_TYPE))
+                        .body(content))
+                .orElseGet(() -> ResponseEntity.notFound().build());
+    }
+
+    @DeleteMapping("/preview-sessions/{sessionId}")
+    public ResponseEntity<?> closePreviewSession(
+            Authentication authentication,
+            @PathVariable String sessionId) {
+        if (!previewSessionService.closeSession(authentication.getName(), sessionId)) {
+            return ResponseEntity.notFound().build();
         }
+        return ResponseEntity.noContent().build();
+    }
+
+    // Планировщик не принял задачу: слишком много запросов от пользователя
+    @ExceptionHandler(GenerationRejectedException.class)
+    public ResponseEntity<?> handleGenerationRejected(GenerationRejectedException e) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(e.getMessage());
+    }
+
+    // Очередь конвертации PDF переполнена
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<?> handleConversionRejected(RejectedExecutionException e) {
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
     }
-}
\ No newline at end of file
+}
@@ -1,9 +1,13 @@
 package com.controller;
 
 import com.dto.TemplateDTO;
+import com.dto.TemplateFieldsRequest;
+import com.dto.TemplateRerenderRequest;
 import com.model.Template;
 import com.model.User;
+import com.service.DocumentRerenderService;
 import com.service.FileProcessingService;
+import com.service.FreemarkerTemplateEngine;
 import com.service.TemplateService;
 import com.service.UserService;
 import jakarta.servlet.http.HttpSession;
@@ -22,6 +26,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/templates")
@@ -34,13 +39,34 @@ public class TemplateController {
     private final TemplateService templateService;
     private final FileProcessingService fileProcessingService;
     private final UserService userService;
+    private final FreemarkerTemplateEngine freemarkerTemplateEngine;
+    private final DocumentRerenderService documentRerenderService;
 
     public TemplateController(TemplateService templateService,
                               FileProcessingService fileProcessingService,
-                              UserService userService) {
+                              UserService userService,
+                              FreemarkerTemplateEngine freemarkerTemplateEngine,
+                              DocumentRerenderService documentRerenderService) {
         this.templateService = templateService;
         this.fileProcessingService = fileProcessingService;
         this.userService = userService;
+        this.freemarkerTemplateEngine = freemarkerTemplateEngine;
+        this.documentRerenderService = documentRerenderService;
+    }
+
+    // Возвращает текст ошибки, если движок неизвестен или шаблон FreeMarker не компилируется
+    private String validateEngine(String engine, String content) {
+        if (engine == null || Template.ENGINE_SIMPLE.equals(engine)) {
+            return null;
+        }
+        if (!Template.ENGINE_FREEMARKER.equals(engine)) {
+            return "Unknown template engine: " + engine;
+        }
+        if (content == null) {
+            return null;
+        }
+        String error = freemarkerTemplateEngine.validate(content);
+        return error != null ? "Invalid FreeMarker template: " + error : null;
     }
 
     private boolean isGuest(Authentication authentication) {
@@ -91,6 +117,7 @@ public class TemplateController {
 
         String name = requestBody.get("name");
         String content = requestBody.get("content");
+        String engine = requestBody.get("engine");
 
         if (name == null || name.trim().isEmpty()) {
             return ResponseEntity.badRequest().body("Template name is required");
@@ -98,6 +125,10 @@ public class TemplateController {
         if (content == null || content.trim().isEmpty()) {
             return ResponseEntity.badRequest().body("Template content is required");
         }
+        String engineError = validateEngine(engine, content);
+        if (engineError != null) {
+            return ResponseEntity.badRequest().body(engineError);
+        }
 
         Map<String, String> fields = templateService.extractFieldsFromContent(content);
         User user = getCurrentUser(authentication);
@@ -123,7 +154,7 @@ public class TemplateController {
             return ResponseEntity.ok(dto);
         }
 
-        Template template = templateService.createTemplate(name, content, user, fields);
+        Template template = templateService.createTemplate(name, content, user, fields, engine);
         return ResponseEntity.ok(convertToDTO(template));
     }
 
@@ -191,15 +222,127 @@ public class TemplateController {
         User user = getCurrentUser(authentication);
         String name = requestBody.get("name");
         String content = requestBody.get("content");
+        String engine = requestBody.get("engine");
+
+        Template stored = templateService.getTemplateById(id)
+                .orElseThrow(() -> new RuntimeException("Template not found"));
+        if (!stored.getUser().getId().equals(user.getId())) {
+            return ResponseEntity.status(403).body("Access denied");
+        }
+
+        // Проверяется то, что получится после обновления: новый текст шаблона FreeMarker без engine
+        // и смена движка без нового текста. К DOCX FreeMarker не применяется, их текст не проверяется
+        String effectiveEngine = engine != null ? engine : stored.getEngine();
+        String effectiveContent = content != null ? content : stored.getContent();
+        String engineError = validateEngine(effectiveEngine,
+                stored.getDocxFileContent() == null ? effectiveContent : null);
+        if (engineError != null) {
+            return ResponseEntity.badRequest().body(engineError);
+        }
 
         Map<String, String> fields = templateService.extractFieldsFromContent(content);
-        Template updatedTemplate = templateService.updateTemplate(id, name, content, fields);
+        Template updatedTemplate = templateService.updateTemplate(id, name, content, fields, engine);
+
+        return ResponseEntity.ok(convertToDTO(updatedTemplate));
+    }
 
-        if (!updatedTemplate.getUser().getId().equals(user.getId())) {
+    // ✅ Типы полей и локаль: значения форматируются при рендере
+    @PutMapping("/{id}/fields")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<?> updateFieldTypes(
+            @PathVariable Long id,
+            Authentication authentication,
+            @RequestBody TemplateFieldsRequest request) {
+
+        User user = getCurrentUser(authentication);
+
+        Optional<Template> templateOpt = templateService.getTemplateById(id);
+        if (templateOpt.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        Template template = templateOpt.get();
+        if (!template.getUser().getId().equals(user.getId())) {
             return ResponseEntity.status(403).body("Access denied");
         }
 
-        return ResponseEntity.ok(convertToDTO(updatedTemplate));
+        try {
+            Template updatedTemplate = templateService.updateFieldTypes(template, request.getFields(), request.getLocale());
+            return ResponseEntity.ok(convertToDTO(updatedTemplate));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+    }
+
+    // ✅ Фоновый перерендер документов шаблона после его изменения
+    @PostMapping("/{id}/rerender")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<?> rerenderDocuments(
+            @PathVariable Long id,
+            Authentication authentication,
+            @RequestBody(required = false) TemplateRerenderRequest request) {
+
+        User user = getCurrentUser(authentication);
+
+        Optional<Template> templateOpt = templateService.getTemplateById(id);
+        if (templateOpt.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        Template template = templateOpt.get();
+        if (!template.getUser().getId().equals(user.getId())) {
+            return ResponseEntity.status(403).body("Access denied");
+        }
+
+        TemplateRerenderRequest options = request != null ? request : new TemplateRerenderRequest();
+        try {
+            return ResponseEntity.ok(
+                    documentRerenderService.start(template, options.getDocumentIds(), options.isOnlyStale()));
+        } catch (RejectedExecutionException e) {
+            return ResponseEntity.status(503).body("Too many re-render jobs, try again later");
+        }
+    }
+
+    @GetMapping("/{id}/rerender")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<?> getRerenderStatus(
+            @PathVariable Long id,
+            Authentication authentication) {
+
+        ResponseEntity<?> denied = checkOwner(id, authentication);
+        if (denied != null) {
+            return denied;
+        }
+        return documentRerenderService.getStatus(id)
+                .<ResponseEntity<?>>map(ResponseEntity::ok)
+                .orElse(ResponseEntity.notFound().build());
+    }
+
+    @DeleteMapping("/{id}/rerender")
+    @PreAuthorize("hasRole('USER')")
+    public ResponseEntity<?> cancelRerender(
+            @PathVariable Long id,
+            Authentication authentication) {
+
+        ResponseEntity<?> denied = checkOwner(id, authentication);
+        if (denied != null) {
+            return denied;
+        }
+        if (!documentRerenderService.cancel(id)) {
+            return ResponseEntity.badRequest().body("No running re-render for this template");
+        }
+        return ResponseEntity.ok("Re-render cancelled");
+    }
+
+    // Ответ 404/403, если шаблона нет или он чужой; null — доступ есть
+    private ResponseEntity<?> checkOwner(Long templateId, Authentication authentication) {
+        User user = getCurrentUser(authentication);
+        Optional<Template> templateOpt = templateService.getTemplateById(templateId);
+        if (templateOpt.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        if (!templateOpt.get().getUser().getId().equals(user.getId())) {
+            return ResponseEntity.status(403).body("Access denied");
+        }
+        return null;
     }
 
     // ✅ Удаление — только авторизованные
@@ -224,7 +367,7 @@ public class TemplateController {
     }
 
     private TemplateDTO convertToDTO(Template template) {
-        return new TemplateDTO(
+        TemplateDTO dto = new TemplateDTO(
                 template.getId(),
                 template.getName(),
                 template.getDescription(),
@@ -235,6 +378,9 @@ public class TemplateController {
                 template.getOriginalFileName(),
                 template.getDocxFileContent()
         );
+        dto.setEngine(template.getEngine());
+        dto.setLocale(template.getLocale());
+        return dto;
     }
 
     // Предпросмотр шаблона DOCX
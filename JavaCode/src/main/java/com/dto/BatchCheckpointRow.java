@@ -0,0 +1,17 @@
+package com.dto;
+
+import lombok.Data;
+import java.util.Map;
+
+/**
+ * Итог одной строки в контрольной точке пакета: результат, ошибка и имена файлов
+ * во временном каталоге пакета (формат → файл), из которых строка выгружается повторно
+ */
+@Data
+public class BatchCheckpointRow {
+    private BatchItemResult item;
+    private BatchError error;
+    private Map<String, String> files;
+    // Файл с текстом документа для сводной таблицы
+    private String contentFile;
+}
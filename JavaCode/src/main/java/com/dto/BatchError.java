@@ -1,11 +1,9 @@
 package com.dto;
 
 import lombok.Data;
-import java.util.Map;
 
 @Data
 public class BatchError {
     private int rowIndex;
     private String errorMessage;
-    private Map<String, String> data;
 }
\ No newline at end of file
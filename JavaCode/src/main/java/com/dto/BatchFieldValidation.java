@@ -0,0 +1,21 @@
+package com.dto;
+
+import lombok.Data;
+import java.util.List;
+
+@Data
+public class BatchFieldValidation {
+    private String field;
+    // Поля нет в строке или значение null
+    private int missingCount;
+    // Значение пустое или из пробелов: подстановка его тоже пропускает
+    private int emptyCount;
+    // Поле-список (${#items}, ${items.name}), значение которого не JSON-массив
+    private int notListCount;
+    // Номера строк диапазонами: "0-4", "7"
+    private List<String> missingRows;
+    private List<String> emptyRows;
+    private List<String> notListRows;
+    // Диапазонов больше batch.validation.max-ranges: списки обрезаны, счётчики точные
+    private boolean truncated;
+}
@@ -1,6 +1,8 @@
 package com.dto;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import lombok.Data;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 
@@ -8,7 +10,25 @@ import java.util.Map;
 public class BatchGenerationRequest {
     private String name;
     private Long templateId;
+    // Значения-списки (строки таблиц) приходят как JSON и хранятся текстом
+    @JsonDeserialize(contentUsing = TemplateDataDeserializer.class)
     private List<Map<String, String>> dataRows;
     private List<String> formats;
     private boolean guestMode = false;
+    // Добавить в архив сводную таблицу XLSX по всем строкам пакета
+    private boolean spreadsheetSummary = false;
+    // pdf или docx: дополнительно собрать все документы пакета в один файл
+    private String mergeFormat;
+    // zip, directory или s3; по умолчанию batch.output.sink
+    private String outputSink;
+    // Разделить пакет на части, которые выполняют все узлы; ответ возвращается сразу, итог — через progress
+    private boolean distributed = false;
+    // Не запускать раньше этого времени (время сервера); ответ возвращается сразу, итог — через progress
+    private LocalDateTime startAt;
+    // off-peak: пакет ждёт окна batch.schedule.off-peak-windows; по умолчанию — сразу или в startAt
+    private String executionClass;
+    // Только проверить строки по полям шаблона: без генерации и записи в БД
+    private boolean dryRun = false;
+    // Изображения пакета: имя -> data URI или base64; поля image ссылаются на них по имени
+    private Map<String, String> media;
 }
\ No newline at end of file
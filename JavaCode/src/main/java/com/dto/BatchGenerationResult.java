@@ -1,15 +1,32 @@
 package com.dto;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
 import java.util.List;
+import java.util.Map;
 
 @Data
 public class BatchGenerationResult {
     private String batchId;
+    // SCHEDULED, RUNNING, ASSEMBLING, COMPLETED или FAILED
+    private String status;
     private int totalDocuments;
+    private int completedDocuments;
     private int successfulDocuments;
     private int failedDocuments;
     private String zipFileName;
-    private List<BatchItemResult> results;
+    private String outputSink;
+    private String outputLocation;
+    private String summaryFileName;
+    private String mergedFileName;
+    // Файлы результата (ZIP, собранный документ, построчные итоги) удалены очисткой temp до истечения срока итога
+    private boolean evicted;
+    // Ошибки строк: их число здесь, сами ошибки — постранично через /batch/progress?details=errors
+    private int rowErrorCount;
+    // Ошибки пакета целиком (выгрузка, сборка, сводная таблица)
     private List<BatchError> errors;
+    // Построчные итоги отдаются постранично, в ответ целиком не сериализуются
+    @JsonIgnore
+    private BatchRowResults rows;
+    private Map<String, Long> stageTimingsMillis;
 }
\ No newline at end of file
@@ -8,4 +8,5 @@ public class BatchItemResult {
     private String documentName;
     private String status;
     private String documentId;
+    private Integer duplicateOfRow;
 }
\ No newline at end of file
@@ -0,0 +1,20 @@
+package com.dto;
+
+import lombok.Data;
+
+@Data
+public class BatchProgressEvent {
+    private String batchId;
+    // SCHEDULED, RUNNING, ASSEMBLING, COMPLETED или FAILED
+    private String status;
+    private int totalDocuments;
+    private int completedDocuments;
+    private int successfulDocuments;
+    private int failedDocuments;
+    // Строк с предыдущего события потока
+    private int completedDelta;
+    private int failedDelta;
+    // Скорость, сглаженная по интервалам рассылки; null, пока не известна
+    private Double rowsPerSecond;
+    private Long etaSeconds;
+}
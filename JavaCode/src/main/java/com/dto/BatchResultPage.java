@@ -0,0 +1,17 @@
+package com.dto;
+
+import lombok.Data;
+import java.util.List;
+
+/**
+ * Страница построчных итогов пакета: строки (details=items) или ошибки строк (details=errors)
+ */
+@Data
+public class BatchResultPage {
+    private String batchId;
+    private String details;
+    private int offset;
+    private int limit;
+    private int total;
+    private List<?> items;
+}
@@ -0,0 +1,107 @@
+package com.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Построчные итоги пакета в компактном виде: статус строки — бит в BitSet,
+ * id документов — массив long, ошибки строк — отдельный список без копии данных строки.
+ * Объекты BatchItemResult создаются только для запрошенной страницы.
+ */
+public class BatchRowResults {
+    private static final long NO_DOCUMENT = 0L;
+    private static final int NO_DUPLICATE = -1;
+
+    private int size;
+    // Бит строки установлен, если строка выгружена успешно
+    private BitSet succeeded;
+    private long[] documentIds;
+    private String[] documentNames;
+    // Создаётся при первом дубликате: у большинства пакетов их нет
+    private int[] duplicateOf;
+    private List<BatchError> errors = new ArrayList<>();
+
+    public BatchRowResults() {}
+
+    public BatchRowResults(int size) {
+        this.size = size;
+        this.succeeded = new BitSet(size);
+        this.documentIds = new long[size];
+        this.documentNames = new String[size];
+    }
+
+    public void setRow(int rowIndex, String documentName, boolean success, String documentId, Integer duplicateOfRow) {
+        documentNames[rowIndex] = documentName;
+        succeeded.set(rowIndex, success);
+        documentIds[rowIndex] = documentId != null ? Long.parseLong(documentId) : NO_DOCUMENT;
+        if (duplicateOfRow != null) {
+            if (duplicateOf == null) {
+                duplicateOf = new int[size];
+                Arrays.fill(duplicateOf, NO_DUPLICATE);
+            }
+            duplicateOf[rowIndex] = duplicateOfRow;
+        }
+    }
+
+    public void addError(int rowIndex, String errorMessage) {
+        BatchError error = new BatchError();
+        error.setRowIndex(rowIndex);
+        error.setErrorMessage(errorMessage);
+        errors.add(error);
+    }
+
+    public BatchItemResult item(int rowIndex) {
+        BatchItemResult item = new BatchItemResult();
+        item.setRowIndex(rowIndex);
+        item.setDocumentName(documentNames[rowIndex]);
+        item.setStatus(succeeded.get(rowIndex) ? "SUCCESS" : "FAILED");
+        if (documentIds[rowIndex] != NO_DOCUMENT) {
+            item.setDocumentId(String.valueOf(documentIds[rowIndex]));
+        }
+        if (duplicateOf != null && duplicateOf[rowIndex] != NO_DUPLICATE) {
+            item.setDuplicateOfRow(duplicateOf[rowIndex]);
+        }
+        return item;
+    }
+
+    public List<BatchItemResult> items(int offset, int limit) {
+        List<BatchItemResult> page = new ArrayList<>();
+        for (int rowIndex = Math.max(offset, 0); rowIndex < size && page.size() < limit; rowIndex++) {
+            page.add(item(rowIndex));
+        }
+        return page;
+    }
+
+    public List<BatchError> errors(int offset, int limit) {
+        int from = Math.min(Math.max(offset, 0), errors.size());
+        return new ArrayList<>(errors.subList(from, Math.min(from + limit, errors.size())));
+    }
+
+    @JsonIgnore
+    public int getErrorCount() {
+        return errors.size();
+    }
+
+    // Геттеры и сеттеры для сохранения на диск
+    public int getSize() { return size; }
+    public void setSize(int size) { this.size = size; }
+
+    public long[] getSucceededBits() { return succeeded.toLongArray(); }
+    public void setSucceededBits(long[] bits) { this.succeeded = BitSet.valueOf(bits); }
+
+    public long[] getDocumentIds() { return documentIds; }
+    public void setDocumentIds(long[] documentIds) { this.documentIds = documentIds; }
+
+    public String[] getDocumentNames() { return documentNames; }
+    public void setDocumentNames(String[] documentNames) { this.documentNames = documentNames; }
+
+    public int[] getDuplicateOf() { return duplicateOf; }
+    public void setDuplicateOf(int[] duplicateOf) { this.duplicateOf = duplicateOf; }
+
+    public List<BatchError> getErrors() { return errors; }
+    public void setErrors(List<BatchError> errors) { this.errors = errors; }
+}
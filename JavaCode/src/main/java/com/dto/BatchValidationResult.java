@@ -0,0 +1,20 @@
+package com.dto;
+
+import lombok.Data;
+import java.util.List;
+import java.util.Set;
+
+@Data
+public class BatchValidationResult {
+    private Long templateId;
+    private int totalRows;
+    private int validRows;
+    private int invalidRows;
+    // Строки, где не хватает хотя бы одного поля, диапазонами
+    private List<String> invalidRowRanges;
+    private boolean truncated;
+    // Только поля, для которых нашлись пропуски
+    private List<BatchFieldValidation> fields;
+    // Колонки данных, которых нет среди полей шаблона (возможна опечатка в имени)
+    private Set<String> unknownColumns;
+}
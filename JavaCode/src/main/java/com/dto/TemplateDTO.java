@@ -12,6 +12,8 @@ public class TemplateDTO {
     private LocalDateTime createdAt;
     private LocalDateTime updatedAt;
     private String originalFileName;
+    private String engine;
+    private String locale;
     private byte[] docxFileContent; // или String docxFileContentBase64 если нужна кодировка base64
 
     // Конструкторы
@@ -56,6 +58,12 @@ public class TemplateDTO {
     public String getOriginalFileName() { return originalFileName; }
     public void setOriginalFileName(String originalFileName) { this.originalFileName = originalFileName; }
 
+    public String getEngine() { return engine; }
+    public void setEngine(String engine) { this.engine = engine; }
+
+    public String getLocale() { return locale; }
+    public void setLocale(String locale) { this.locale = locale; }
+
     public byte[] getDocxFileContent() { return docxFileContent; }
     public void setDocxFileContent(byte[] docxFileContent) { this.docxFileContent = docxFileContent; }
 }
\ No newline at end of file
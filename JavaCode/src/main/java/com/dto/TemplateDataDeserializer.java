@@ -0,0 +1,66 @@
+package com.dto;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Данные для шаблона: строки остаются строками, списки и объекты (например, строки таблицы
+ * для ${items.поле}) сохраняются как JSON-текст. Так данные по-прежнему хранятся как Map<String, String>.
+ */
+public class TemplateDataDeserializer extends JsonDeserializer<Map<String, String>> {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Override
+    public Map<String, String> deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+        JsonNode node = parser.readValueAsTree();
+        Map<String, String> data = new HashMap<>();
+
+        Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            JsonNode value = field.getValue();
+            if (value.isNull()) {
+                data.put(field.getKey(), null);
+            } else {
+                data.put(field.getKey(), value.isValueNode() ? value.asText() : value.toString());
+            }
+        }
+        return data;
+    }
+
+    /**
+     * То же для данных, уже разобранных в Map (тело запроса как Map<String, Object>)
+     */
+    public static Map<String, String> fromObject(Object raw) {
+        if (raw == null) {
+            return new HashMap<>();
+        }
+
+        Map<String, String> data = new HashMap<>();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) raw).entrySet()) {
+            Object value = entry.getValue();
+            if (value == null || value instanceof String) {
+                data.put(String.valueOf(entry.getKey()), (String) value);
+            } else if (value instanceof Number || value instanceof Boolean) {
+                data.put(String.valueOf(entry.getKey()), value.toString());
+            } else {
+                try {
+                    data.put(String.valueOf(entry.getKey()), objectMapper.writeValueAsString(value));
+                } catch (JsonProcessingException e) {
+                    throw new IllegalArgumentException("Invalid value for field " + entry.getKey(), e);
+                }
+            }
+        }
+        return data;
+    }
+}
@@ -0,0 +1,12 @@
+package com.dto;
+
+import lombok.Data;
+import java.util.Map;
+
+@Data
+public class TemplateFieldsRequest {
+    // Имя поля → тип: text, date[:dd.MM.yyyy], number[:#,##0.00], currency[:EUR], boolean[:Да/Нет]
+    private Map<String, String> fields;
+    // ru-RU, en-US; null — не менять
+    private String locale;
+}
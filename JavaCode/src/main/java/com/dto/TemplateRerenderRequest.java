@@ -0,0 +1,12 @@
+package com.dto;
+
+import lombok.Data;
+import java.util.List;
+
+@Data
+public class TemplateRerenderRequest {
+    // Только эти документы шаблона; null — все документы шаблона
+    private List<Long> documentIds;
+    // Пропускать документы, уже построенные по текущей версии шаблона
+    private boolean onlyStale = true;
+}
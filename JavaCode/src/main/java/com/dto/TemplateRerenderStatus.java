@@ -0,0 +1,30 @@
+package com.dto;
+
+import lombok.Data;
+import java.time.LocalDateTime;
+
+@Data
+public class TemplateRerenderStatus {
+    private Long templateId;
+    // Версия шаблона, по которой идёт перерендер
+    private String templateVersion;
+    // QUEUED, RUNNING, COMPLETED, CANCELLED или FAILED
+    private String status;
+    private boolean onlyStale;
+    // Оценка при запуске; после изменения шаблона во время перерендера пересчитывается
+    private long totalDocuments;
+    private long processedDocuments;
+    private long renderedDocuments;
+    // Документы, текст которых не удалось построить; у них остаётся прежний текст
+    private long failedDocuments;
+    // Сколько раз перерендер начинался заново из-за изменения шаблона
+    private int restarts;
+    private long lastDocumentId;
+    private double documentsPerSecond;
+    // Пакетная полоса сокращена из-за задержек интерактивных запросов
+    private boolean throttled;
+    private String errorMessage;
+    private LocalDateTime createdAt;
+    private LocalDateTime startedAt;
+    private LocalDateTime finishedAt;
+}
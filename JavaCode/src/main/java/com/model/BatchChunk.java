@@ -0,0 +1,82 @@
+package com.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Часть распределённого пакета — строки [startRow, endRow). Узел захватывает часть
+ * с арендой до leaseExpiresAt; часть с истёкшей арендой снова доступна другим узлам.
+ * Итоги строк выполненной части хранятся JSON-списком BatchCheckpointRow.
+ */
+@Entity
+@Table(name = "batch_chunks",
+       indexes = {
+           @Index(name = "idx_batch_chunks_job", columnList = "job_id, start_row"),
+           @Index(name = "idx_batch_chunks_status", columnList = "status, lease_expires_at")
+       })
+public class BatchChunk {
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "job_id", nullable = false)
+    private String jobId;
+
+    @Column(name = "start_row")
+    private int startRow;
+
+    @Column(name = "end_row")
+    private int endRow;
+
+    private String status;
+    private int attempts;
+    private String leaseOwner;
+
+    @Column(name = "lease_expires_at")
+    private LocalDateTime leaseExpiresAt;
+
+    @Column(columnDefinition = "TEXT")
+    private String rowsJson;
+
+    // Конструкторы
+    public BatchChunk() {}
+
+    public BatchChunk(String jobId, int startRow, int endRow) {
+        this.jobId = jobId;
+        this.startRow = startRow;
+        this.endRow = endRow;
+        this.status = STATUS_PENDING;
+    }
+
+    // Геттеры и сеттеры
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public String getJobId() { return jobId; }
+    public void setJobId(String jobId) { this.jobId = jobId; }
+
+    public int getStartRow() { return startRow; }
+    public void setStartRow(int startRow) { this.startRow = startRow; }
+
+    public int getEndRow() { return endRow; }
+    public void setEndRow(int endRow) { this.endRow = endRow; }
+
+    public String getStatus() { return status; }
+    public void setStatus(String status) { this.status = status; }
+
+    public int getAttempts() { return attempts; }
+    public void setAttempts(int attempts) { this.attempts = attempts; }
+
+    public String getLeaseOwner() { return leaseOwner; }
+    public void setLeaseOwner(String leaseOwner) { this.leaseOwner = leaseOwner; }
+
+    public LocalDateTime getLeaseExpiresAt() { return leaseExpiresAt; }
+    public void setLeaseExpiresAt(LocalDateTime leaseExpiresAt) { this.leaseExpiresAt = leaseExpiresAt; }
+
+    public String getRowsJson() { return rowsJson; }
+    public void setRowsJson(String rowsJson) { this.rowsJson = rowsJson; }
+}
@@ -0,0 +1,140 @@
+package com.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Пакетная генерация, сохранённая в БД: запрос пакета и отметка о выполненных строках
+ * позволяют продолжить пакет после перезапуска приложения.
+ * Обычный пакет выполняет один узел, пока продлевает аренду (leaseOwner, leaseExpiresAt).
+ * Распределённый пакет делится на части BatchChunk, которые разбирают все узлы,
+ * а собирает результат тот узел, который первым захватит пакет после выполнения всех частей.
+ * Отложенный пакет ждёт в статусе SCHEDULED, пока его не выпустит BatchScheduler.
+ */
+@Entity
+@Table(name = "batch_jobs")
+public class BatchJob {
+    public static final String STATUS_SCHEDULED = "SCHEDULED";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_ASSEMBLING = "ASSEMBLING";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    @Id
+    private String id;
+
+    private Long userId;
+    private Long templateId;
+
+    // Версия шаблона на момент запуска: продолжать пакет по изменённому шаблону нельзя
+    private String templateVersion;
+
+    // Исходный запрос в JSON; очищается после завершения пакета
+    @Column(columnDefinition = "TEXT")
+    private String requestJson;
+
+    private int totalRows;
+    // Строки [0, completedRows) сохранены в контрольных точках
+    private int completedRows;
+    private int successfulRows;
+    private int failedRows;
+    private int attempts;
+
+    private Boolean distributed;
+
+    // Отложенный пакет: не раньше notBefore; offPeak — только в окна низкой нагрузки
+    private LocalDateTime notBefore;
+    private Boolean offPeak;
+
+    private String status;
+    private String leaseOwner;
+    private LocalDateTime leaseExpiresAt;
+    private String outputSink;
+    private String outputLocation;
+
+    @Column(columnDefinition = "TEXT")
+    private String errorMessage;
+
+    private LocalDateTime createdAt;
+    private LocalDateTime updatedAt;
+
+    // Конструкторы
+    public BatchJob() {}
+
+    public BatchJob(String id, Long userId, Template template, String requestJson, int totalRows) {
+        this.id = id;
+        this.userId = userId;
+        this.templateId = template.getId();
+        this.templateVersion = template.getVersionKey();
+        this.requestJson = requestJson;
+        this.totalRows = totalRows;
+        this.attempts = 1;
+        this.status = STATUS_RUNNING;
+        this.createdAt = LocalDateTime.now();
+        this.updatedAt = this.createdAt;
+    }
+
+    // Геттеры и сеттеры
+    public String getId() { return id; }
+    public void setId(String id) { this.id = id; }
+
+    public Long getUserId() { return userId; }
+    public void setUserId(Long userId) { this.userId = userId; }
+
+    public Long getTemplateId() { return templateId; }
+    public void setTemplateId(Long templateId) { this.templateId = templateId; }
+
+    public String getTemplateVersion() { return templateVersion; }
+    public void setTemplateVersion(String templateVersion) { this.templateVersion = templateVersion; }
+
+    public String getRequestJson() { return requestJson; }
+    public void setRequestJson(String requestJson) { this.requestJson = requestJson; }
+
+    public int getTotalRows() { return totalRows; }
+    public void setTotalRows(int totalRows) { this.totalRows = totalRows; }
+
+    public int getCompletedRows() { return completedRows; }
+    public void setCompletedRows(int completedRows) { this.completedRows = completedRows; }
+
+    public int getSuccessfulRows() { return successfulRows; }
+    public void setSuccessfulRows(int successfulRows) { this.successfulRows = successfulRows; }
+
+    public int getFailedRows() { return failedRows; }
+    public void setFailedRows(int failedRows) { this.failedRows = failedRows; }
+
+    public int getAttempts() { return attempts; }
+    public void setAttempts(int attempts) { this.attempts = attempts; }
+
+    public boolean isDistributed() { return Boolean.TRUE.equals(distributed); }
+    public void setDistributed(boolean distributed) { this.distributed = distributed; }
+
+    public LocalDateTime getNotBefore() { return notBefore; }
+    public void setNotBefore(LocalDateTime notBefore) { this.notBefore = notBefore; }
+
+    public boolean isOffPeak() { return Boolean.TRUE.equals(offPeak); }
+    public void setOffPeak(boolean offPeak) { this.offPeak = offPeak; }
+
+    public String getStatus() { return status; }
+    public void setStatus(String status) { this.status = status; }
+
+    public String getLeaseOwner() { return leaseOwner; }
+    public void setLeaseOwner(String leaseOwner) { this.leaseOwner = leaseOwner; }
+
+    public LocalDateTime getLeaseExpiresAt() { return leaseExpiresAt; }
+    public void setLeaseExpiresAt(LocalDateTime leaseExpiresAt) { this.leaseExpiresAt = leaseExpiresAt; }
+
+    public String getOutputSink() { return outputSink; }
+    public void setOutputSink(String outputSink) { this.outputSink = outputSink; }
+
+    public String getOutputLocation() { return outputLocation; }
+    public void setOutputLocation(String outputLocation) { this.outputLocation = outputLocation; }
+
+    public String getErrorMessage() { return errorMessage; }
+    public void setErrorMessage(String errorMessage) { this.errorMessage = errorMessage; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+
+    public LocalDateTime getUpdatedAt() { return updatedAt; }
+    public void setUpdatedAt(LocalDateTime updatedAt) { this.updatedAt = updatedAt; }
+}
@@ -0,0 +1,61 @@
+package com.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * Контрольная точка пакета: итоги строк [startRow, endRow) и файлы, которые они дали
+ * во временном каталоге пакета. Строки хранятся JSON-списком BatchCheckpointRow.
+ */
+@Entity
+@Table(name = "batch_job_checkpoints",
+       indexes = @Index(name = "idx_batch_job_checkpoints_job", columnList = "job_id, start_row"))
+public class BatchJobCheckpoint {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "job_id", nullable = false)
+    private String jobId;
+
+    @Column(name = "start_row")
+    private int startRow;
+
+    @Column(name = "end_row")
+    private int endRow;
+
+    @Column(columnDefinition = "TEXT")
+    private String rowsJson;
+
+    private LocalDateTime createdAt;
+
+    // Конструкторы
+    public BatchJobCheckpoint() {}
+
+    public BatchJobCheckpoint(String jobId, int startRow, int endRow, String rowsJson) {
+        this.jobId = jobId;
+        this.startRow = startRow;
+        this.endRow = endRow;
+        this.rowsJson = rowsJson;
+        this.createdAt = LocalDateTime.now();
+    }
+
+    // Геттеры и сеттеры
+    public Long getId() { return id; }
+    public void setId(Long id) { this.id = id; }
+
+    public String getJobId() { return jobId; }
+    public void setJobId(String jobId) { this.jobId = jobId; }
+
+    public int getStartRow() { return startRow; }
+    public void setStartRow(int startRow) { this.startRow = startRow; }
+
+    public int getEndRow() { return endRow; }
+    public void setEndRow(int endRow) { this.endRow = endRow; }
+
+    public String getRowsJson() { return rowsJson; }
+    public void setRowsJson(String rowsJson) { this.rowsJson = rowsJson; }
+
+    public LocalDateTime getCreatedAt() { return createdAt; }
+    public void setCreatedAt(LocalDateTime createdAt) { this.createdAt = createdAt; }
+}
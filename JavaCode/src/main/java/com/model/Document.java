@@ -6,7 +6,8 @@ import java.time.LocalDateTime;
 import java.util.Map;
 
 @Entity
-@Table(name = "documents")
+@Table(name = "documents",
+       uniqueConstraints = @UniqueConstraint(name = "uk_documents_batch_row", columnNames = {"batch_id", "batch_row"}))
 public class Document {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -33,6 +34,17 @@ public class Document {
     @Column(columnDefinition = "TEXT")
     private String generatedContent;
 
+    // Версия шаблона (Template.getVersionKey), по которой построен generatedContent
+    private String templateVersion;
+
+    // Пакет и строка, из которых создан документ: повтор строки после продолжения пакета
+    // обновляет тот же документ, а не создаёт второй
+    @Column(name = "batch_id")
+    private String batchId;
+
+    @Column(name = "batch_row")
+    private Integer batchRow;
+
     private String filePath;
     private String status;
     private LocalDateTime createdAt;
@@ -67,6 +79,15 @@ public class Document {
     public String getGeneratedContent() { return generatedContent; }
     public void setGeneratedContent(String generatedContent) { this.generatedContent = generatedContent; }
 
+    public String getTemplateVersion() { return templateVersion; }
+    public void setTemplateVersion(String templateVersion) { this.templateVersion = templateVersion; }
+
+    public String getBatchId() { return batchId; }
+    public void setBatchId(String batchId) { this.batchId = batchId; }
+
+    public Integer getBatchRow() { return batchRow; }
+    public void setBatchRow(Integer batchRow) { this.batchRow = batchRow; }
+
     public String getFilePath() { return filePath; }
     public void setFilePath(String filePath) { this.filePath = filePath; }
 
@@ -11,6 +11,10 @@ import java.util.Map;
 @Table(name = "templates")
 @JsonIgnoreProperties({"hibernateLazyInitializer", "handler"})
 public class Template {
+    // Движок текстовых шаблонов: простая подстановка ${field} или FreeMarker
+    public static final String ENGINE_SIMPLE = "simple";
+    public static final String ENGINE_FREEMARKER = "freemarker";
+
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
@@ -26,6 +30,12 @@ public class Template {
 
     private String fileName;
 
+    @Column(name = "template_engine")
+    private String engine;
+
+    // Локаль форматирования типизированных полей (ru-RU, en-US); по умолчанию template.fields.default-locale
+    private String locale;
+
     @ElementCollection
     @CollectionTable(name = "template_fields", joinColumns = @JoinColumn(name = "template_id"))
     @MapKeyColumn(name = "field_name")
@@ -76,6 +86,18 @@ public class Template {
     public String getFileName() { return fileName; }
     public void setFileName(String fileName) { this.fileName = fileName; }
 
+    public String getEngine() { return engine != null ? engine : ENGINE_SIMPLE; }
+    public void setEngine(String engine) {
+        this.engine = engine;
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    public String getLocale() { return locale; }
+    public void setLocale(String locale) {
+        this.locale = locale;
+        this.updatedAt = LocalDateTime.now();
+    }
+
     public Map<String, String> getFields() { return fields; }
     public void setFields(Map<String, String> fields) { this.fields = fields; }
 
@@ -101,4 +123,10 @@ public class Template {
     public String getOriginalFileName() {
         return originalFileName;
     }
+
+    // Меняется при каждом изменении содержимого шаблона; используется как ключ кешей рендера
+    @JsonIgnore
+    public String getVersionKey() {
+        return id + ":" + updatedAt;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,36 @@
+package com.repository;
+
+import com.model.BatchChunk;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface BatchChunkRepository extends JpaRepository<BatchChunk, Long> {
+    List<BatchChunk> findByJobIdOrderByStartRow(String jobId);
+
+    // Первой идёт часть владельца, у которого сейчас меньше всего выполняющихся частей, чтобы большой
+    // пакет одного пользователя не занимал все узлы. Строки, заблокированные другими узлами, пропускаются
+    @Query(value = "SELECT c.* FROM batch_chunks c JOIN batch_jobs j ON j.id = c.job_id"
+            + " WHERE (c.status = 'PENDING' OR (c.status = 'RUNNING' AND c.lease_expires_at < :now))"
+            + " ORDER BY (SELECT count(*) FROM batch_chunks r JOIN batch_jobs rj ON rj.id = r.job_id"
+            + "   WHERE r.status = 'RUNNING' AND r.lease_expires_at >= :now"
+            + "   AND rj.user_id IS NOT DISTINCT FROM j.user_id), c.id"
+            + " LIMIT 1 FOR UPDATE OF c SKIP LOCKED", nativeQuery = true)
+    Optional<BatchChunk> findClaimable(@Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query("update BatchChunk c set c.leaseExpiresAt = :expiresAt"
+            + " where c.id = :id and c.leaseOwner = :owner and c.status = 'RUNNING'")
+    int renewLease(@Param("id") Long id, @Param("owner") String owner, @Param("expiresAt") LocalDateTime expiresAt);
+
+    @Modifying
+    @Query("delete from BatchChunk c where c.jobId = :jobId")
+    void deleteByJobId(@Param("jobId") String jobId);
+}
@@ -0,0 +1,19 @@
+package com.repository;
+
+import com.model.BatchJobCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface BatchJobCheckpointRepository extends JpaRepository<BatchJobCheckpoint, Long> {
+    List<BatchJobCheckpoint> findByJobIdOrderByStartRow(String jobId);
+
+    @Modifying
+    @Query("delete from BatchJobCheckpoint c where c.jobId = :jobId")
+    void deleteByJobId(@Param("jobId") String jobId);
+}
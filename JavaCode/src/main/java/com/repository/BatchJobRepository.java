@@ -0,0 +1,48 @@
+package com.repository;
+
+import com.model.BatchJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+@Repository
+public interface BatchJobRepository extends JpaRepository<BatchJob, String> {
+
+    // Обычный пакет, узел которого перестал продлевать аренду
+    @Query(value = "SELECT * FROM batch_jobs"
+            + " WHERE status = 'RUNNING' AND distributed IS NOT TRUE"
+            + " AND (lease_expires_at IS NULL OR lease_expires_at < :now)"
+            + " ORDER BY created_at LIMIT 1 FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    Optional<BatchJob> findInterrupted(@Param("now") LocalDateTime now);
+
+    // Отложенный пакет, время которого наступило; пакеты off-peak — только пока открыто окно
+    @Query(value = "SELECT * FROM batch_jobs"
+            + " WHERE status = 'SCHEDULED' AND not_before <= :now"
+            + " AND (off_peak IS NOT TRUE OR :offPeakOpen)"
+            + " ORDER BY not_before, created_at LIMIT 1 FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    Optional<BatchJob> findDueScheduled(@Param("now") LocalDateTime now, @Param("offPeakOpen") boolean offPeakOpen);
+
+    // Распределённый пакет, все части которого выполнены, или сборка которого осталась без узла
+    @Query(value = "SELECT * FROM batch_jobs j"
+            + " WHERE j.distributed IS TRUE AND ("
+            + "   (j.status = 'RUNNING' AND NOT EXISTS ("
+            + "     SELECT 1 FROM batch_chunks c WHERE c.job_id = j.id AND c.status <> 'DONE'))"
+            + "   OR (j.status = 'ASSEMBLING' AND j.lease_expires_at < :now))"
+            + " ORDER BY j.created_at LIMIT 1 FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    Optional<BatchJob> findAssemblable(@Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query("update BatchJob j set j.leaseExpiresAt = :expiresAt, j.updatedAt = :now"
+            + " where j.id = :id and j.leaseOwner = :owner and j.status in ('RUNNING', 'ASSEMBLING')")
+    int renewLease(@Param("id") String id, @Param("owner") String owner,
+                   @Param("expiresAt") LocalDateTime expiresAt, @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Query("update BatchJob j set j.completedRows = j.completedRows + :rows, j.updatedAt = :now where j.id = :id")
+    void addCompletedRows(@Param("id") String id, @Param("rows") int rows, @Param("now") LocalDateTime now);
+}
@@ -3,12 +3,42 @@ package com.repository;
 import com.model.Document;
 import com.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface DocumentRepository extends JpaRepository<Document, Long> {
     List<Document> findByUser(User user);
     List<Document> findByUserId(Long userId);
-}
\ No newline at end of file
+    Optional<Document> findByBatchIdAndBatchRow(String batchId, Integer batchRow);
+
+    // Следующие документы шаблона после afterId (пагинация по ключу); onlyStale — только построенные по другой версии
+    @Query(value = "SELECT id FROM documents WHERE template_id = :templateId AND id > :afterId"
+            + " AND (:onlyStale = FALSE OR template_version IS DISTINCT FROM :version)"
+            + " ORDER BY id LIMIT :limit", nativeQuery = true)
+    List<Long> findIdsForRerender(@Param("templateId") Long templateId, @Param("afterId") long afterId,
+                                  @Param("onlyStale") boolean onlyStale, @Param("version") String version,
+                                  @Param("limit") int limit);
+
+    // То же для выбранных документов: из ids остаются документы шаблона
+    @Query(value = "SELECT id FROM documents WHERE template_id = :templateId AND id IN (:ids)"
+            + " AND (:onlyStale = FALSE OR template_version IS DISTINCT FROM :version)"
+            + " ORDER BY id", nativeQuery = true)
+    List<Long> findIdsForRerender(@Param("templateId") Long templateId, @Param("ids") Collection<Long> ids,
+                                  @Param("onlyStale") boolean onlyStale, @Param("version") String version);
+
+    @Query(value = "SELECT count(*) FROM documents WHERE template_id = :templateId"
+            + " AND (:onlyStale = FALSE OR template_version IS DISTINCT FROM :version)", nativeQuery = true)
+    long countForRerender(@Param("templateId") Long templateId, @Param("onlyStale") boolean onlyStale,
+                          @Param("version") String version);
+
+    // Данные документов одним запросом, без загрузки коллекций по одной
+    @Query(value = "SELECT document_id, field_name, field_value FROM document_data"
+            + " WHERE document_id IN (:ids)", nativeQuery = true)
+    List<Object[]> findDataRows(@Param("ids") Collection<Long> ids);
+}
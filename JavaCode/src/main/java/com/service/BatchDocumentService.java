@@ -1,28 +1,66 @@
 package com.service;
 
+import com.dto.BatchCheckpointRow;
 import com.dto.BatchError;
 import com.dto.BatchGenerationRequest;
 import com.dto.BatchGenerationResult;
 import com.dto.BatchItemResult;
+import com.dto.BatchResultPage;
+import com.dto.BatchRowResults;
+import com.model.BatchChunk;
+import com.model.BatchJob;
 import com.model.Document;
-import com.model.InMemoryMultipartFile;
 import com.model.Template;
 import com.model.User;
 import com.repository.DocumentRepository;
+import com.repository.UserRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.LocalDateTime;
 import java.util.*;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Пакетная генерация по конвейеру:
+ * связывание данных → рендер текста → кодирование в форматы → сжатие в ZIP → выгрузка результата.
+ * Рендер и кодирование выполняются на своих пулах с ограниченными очередями,
+ * текст строки рендерится один раз и используется всеми форматами и записью в БД.
+ * Итоги строк периодически сохраняются контрольными точками (BatchJobService): после перезапуска
+ * приложения пакет продолжается, уже готовые строки выгружаются повторно из файлов во временном каталоге.
+ */
 @Service
 public class BatchDocumentService {
 
+    private static final Logger logger = LoggerFactory.getLogger(BatchDocumentService.class);
+
+    private static final String STAGE_BIND = "bind";
+    private static final String STAGE_RENDER = "render";
+    private static final String STAGE_ENCODE = "encode";
+    private static final String STAGE_COMPRESS = "compress";
+    private static final String STAGE_SINK = "sink";
+
+    private static final String SUMMARY_FILE_NAME = "summary.xlsx";
+
+    // Ключ GenerationScheduler для пакетов без пользователя
+    private static final String GUEST_USER_KEY = "guest";
+
     @Autowired
     private TemplateService templateService;
 
@@ -32,157 +70,969 @@ public class BatchDocumentService {
     @Autowired
     private FileProcessingService fileProcessingService;
 
+    @Autowired
+    private MediaService mediaService;
+
+    @Autowired
+    private PdfConversionService pdfConversionService;
+
+    @Autowired
+    private OutputBufferService outputBufferService;
+
+    @Autowired
+    private List<BatchOutputSink> outputSinks;
+
+    @Autowired
+    private SpreadsheetService spreadsheetService;
+
+    @Autowired
+    private DocumentMergeService documentMergeService;
+
+    @Autowired
+    private ExecutionLanes executionLanes;
+
+    @Autowired
+    private GenerationScheduler generationScheduler;
+
     @Autowired
     private DocumentRepository documentRepository;
 
-    private Map<String, BatchGenerationResult> progressStore = new HashMap<>();
+    @Autowired
+    private BatchJobService batchJobService;
+
+    @Autowired
+    private BatchResultStore resultStore;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Value("${batch.output.sink:zip}")
+    private String defaultOutputSink;
+
+    @Value("${batch.pipeline.render.threads:2}")
+    private int renderThreads;
+
+    @Value("${batch.pipeline.render.queue-capacity:64}")
+    private int renderQueueCapacity;
+
+    @Value("${batch.pipeline.encode.threads:2}")
+    private int encodeThreads;
+
+    @Value("${batch.pipeline.encode.queue-capacity:32}")
+    private int encodeQueueCapacity;
+
+    @Value("${batch.pipeline.max-pending-rows:128}")
+    private int maxPendingRows;
+
+    @Value("${batch.pipeline.dedup.max-entries:100000}")
+    private int dedupMaxEntries;
+
+    @Value("${batch.checkpoint.rows:500}")
+    private int checkpointRows;
+
+    @Value("${batch.distributed.chunk-rows:500}")
+    private int distributedChunkRows;
+
+    // Общий для всех узлов каталог (сетевой диск), в который части пишут файлы строк
+    @Value("${batch.distributed.work-dir:temp/shared}")
+    private String distributedWorkRoot;
+
+    private ThreadPoolExecutor renderExecutor;
+    private ThreadPoolExecutor encodeExecutor;
+    private ScheduledExecutorService leaseHeartbeat;
+
+
+    // Пакеты, которые сейчас выполняются на этом узле, для прогресса без обращения к БД
+    private final Map<String, BatchRun> activeRuns = new ConcurrentHashMap<>();
+
+    // Пакеты и части под арендой этого узла: аренду продлевает leaseHeartbeat, даже если строки не завершаются
+    private final Set<BatchRun> leasedRuns = ConcurrentHashMap.newKeySet();
+
+    // Разобранные запросы распределённых пакетов для частей, выполняемых этим узлом
+    private final Map<String, JobContext> chunkContexts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JobContext> eldest) {
+            return size() > 4;
+        }
+    };
+
+    @PostConstruct
+    public void initPipeline() {
+        renderExecutor = BoundedExecutors.newBlockingExecutor(
+          "batch-render-", renderThreads, renderQueueCapacity, Thread.NORM_PRIORITY - 1);
+        encodeExecutor = BoundedExecutors.newBlockingExecutor(
+          "batch-encode-", encodeThreads, encodeQueueCapacity, Thread.NORM_PRIORITY - 1);
+
+        long heartbeatMillis = Math.max(1000, TimeUnit.SECONDS.toMillis(batchJobService.getLeaseSeconds()) / 3);
+        leaseHeartbeat = Executors.newSingleThreadScheduledExecutor(
+          BoundedExecutors.namedThreadFactory("batch-lease-", Thread.NORM_PRIORITY));
+        leaseHeartbeat.scheduleWithFixedDelay(this::renewLeases, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdownPipeline() {
+        renderExecutor.shutdownNow();
+        encodeExecutor.shutdownNow();
+        leaseHeartbeat.shutdownNow();
+    }
 
     public BatchGenerationResult generateBatch(BatchGenerationRequest request, User user) {
         String batchId = UUID.randomUUID().toString();
+
+        Template template = templateService.getTemplateById(request.getTemplateId())
+          .orElseThrow(() -> new RuntimeException("Template not found"));
+
+        BatchOutputSink outputSink = resolveOutputSink(request.getOutputSink());
+        String mergeFormat = normalizeMergeFormat(request);
+
+        boolean offPeak = isOffPeak(request);
+        // Ошибки в изображениях пакета видны сразу, а не при разборе первой строки
+        mediaService.library(request.getMedia());
+        if (request.getStartAt() != null || offPeak) {
+            // Пакет ждёт своего времени или окна низкой нагрузки; выпускает его BatchScheduler
+            LocalDateTime notBefore = request.getStartAt() != null ? request.getStartAt() : LocalDateTime.now();
+            batchJobService.createScheduledJob(batchId, request, user, template, notBefore, offPeak);
+            BatchGenerationResult result = new BatchGenerationResult();
+            result.setBatchId(batchId);
+            result.setStatus(BatchJob.STATUS_SCHEDULED);
+            result.setTotalDocuments(request.getDataRows().size());
+            result.setOutputSink(outputSink.getName());
+            return result;
+        }
+
+        if (request.isDistributed()) {
+            // Части пакета разбирают узлы (DistributedBatchWorker), ответ не ждёт генерации
+            batchJobService.createDistributedJob(batchId, request, user, template, distributedChunkRows);
+            BatchGenerationResult result = new BatchGenerationResult();
+            result.setBatchId(batchId);
+            result.setStatus(BatchJob.STATUS_RUNNING);
+            result.setTotalDocuments(request.getDataRows().size());
+            result.setOutputSink(outputSink.getName());
+            return result;
+        }
+
+        // Слот пакетов нужен только синхронному запуску: отложенные и распределённые пакеты
+        // берут его, когда действительно выполняются
+        try (GenerationScheduler.Permit permit = generationScheduler.acquireBulk(userKey(user))) {
+            batchJobService.createJob(batchId, request, user, template);
+            return runBatch(batchId, request, user, template, outputSink, mergeFormat, List.of(), localWorkDir(batchId));
+        }
+    }
+
+    /**
+     * Запускает отложенный пакет, выпущенный BatchScheduler
+     */
+    void runScheduledBatch(BatchJob job) {
+        String batchId = job.getId();
+        try {
+            JobContext context = loadJobContext(job);
+            if (context == null) {
+                return;
+            }
+            try (GenerationScheduler.Permit permit = acquireBulkPermit(batchId, context.user, () -> batchJobService.renewJobLease(batchId))) {
+                logger.info("Starting scheduled batch {} with {} rows", batchId, job.getTotalRows());
+                runBatch(batchId, context.request, context.user, context.template,
+                  resolveOutputSink(context.request.getOutputSink()), normalizeMergeFormat(context.request),
+                  List.of(), localWorkDir(batchId));
+            }
+        } catch (BatchLeaseLostException e) {
+            logger.warn("Scheduled batch {} was taken over by another node: {}", batchId, e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to run scheduled batch {}", batchId, e);
+            batchJobService.failJob(batchId, e.getMessage());
+        }
+    }
+
+    /**
+     * Продолжает пакет, узел которого перестал продлевать аренду
+     */
+    void resumeBatch(BatchJob job) {
+        String batchId = job.getId();
+        try {
+            JobContext context = loadJobContext(job);
+            if (context == null) {
+                deleteDirectory(localWorkDir(batchId).toFile());
+                return;
+            }
+            try (GenerationScheduler.Permit permit = acquireBulkPermit(batchId, context.user, () -> batchJobService.renewJobLease(batchId))) {
+                List<BatchCheckpointRow> checkpoint = batchJobService.loadCheckpoint(batchId, localWorkDir(batchId));
+
+                logger.info("Resuming batch {} from row {} of {}", batchId, checkpoint.size(), job.getTotalRows());
+                runBatch(batchId, context.request, context.user, context.template,
+                  resolveOutputSink(context.request.getOutputSink()), normalizeMergeFormat(context.request),
+                  checkpoint, localWorkDir(batchId));
+            }
+        } catch (BatchLeaseLostException e) {
+            logger.warn("Batch {} was taken over by another node: {}", batchId, e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to resume batch {}", batchId, e);
+            batchJobService.failJob(batchId, e.getMessage());
+        }
+    }
+
+    /**
+     * Выполняет часть распределённого пакета: файлы строк пишутся в общий каталог пакета,
+     * итоги строк сохраняются в части и используются при сборке
+     */
+    void runChunk(BatchChunk chunk) {
+        String batchId = chunk.getJobId();
+        BatchRun run = null;
+        GenerationScheduler.Permit permit = null;
+        try {
+            JobContext context = chunkContext(batchId);
+            if (context == null) {
+                return;
+            }
+            // Части распределённого пакета, как и остальные пакеты, идут под квотой владельца и лимитом слотов пакетов
+            permit = acquireBulkPermit(batchId, context.user, () -> batchJobService.renewChunkLease(chunk.getId()));
+            BatchGenerationRequest request = context.request;
+            String mergeFormat = normalizeMergeFormat(request);
+            List<String> archiveFormats = archiveFormats(request, mergeFormat);
+
+            run = new BatchRun(batchId, request, context.user, context.template,
+              allFormats(archiveFormats, mergeFormat), archiveFormats, distributedWorkDir(batchId).toString());
+            run.checkpointing = false;
+            run.leaseRenewal = () -> batchJobService.renewChunkLease(chunk.getId());
+            leasedRuns.add(run);
+            run.media = mediaService.library(request.getMedia());
+            Files.createDirectories(Paths.get(run.tempDir));
+
+            run.rowsByContentKey = contentIndex(dedupMaxEntries);
+            Deque<RowTask> pending = new ArrayDeque<>();
+            for (int index = chunk.getStartRow(); index < chunk.getEndRow(); index++) {
+                RowTask task = bindRow(run, request.getDataRows().get(index), index);
+                if (pending.size() >= maxPendingRows) {
+                    sinkRow(run, pending.poll());
+                }
+                pending.add(task);
+            }
+            while (!pending.isEmpty()) {
+                sinkRow(run, pending.poll());
+            }
+
+            if (!batchJobService.completeChunk(chunk.getId(), run.checkpointRows)) {
+                logger.warn("Chunk {} of batch {} was taken over by another node", chunk.getId(), batchId);
+            }
+        } catch (BatchLeaseLostException e) {
+            logger.warn("Chunk {} of batch {} was taken over by another node: {}", chunk.getId(), batchId, e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to process chunk {} of batch {}", chunk.getId(), batchId, e);
+            batchJobService.releaseChunk(chunk.getId());
+        } finally {
+            if (run != null) {
+                leasedRuns.remove(run);
+            }
+            if (permit != null) {
+                permit.close();
+            }
+        }
+    }
+
+    /**
+     * Собирает распределённый пакет из итогов частей: строки не рендерятся, их файлы
+     * выгружаются из общего каталога так же, как строки контрольных точек при продолжении
+     */
+    void assembleBatch(BatchJob job) {
+        String batchId = job.getId();
+        try {
+            JobContext context = loadJobContext(job);
+            if (context == null) {
+                deleteDirectory(distributedWorkDir(batchId).toFile());
+                return;
+            }
+            List<BatchCheckpointRow> rows = batchJobService.loadChunkRows(batchId, distributedWorkDir(batchId));
+            if (rows == null) {
+                logger.warn("Batch {} has chunks without files in {}, they are queued again",
+                  batchId, distributedWorkDir(batchId));
+                return;
+            }
+
+            try (GenerationScheduler.Permit permit =
+                   acquireBulkPermit(batchId, context.user, () -> batchJobService.renewJobLease(batchId))) {
+                logger.info("Assembling batch {} from {} rows", batchId, rows.size());
+                runBatch(batchId, context.request, context.user, context.template,
+                  resolveOutputSink(context.request.getOutputSink()), normalizeMergeFormat(context.request),
+                  rows, distributedWorkDir(batchId));
+            }
+        } catch (BatchLeaseLostException e) {
+            logger.warn("Assembly of batch {} was taken over by another node: {}", batchId, e.getMessage());
+        } catch (Exception e) {
+            logger.error("Failed to assemble batch {}", batchId, e);
+            batchJobService.failJob(batchId, e.getMessage());
+        }
+    }
+
+    // Фоновый пакет (или его часть) занимает слот пакетов владельца, как синхронный. Отказ планировщика
+    // (очередь или таймаут) — повод ждать дальше: аренда пакета или части продлевается перед каждой попыткой
+    private GenerationScheduler.Permit acquireBulkPermit(String batchId, User user, Runnable leaseRenewal) {
+        String userKey = userKey(user);
+        while (true) {
+            leaseRenewal.run();
+            try {
+                return generationScheduler.acquireBulk(userKey);
+            } catch (GenerationRejectedException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Узел останавливается: пакет продолжит другой узел, когда истечёт аренда
+                    throw new BatchLeaseLostException("Interrupted while waiting for a slot for batch " + batchId);
+                }
+                try {
+                    TimeUnit.SECONDS.sleep(Math.max(1, Math.min(e.getRetryAfterSeconds(), batchJobService.getLeaseSeconds() / 3)));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new BatchLeaseLostException("Interrupted while waiting for a slot for batch " + batchId);
+                }
+            }
+        }
+    }
+
+    private static String userKey(User user) {
+        return user != null ? user.getUsername() : GUEST_USER_KEY;
+    }
+
+    // Запрос, шаблон и пользователь сохранённого пакета; null, если шаблон изменился и пакет завершён с ошибкой
+    private JobContext loadJobContext(BatchJob job) {
+        Template template = batchJobService.findTemplate(job.getTemplateId()).orElse(null);
+        if (template == null || !template.getVersionKey().equals(job.getTemplateVersion())) {
+            batchJobService.failJob(job.getId(), "Template was changed or deleted before the batch could finish");
+            return null;
+        }
+        BatchGenerationRequest request = batchJobService.readRequest(job);
+        User user = job.getUserId() != null ? userRepository.findById(job.getUserId()).orElse(null) : null;
+        return new JobContext(request, user, template);
+    }
+
+    // Части одного пакета идут подряд: разобранный запрос пакета переиспользуется между ними
+    private JobContext chunkContext(String batchId) {
+        synchronized (chunkContexts) {
+            JobContext cached = chunkContexts.get(batchId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        BatchJob job = batchJobService.findJob(batchId).orElse(null);
+        if (job == null || !BatchJob.STATUS_RUNNING.equals(job.getStatus())) {
+            return null;
+        }
+        JobContext context = loadJobContext(job);
+        if (context != null) {
+            synchronized (chunkContexts) {
+                chunkContexts.put(batchId, context);
+            }
+        }
+        return context;
+    }
+
+    private Path localWorkDir(String batchId) {
+        return Paths.get("temp", batchId);
+    }
+
+    private Path distributedWorkDir(String batchId) {
+        return Paths.get(distributedWorkRoot, batchId);
+    }
+
+    private BatchGenerationResult runBatch(String batchId, BatchGenerationRequest request, User user,
+                                           Template template, BatchOutputSink outputSink, String mergeFormat,
+                                           List<BatchCheckpointRow> checkpoint, Path workDir) {
+        try {
+            return runPipeline(batchId, request, user, template, outputSink, mergeFormat, checkpoint, workDir);
+        } catch (BatchLeaseLostException e) {
+            // Пакет продолжает другой узел
+            throw e;
+        } catch (RuntimeException e) {
+            batchJobService.failJob(batchId, e.getMessage());
+            deleteDirectory(workDir.toFile());
+            throw e;
+        } finally {
+            // Итог к этому моменту уже в resultStore или в БД
+            BatchRun run = activeRuns.remove(batchId);
+            if (run != null) {
+                leasedRuns.remove(run);
+            }
+        }
+    }
+
+    private BatchGenerationResult runPipeline(String batchId, BatchGenerationRequest request, User user,
+                                              Template template, BatchOutputSink outputSink, String mergeFormat,
+                                              List<BatchCheckpointRow> checkpoint, Path workDir) {
         BatchGenerationResult result = new BatchGenerationResult();
         result.setBatchId(batchId);
         result.setTotalDocuments(request.getDataRows().size());
 
-        List<BatchItemResult> results = new ArrayList<>();
-        List<BatchError> errors = new ArrayList<>();
+        String tempDir = workDir.toString();
+        new File(tempDir).mkdirs();
 
-        Template template = templateService.getTemplateById(request.getTemplateId())
-          .orElseThrow(() -> new RuntimeException("Template not found"));
+        List<String> archiveFormats = archiveFormats(request, mergeFormat);
+        List<String> formats = allFormats(archiveFormats, mergeFormat);
 
-        String tempDir = "temp/" + batchId;
-        new File(tempDir).mkdirs();
+        BatchRun run = new BatchRun(batchId, request, user, template, formats, archiveFormats, tempDir);
+        run.rows = new BatchRowResults(request.getDataRows().size());
+        run.leaseRenewal = () -> batchJobService.renewJobLease(batchId);
+        run.media = mediaService.library(request.getMedia());
+        activeRuns.put(batchId, run);
+        leasedRuns.add(run);
 
-        int successCount = 0;
-        int index = 0;
+        // Одинаковые строки рендерятся один раз: ключ — хеш (версия шаблона, данные строки, форматы)
+        run.rowsByContentKey = contentIndex(dedupMaxEntries);
+        // Строки выгружаются строго по порядку; окно ограничивает число незавершённых строк
+        Deque<RowTask> pending = new ArrayDeque<>();
 
-        for (Map<String, String> rowData : request.getDataRows()) {
-            BatchItemResult itemResult = new BatchItemResult();
-            itemResult.setRowIndex(index);
+        if (request.isSpreadsheetSummary()) {
+            run.summary = spreadsheetService.openSummary(summaryColumns(template, request.getDataRows()));
+        }
+        if (mergeFormat != null) {
+            openMerge(run, mergeFormat);
+        }
 
-            try {
-                String documentName = generateDocumentName(request.getName(), rowData, index);
-                itemResult.setDocumentName(documentName);
+        String outputLocation = null;
+        try {
+            run.output = outputSink.open(batchId);
+            // Строки из контрольных точек не рендерятся заново: их файлы уже лежат в tempDir
+            replayCheckpoint(run, checkpoint);
+            int index = checkpoint.size();
 
-                if (!request.isGuestMode() && user != null) {
-                    Document document = documentService.generateDocument(documentName, template, user, rowData);
-                    itemResult.setDocumentId(document.getId().toString());
+            for (Map<String, String> rowData : request.getDataRows().subList(index, request.getDataRows().size())) {
+                long bindStart = System.nanoTime();
+                RowTask task = bindRow(run, rowData, index);
+                run.timings.add(STAGE_BIND, System.nanoTime() - bindStart);
+
+                if (pending.size() >= maxPendingRows) {
+                    sinkRow(run, pending.poll());
                 }
+                pending.add(task);
+                index++;
+            }
+
+            while (!pending.isEmpty()) {
+                sinkRow(run, pending.poll());
+            }
+            saveCheckpoint(run);
+
+            if (run.summary != null && run.outputError == null) {
+                addSummary(run);
+                result.setSummaryFileName(SUMMARY_FILE_NAME);
+            }
+            if (run.outputError == null) {
+                outputLocation = run.output.complete();
+            }
+        } catch (IOException e) {
+            run.outputError = e;
+        } finally {
+            if (run.output != null) {
+                run.timings.add(STAGE_COMPRESS, run.output.getCompressNanos());
+                if (outputLocation == null) {
+                    run.output.abort();
+                }
+            }
+        }
+
+        // Если выгрузка упала посреди пакета, оставшиеся строки всё равно попадают в результат
+        while (!pending.isEmpty()) {
+            sinkRow(run, pending.poll());
+        }
+
+        if (run.outputError != null) {
+            BatchError error = new BatchError();
+            error.setRowIndex(-1);
+            error.setErrorMessage("Failed to write batch output (" + outputSink.getName() + "): "
+              + run.outputError.getMessage());
+            run.errors.add(error);
+        }
+        closeSummary(run);
+        finishMerge(run, batchId, result);
+        deleteDirectory(workDir.toFile());
+
+        result.setSuccessfulDocuments(run.successCount);
+        result.setFailedDocuments(request.getDataRows().size() - run.successCount);
+        result.setRowErrorCount(run.rows.getErrorCount());
+        result.setRows(run.rows);
+        result.setErrors(run.errors);
+        result.setOutputSink(outputSink.getName());
+        result.setOutputLocation(outputLocation);
+        if (ZipFileOutputSink.NAME.equals(outputSink.getName())) {
+            result.setZipFileName(outputLocation);
+        }
+        result.setStageTimingsMillis(run.timings.toMillis());
+        result.setStatus(BatchJob.STATUS_COMPLETED);
+        result.setCompletedDocuments(request.getDataRows().size());
+
+        batchJobService.completeJob(batchId, result);
+        resultStore.put(result);
+
+        return result;
+    }
+
+    // Стадия 1: имя документа, ключ содержимого и запуск рендера (или переиспользование дубликата)
+    private RowTask bindRow(BatchRun run, Map<String, String> rowData, int index) {
+        String documentName;
+        try {
+            documentName = generateDocumentName(run.request.getName(), rowData, index);
+        } catch (Exception e) {
+            return new RowTask(index, rowData, null, CompletableFuture.failedFuture(e), null, null);
+        }
+
+        String contentKey = RenderKeys.contentKey(run.template, rowData, String.join(",", run.formats));
+        ContentRow original = run.rowsByContentKey.get(contentKey);
+        if (original != null) {
+            CompletableFuture<EncodedRow> encoded = original.encoded != null
+              ? original.encoded
+              : reuseFiles(run, rowData, original);
+            return new RowTask(index, rowData, documentName, encoded, original.rowIndex, null);
+        }
+
+        CompletableFuture<EncodedRow> encoded = CompletableFuture
+          .supplyAsync(() -> bulkTimed(run, STAGE_RENDER,
+            () -> documentService.generateContent(run.template, rowData)), renderExecutor)
+          .thenApplyAsync(text -> bulkTimed(run, STAGE_ENCODE,
+            () -> encodeRow(run, documentName, rowData, text)), encodeExecutor);
+
+        ContentRow content = new ContentRow(contentKey, index, encoded);
+        run.rowsByContentKey.put(contentKey, content);
+        return new RowTask(index, rowData, documentName, encoded, null, content);
+    }
+
+    // Дубликат уже выгруженной строки: файлы берутся у неё, текст для БД и сводки рендерится заново —
+    // это дешёвая подстановка, дорогое кодирование не повторяется
+    private CompletableFuture<EncodedRow> reuseFiles(BatchRun run, Map<String, String> rowData, ContentRow original) {
+        Map<String, Path> files = original.files;
+        Path contentFile = original.contentFile;
+        boolean needsText = (!run.request.isGuestMode() && run.user != null) || run.request.isSpreadsheetSummary();
+        if (!needsText) {
+            return CompletableFuture.completedFuture(EncodedRow.reusing(null, files, contentFile));
+        }
+        return CompletableFuture.supplyAsync(() -> bulkTimed(run, STAGE_RENDER,
+          () -> EncodedRow.reusing(documentService.generateContent(run.template, rowData), files, contentFile)),
+          renderExecutor);
+    }
+
+    // Индекс содержимого строк с ограниченным числом записей: при переполнении дедупликация
+    // забывает самые давние строки, их повторы просто рендерятся заново
+    private static Map<String, ContentRow> contentIndex(int maxEntries) {
+        return new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ContentRow> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // Стадия 3: все форматы строки из одного отрендеренного текста; PDF переиспользует DOCX
+    private EncodedRow encodeRow(BatchRun run, String documentName, Map<String, String> data,
+                                 String text) throws IOException {
+        EncodedRow row = new EncodedRow(text);
+        boolean shareDocx = run.formats.contains("docx") && run.formats.contains("pdf");
+        byte[] docxContent = null;
+
+        for (String format : run.formats) {
+            OutputBuffer buffer = outputBufferService.newBuffer();
+            try {
+                switch (format) {
+                    case "docx":
+                        if (shareDocx) {
+                            docxContent = renderDocx(run, data, text, docxContent);
+                            buffer.write(docxContent);
+                        } else {
+                            fileProcessingService.generateDocx(run.template, data, text, buffer, run.media);
+                        }
+                        break;
+
+                    case "pdf":
+                        docxContent = renderDocx(run, data, text, docxContent);
+                        pdfConversionService.convertDocxToPdfForBatch(docxContent, buffer);
+                        break;
 
-                List<String> formats = request.getFormats();
-                if (formats == null || formats.isEmpty()) {
-                    formats = Arrays.asList("txt");
+                    case "xlsx":
+                        spreadsheetService.generateXlsx(data, text, buffer);
+                        break;
+
+                    case "txt":
+                    default:
+                        buffer.write(text.getBytes(StandardCharsets.UTF_8));
+                        break;
                 }
 
-                for (String format : formats) {
-                    generateAndSaveFile(documentName, template, rowData, format, tempDir);
+                Path target = Paths.get(run.tempDir, documentName + "." + format);
+                buffer.moveTo(target);
+                row.files.put(format, target);
+            } finally {
+                buffer.release();
+            }
+        }
+
+        // Текст для сводной таблицы, если строку выгрузит продолжение или сборка пакета
+        if (run.request.isSpreadsheetSummary()) {
+            row.contentFile = row.files.get("txt");
+            if (row.contentFile == null) {
+                row.contentFile = Paths.get(run.tempDir, documentName + ".content.txt");
+                Files.writeString(row.contentFile, text);
+            }
+        }
+
+        return row;
+    }
+
+    private byte[] renderDocx(BatchRun run, Map<String, String> data, String text,
+                              byte[] alreadyRendered) throws IOException {
+        if (alreadyRendered != null) {
+            return alreadyRendered;
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        fileProcessingService.generateDocx(run.template, data, text, outputStream, run.media);
+        return outputStream.toByteArray();
+    }
+
+    // Стадии 4–5: запись в БД, добавление файлов в архив (сжатие идёт на пуле архиватора) и итог строки
+    private void sinkRow(BatchRun run, RowTask task) {
+        BatchItemResult itemResult = new BatchItemResult();
+        itemResult.setRowIndex(task.rowIndex);
+        itemResult.setDocumentName(task.documentName);
+        itemResult.setDuplicateOfRow(task.duplicateOfRow);
+
+        EncodedRow encoded = null;
+        String errorMessage = null;
+        BatchError error = null;
+
+        try {
+            encoded = task.encoded.join();
+            long sinkStart = System.nanoTime();
+
+            try {
+                if (!run.request.isGuestMode() && run.user != null) {
+                    Document document = documentService.saveBatchDocument(run.batchId, task.rowIndex,
+                      task.documentName, run.template, run.user, task.rowData, encoded.text);
+                    itemResult.setDocumentId(document.getId().toString());
                 }
 
-                itemResult.setStatus("SUCCESS");
-                successCount++;
+                writeRowFiles(run, task.documentName, encoded.files);
+            } finally {
+                run.timings.add(STAGE_SINK, System.nanoTime() - sinkStart);
+            }
+
+            itemResult.setStatus("SUCCESS");
+            run.successCount++;
+
+        } catch (Exception e) {
+            itemResult.setStatus("FAILED");
+
+            errorMessage = rootCause(e).getMessage();
+            error = new BatchError();
+            error.setRowIndex(task.rowIndex);
+            error.setErrorMessage(errorMessage);
+        }
+
+        recordRow(run, itemResult, errorMessage);
+
+        // Выгруженная строка больше не держит результат в памяти: для дубликатов остаются пути к файлам
+        if (task.content != null) {
+            if (encoded != null) {
+                task.content.release(encoded);
+            } else {
+                run.rowsByContentKey.remove(task.content.contentKey, task.content);
+            }
+        }
+
+        if (run.summary != null) {
+            run.summary.addRow(task.rowIndex, task.documentName, itemResult.getStatus(),
+              itemResult.getDocumentId(), errorMessage, task.rowData, encoded != null ? encoded.text : null);
+        }
+
+        BatchCheckpointRow checkpointRow = new BatchCheckpointRow();
+        checkpointRow.setItem(itemResult);
+        checkpointRow.setError(error);
+        if (encoded != null) {
+            Map<String, String> files = new LinkedHashMap<>();
+            encoded.files.forEach((format, file) -> files.put(format, file.getFileName().toString()));
+            checkpointRow.setFiles(files);
+            if (encoded.contentFile != null) {
+                checkpointRow.setContentFile(encoded.contentFile.getFileName().toString());
+            }
+        }
+        run.checkpointRows.add(checkpointRow);
+        if (run.checkpointing && run.checkpointRows.size() >= checkpointRows) {
+            saveCheckpoint(run);
+        }
+        renewLease(run);
+    }
+
+    // Итог строки в компактном виде; части распределённого пакета отдают итоги через контрольные строки
+    private void recordRow(BatchRun run, BatchItemResult item, String errorMessage) {
+        run.completedCount++;
+        if (run.rows == null) {
+            return;
+        }
+        run.rows.setRow(item.getRowIndex(), item.getDocumentName(), errorMessage == null,
+          item.getDocumentId(), item.getDuplicateOfRow());
+        if (errorMessage != null) {
+            run.rows.addError(item.getRowIndex(), errorMessage);
+        }
+    }
+
+    // Аренду продлевает leaseHeartbeat; поток выгрузки только узнаёт о её потере (BatchLeaseLostException)
+    private void renewLease(BatchRun run) {
+        if (run.leaseLost != null) {
+            throw run.leaseLost;
+        }
+    }
+
+    // Раз в треть срока аренды: продлевает аренду всех пакетов и частей узла, независимо от хода строк.
+    // Временная ошибка БД не считается потерей аренды — повтор через такт
+    private void renewLeases() {
+        for (BatchRun run : leasedRuns) {
+            if (run.leaseRenewal == null || run.leaseLost != null) {
+                continue;
+            }
+            try {
+                run.leaseRenewal.run();
+            } catch (BatchLeaseLostException e) {
+                run.leaseLost = e;
+            } catch (RuntimeException e) {
+                logger.warn("Failed to renew lease of batch {}: {}", run.batchId, e.getMessage());
+            }
+        }
+    }
+
+    // Файлы успешной строки: в выгрузку по форматам архива и в общий документ
+    private void writeRowFiles(BatchRun run, String documentName, Map<String, Path> files) {
+        if (run.output != null && run.outputError == null) {
+            for (String format : run.archiveFormats) {
+                addToOutput(run, documentName + "." + format, files.get(format));
+            }
+        }
+        if (run.merge != null && run.mergeError == null) {
+            appendToMerge(run, files.get(run.mergeFormat));
+        }
+    }
 
-            } catch (Exception e) {
-                itemResult.setStatus("FAILED");
+    // Итоги строк из контрольных точек попадают в результат, выгрузку, сборку и сводку как при первом проходе
+    private void replayCheckpoint(BatchRun run, List<BatchCheckpointRow> checkpoint) throws IOException {
+        for (BatchCheckpointRow row : checkpoint) {
+            BatchItemResult item = row.getItem();
+            recordRow(run, item, row.getError() != null ? row.getError().getErrorMessage() : null);
 
-                BatchError error = new BatchError();
-                error.setRowIndex(index);
-                error.setErrorMessage(e.getMessage());
-                error.setData(rowData);
-                errors.add(error);
+            if (row.getError() == null) {
+                Map<String, Path> files = new LinkedHashMap<>();
+                row.getFiles().forEach((format, file) -> files.put(format, Paths.get(run.tempDir, file)));
+                writeRowFiles(run, item.getDocumentName(), files);
+                run.successCount++;
             }
 
-            results.add(itemResult);
-            index++;
+            if (run.summary != null) {
+                String content = row.getContentFile() != null
+                  ? Files.readString(Paths.get(run.tempDir, row.getContentFile()))
+                  : null;
+                run.summary.addRow(item.getRowIndex(), item.getDocumentName(), item.getStatus(),
+                  item.getDocumentId(), row.getError() != null ? row.getError().getErrorMessage() : null,
+                  run.request.getDataRows().get(item.getRowIndex()), content);
+            }
+            renewLease(run);
         }
+        run.checkpointStart = checkpoint.size();
+    }
 
-        String zipFileName = batchId + ".zip";
-        String zipPath = "temp/" + zipFileName;
+    // Ошибка записи контрольной точки не останавливает пакет: строки уйдут в следующую
+    private void saveCheckpoint(BatchRun run) {
+        if (!run.checkpointing || run.checkpointRows.isEmpty()) {
+            return;
+        }
+        try {
+            batchJobService.saveCheckpoint(run.batchId, run.checkpointStart, run.checkpointRows);
+            run.checkpointStart += run.checkpointRows.size();
+            run.checkpointRows.clear();
+        } catch (BatchLeaseLostException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to save checkpoint for batch {}: {}", run.batchId, e.getMessage());
+        }
+    }
 
+    // Сводная таблица пишется в архив после всех строк; SXSSF держит в памяти только окно строк
+    private void addSummary(BatchRun run) {
+        OutputBuffer buffer = outputBufferService.newBuffer();
         try {
-            createZipArchive(tempDir, zipPath);
-            deleteDirectory(new File(tempDir));
+            run.summary.write(buffer);
+            Path target = Paths.get(run.tempDir, SUMMARY_FILE_NAME);
+            buffer.moveTo(target);
+            addToOutput(run, SUMMARY_FILE_NAME, target);
         } catch (IOException e) {
             BatchError error = new BatchError();
             error.setRowIndex(-1);
-            error.setErrorMessage("Failed to create ZIP archive: " + e.getMessage());
-            errors.add(error);
+            error.setErrorMessage("Failed to create spreadsheet summary: " + e.getMessage());
+            run.errors.add(error);
+        } finally {
+            buffer.release();
         }
+    }
 
-        result.setSuccessfulDocuments(successCount);
-        result.setFailedDocuments(request.getDataRows().size() - successCount);
-        result.setResults(results);
-        result.setErrors(errors);
-        result.setZipFileName(zipFileName);
+    private void openMerge(BatchRun run, String mergeFormat) {
+        run.mergeFormat = mergeFormat;
+        try {
+            run.merge = documentMergeService.openMerge(mergeFormat, Paths.get(run.tempDir));
+        } catch (IOException e) {
+            run.mergeError = e;
+        }
+    }
 
-        progressStore.put(batchId, result);
+    // Документы дописываются в общий файл в порядке строк, по мере их выгрузки
+    private void appendToMerge(BatchRun run, Path file) {
+        try {
+            run.merge.append(file);
+            run.mergedCount++;
+        } catch (IOException e) {
+            run.mergeError = e;
+        }
+    }
 
-        return result;
+    private void finishMerge(BatchRun run, String batchId, BatchGenerationResult result) {
+        if (run.mergeFormat == null) {
+            return;
+        }
+
+        String mergedFileName = batchId + "-merged." + run.mergeFormat;
+        try {
+            if (run.mergeError == null && run.mergedCount > 0) {
+                run.merge.finish(Paths.get("temp", mergedFileName));
+                result.setMergedFileName(mergedFileName);
+            }
+        } catch (IOException e) {
+            run.mergeError = e;
+        } finally {
+            if (run.merge != null) {
+                try {
+                    run.merge.close();
+                } catch (IOException e) {
+                    // Временные файлы сборки удаляются вместе с каталогом пакета
+                }
+            }
+        }
+
+        if (run.mergeError != null) {
+            BatchError error = new BatchError();
+            error.setRowIndex(-1);
+            error.setErrorMessage("Failed to merge documents: " + run.mergeError.getMessage());
+            run.errors.add(error);
+        }
     }
 
-    private String generateDocumentName(String baseName, Map<String, String> data, int index) {
-        if (baseName == null || baseName.isEmpty()) {
-            return "document_" + (index + 1);
+    private void closeSummary(BatchRun run) {
+        if (run.summary == null) {
+            return;
+        }
+        try {
+            run.summary.close();
+        } catch (IOException e) {
+            // Временные файлы окна останутся до очистки temp
         }
+    }
 
-        String name = baseName;
-        for (Map.Entry<String, String> entry : data.entrySet()) {
-            name = name.replace("${" + entry.getKey() + "}", entry.getValue());
+    // Колонки сводной таблицы: поля шаблона, а если их нет — поля первой строки
+    private List<String> summaryColumns(Template template, List<Map<String, String>> dataRows) {
+        Set<String> columns = new TreeSet<>();
+        if (template.getFields() != null && !template.getFields().isEmpty()) {
+            columns.addAll(template.getFields().keySet());
+        } else if (!dataRows.isEmpty()) {
+            columns.addAll(dataRows.get(0).keySet());
         }
+        return new ArrayList<>(columns);
+    }
 
-        return name + "_" + (index + 1);
+    private void addToOutput(BatchRun run, String entryName, Path file) {
+        try {
+            run.output.add(entryName, file);
+        } catch (IOException e) {
+            run.outputError = e;
+        }
+    }
+
+    // В архив попадают запрошенные форматы; формат сборки кодируется и без них
+    private List<String> archiveFormats(BatchGenerationRequest request, String mergeFormat) {
+        return mergeFormat != null && (request.getFormats() == null || request.getFormats().isEmpty())
+          ? List.of()
+          : normalizeFormats(request.getFormats());
     }
 
-    private void generateAndSaveFile(String documentName, Template template,
-                                     Map<String, String> data, String format,
-                                     String outputDir) throws Exception {
+    private List<String> allFormats(List<String> archiveFormats, String mergeFormat) {
+        List<String> formats = new ArrayList<>(archiveFormats);
+        if (mergeFormat != null && !formats.contains(mergeFormat)) {
+            formats.add(mergeFormat);
+        }
+        return formats;
+    }
 
-        byte[] fileContent;
-        String fileName = documentName + "." + format;
+    private String normalizeMergeFormat(BatchGenerationRequest request) {
+        String mergeFormat = request.getMergeFormat() != null ? request.getMergeFormat().toLowerCase() : null;
+        if (mergeFormat != null && !DocumentMergeService.isSupported(mergeFormat)) {
+            throw new RuntimeException("Unsupported merge format: " + request.getMergeFormat());
+        }
+        return mergeFormat;
+    }
 
-        switch (format.toLowerCase()) {
-            case "docx":
-                if (template.getDocxFileContent() != null) {
-                    MultipartFile templateFile = new InMemoryMultipartFile(
-                      template.getOriginalFileName(),
-                      "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
-                      template.getDocxFileContent()
-                    );
-                    fileContent = fileProcessingService.generateDocxFromTemplate(templateFile, data);
-                } else {
-                    fileContent = fileProcessingService.generateDocxFromTextTemplate(template.getContent(), data);
-                }
-                break;
+    private boolean isOffPeak(BatchGenerationRequest request) {
+        String executionClass = request.getExecutionClass();
+        if (executionClass == null || executionClass.isBlank() || "immediate".equalsIgnoreCase(executionClass)) {
+            return false;
+        }
+        if (BatchScheduler.OFF_PEAK.equalsIgnoreCase(executionClass)) {
+            return true;
+        }
+        throw new RuntimeException("Unknown execution class: " + executionClass);
+    }
 
-            case "pdf":
-                String textContent = documentService.generateContent(template.getContent(), data);
-                fileContent = fileProcessingService.generatePdfDocument(textContent);
-                break;
+    private BatchOutputSink resolveOutputSink(String requested) {
+        String name = requested != null && !requested.isBlank() ? requested.toLowerCase() : defaultOutputSink;
+        return outputSinks.stream()
+          .filter(sink -> sink.getName().equals(name))
+          .findFirst()
+          .orElseThrow(() -> new RuntimeException("Unknown output sink: " + name));
+    }
 
-            case "txt":
-            default:
-                fileContent = documentService.generateContent(template.getContent(), data).getBytes();
-                break;
+    // Работа стадии в пакетной полосе: ждёт места, если интерактивные запросы замедлились
+    private <T> T bulkTimed(BatchRun run, String stage, StageTask<T> work) {
+        try {
+            executionLanes.enterBulk();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
         }
 
-        Files.write(Paths.get(outputDir, fileName), fileContent);
+        long start = System.nanoTime();
+        try {
+            return work.run();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            run.timings.add(stage, System.nanoTime() - start);
+            executionLanes.exitBulk();
+        }
     }
 
-    private void createZipArchive(String sourceDir, String zipPath) throws IOException {
-        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipPath))) {
-            java.nio.file.Path sourcePath = Paths.get(sourceDir);
+    private Throwable rootCause(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
 
-            Files.walk(sourcePath)
-              .filter(path -> !Files.isDirectory(path))
-              .forEach(path -> {
-                  ZipEntry zipEntry = new ZipEntry(sourcePath.relativize(path).toString());
-                  try {
-                      zos.putNextEntry(zipEntry);
-                      Files.copy(path, zos);
-                      zos.closeEntry();
-                  } catch (IOException e) {
-                      throw new RuntimeException(e);
-                  }
-              });
+    private List<String> normalizeFormats(List<String> formats) {
+        if (formats == null || formats.isEmpty()) {
+            return List.of("txt");
+        }
+        Set<String> normalized = new LinkedHashSet<>();
+        for (String format : formats) {
+            normalized.add(format.toLowerCase());
         }
+        return new ArrayList<>(normalized);
+    }
+
+    private String generateDocumentName(String baseName, Map<String, String> data, int index) {
+        if (baseName == null || baseName.isEmpty()) {
+            return "document_" + (index + 1);
+        }
+
+        String name = baseName;
+        for (Map.Entry<String, String> entry : data.entrySet()) {
+            name = name.replace("${" + entry.getKey() + "}", entry.getValue());
+        }
+
+        return name + "_" + (index + 1);
     }
 
     private void deleteDirectory(File dir) {
@@ -200,6 +1050,201 @@ public class BatchDocumentService {
     }
 
     public BatchGenerationResult getProgress(String batchId) {
-        return progressStore.get(batchId);
+        // Пакет идёт на этом узле: счётчики из памяти, без обращения к БД
+        BatchRun run = activeRuns.get(batchId);
+        if (run != null) {
+            return toProgress(run);
+        }
+        // Пакет идёт, завершился на другом узле или до перезапуска: итог без построчных результатов из БД
+        return resultStore.get(batchId)
+          .orElseGet(() -> batchJobService.findJob(batchId).map(this::toProgress).orElse(null));
+    }
+
+    /**
+     * Файлы результата пакета удалены очисткой temp до истечения срока итога
+     */
+    public boolean isOutputEvicted(String batchId) {
+        return resultStore.get(batchId).map(BatchGenerationResult::isEvicted).orElse(false);
+    }
+
+    /**
+     * Страница построчных итогов завершённого пакета: details=items — строки, details=errors — ошибки строк
+     */
+    public Optional<BatchResultPage> getProgressDetails(String batchId, String details, int offset, int limit) {
+        return resultStore.getRows(batchId).map(rows -> {
+            BatchResultPage page = new BatchResultPage();
+            page.setBatchId(batchId);
+            page.setDetails(details);
+            page.setOffset(offset);
+            page.setLimit(limit);
+            if ("errors".equals(details)) {
+                page.setTotal(rows.getErrorCount());
+                page.setItems(rows.errors(offset, limit));
+            } else {
+                page.setTotal(rows.getSize());
+                page.setItems(rows.items(offset, limit));
+            }
+            return page;
+        });
+    }
+
+    private BatchGenerationResult toProgress(BatchRun run) {
+        int completed = run.completedCount;
+        int successful = run.successCount;
+        BatchGenerationResult result = new BatchGenerationResult();
+        result.setBatchId(run.batchId);
+        result.setStatus(BatchJob.STATUS_RUNNING);
+        result.setTotalDocuments(run.request.getDataRows().size());
+        result.setCompletedDocuments(completed);
+        result.setSuccessfulDocuments(Math.min(successful, completed));
+        result.setFailedDocuments(Math.max(completed - successful, 0));
+        return result;
+    }
+
+    private BatchGenerationResult toProgress(BatchJob job) {
+        BatchGenerationResult result = new BatchGenerationResult();
+        result.setBatchId(job.getId());
+        result.setStatus(job.getStatus());
+        result.setTotalDocuments(job.getTotalRows());
+        result.setCompletedDocuments(job.getCompletedRows());
+        result.setSuccessfulDocuments(job.getSuccessfulRows());
+        result.setFailedDocuments(job.getFailedRows());
+        result.setOutputSink(job.getOutputSink());
+        result.setOutputLocation(job.getOutputLocation());
+        if (ZipFileOutputSink.NAME.equals(job.getOutputSink())) {
+            result.setZipFileName(job.getOutputLocation());
+        }
+        if (job.getErrorMessage() != null) {
+            BatchError error = new BatchError();
+            error.setRowIndex(-1);
+            error.setErrorMessage(job.getErrorMessage());
+            result.setErrors(List.of(error));
+        }
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface StageTask<T> {
+        T run() throws Exception;
+    }
+
+    // Состояние одного запуска пакета; стадия выгрузки работает только в потоке запроса
+    private static class BatchRun {
+        private final String batchId;
+        private final BatchGenerationRequest request;
+        private final User user;
+        private final Template template;
+        private final List<String> formats;
+        private final List<String> archiveFormats;
+        private final String tempDir;
+        private final StageTimings timings = new StageTimings(
+          STAGE_BIND, STAGE_RENDER, STAGE_ENCODE, STAGE_COMPRESS, STAGE_SINK);
+
+        private BatchRowResults rows;
+        // Ошибки пакета целиком; ошибки строк — в rows
+        private final List<BatchError> errors = new ArrayList<>();
+        // Счётчики пишет только поток выгрузки, читают запросы прогресса
+        private volatile int successCount;
+        private volatile int completedCount;
+        private BatchOutput output;
+        private IOException outputError;
+        private SpreadsheetService.SummaryWriter summary;
+        private String mergeFormat;
+        private DocumentMergeService.MergeWriter merge;
+        private IOException mergeError;
+        private int mergedCount;
+        private final List<BatchCheckpointRow> checkpointRows = new ArrayList<>();
+        private int checkpointStart;
+        // Части распределённого пакета возвращают итоги целиком, без контрольных точек
+        private boolean checkpointing = true;
+        private Runnable leaseRenewal;
+        // Выставляет leaseHeartbeat, проверяет поток выгрузки
+        private volatile BatchLeaseLostException leaseLost;
+        // Изображения пакета, декодированные один раз на запуск
+        private MediaService.MediaLibrary media;
+        // Ключ содержимого -> первая строка с ним; обращается только поток выгрузки
+        private Map<String, ContentRow> rowsByContentKey;
+
+        BatchRun(String batchId, BatchGenerationRequest request, User user, Template template,
+                 List<String> formats, List<String> archiveFormats, String tempDir) {
+            this.batchId = batchId;
+            this.request = request;
+            this.user = user;
+            this.template = template;
+            this.formats = formats;
+            this.archiveFormats = archiveFormats;
+            this.tempDir = tempDir;
+        }
+    }
+
+    private static class JobContext {
+        private final BatchGenerationRequest request;
+        private final User user;
+        private final Template template;
+
+        JobContext(BatchGenerationRequest request, User user, Template template) {
+            this.request = request;
+            this.user = user;
+            this.template = template;
+        }
+    }
+
+    private static class RowTask {
+        private final int rowIndex;
+        private final Map<String, String> rowData;
+        private final String documentName;
+        private final CompletableFuture<EncodedRow> encoded;
+        private final Integer duplicateOfRow;
+        // Запись индекса содержимого, если строка рендерится сама, а не повторяет другую
+        private final ContentRow content;
+
+        RowTask(int rowIndex, Map<String, String> rowData, String documentName,
+                CompletableFuture<EncodedRow> encoded, Integer duplicateOfRow, ContentRow content) {
+            this.rowIndex = rowIndex;
+            this.rowData = rowData;
+            this.documentName = documentName;
+            this.encoded = encoded;
+            this.duplicateOfRow = duplicateOfRow;
+            this.content = content;
+        }
+    }
+
+    // Первая строка с данным содержимым: пока она не выгружена, дубликаты ждут её результат,
+    // после выгрузки остаются только пути к её файлам
+    private static class ContentRow {
+        private final String contentKey;
+        private final int rowIndex;
+        private CompletableFuture<EncodedRow> encoded;
+        private Map<String, Path> files;
+        private Path contentFile;
+
+        ContentRow(String contentKey, int rowIndex, CompletableFuture<EncodedRow> encoded) {
+            this.contentKey = contentKey;
+            this.rowIndex = rowIndex;
+            this.encoded = encoded;
+        }
+
+        void release(EncodedRow row) {
+            files = new LinkedHashMap<>(row.files);
+            contentFile = row.contentFile;
+            encoded = null;
+        }
+    }
+
+    private static class EncodedRow {
+        private final String text;
+        private final Map<String, Path> files = new LinkedHashMap<>();
+        private Path contentFile;
+
+        EncodedRow(String text) {
+            this.text = text;
+        }
+
+        static EncodedRow reusing(String text, Map<String, Path> files, Path contentFile) {
+            EncodedRow row = new EncodedRow(text);
+            row.files.putAll(files);
+            row.contentFile = contentFile;
+            return row;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,430 @@
+package com.service;
+
+import com.dto.BatchCheckpointRow;
+import com.dto.BatchGenerationRequest;
+import com.dto.BatchGenerationResult;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.model.BatchChunk;
+import com.model.BatchJob;
+import com.model.BatchJobCheckpoint;
+import com.model.Template;
+import com.model.User;
+import com.repository.BatchChunkRepository;
+import com.repository.BatchJobCheckpointRepository;
+import com.repository.BatchJobRepository;
+import com.repository.TemplateRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Состояние пакетов в БД: запрос, контрольные точки по выполненным строкам и итог.
+ * По контрольным точкам прерванный перезапуском пакет продолжается с последней сохранённой строки.
+ * Пакет и части распределённого пакета узлы захватывают с арендой на batch.lease-seconds:
+ * аренду продлевает работающий узел, пакет упавшего узла после её истечения подхватывает другой.
+ */
+@Service
+public class BatchJobService {
+
+    // Модули java.time: в запросе пакета есть startAt
+    private static final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private static final TypeReference<List<BatchCheckpointRow>> ROWS_TYPE = new TypeReference<>() {};
+
+    @Autowired
+    private BatchJobRepository batchJobRepository;
+
+    @Autowired
+    private BatchJobCheckpointRepository checkpointRepository;
+
+    @Autowired
+    private BatchChunkRepository chunkRepository;
+
+    @Autowired
+    private TemplateRepository templateRepository;
+
+    @Value("${batch.lease-seconds:120}")
+    private long leaseSeconds;
+
+    // Имя узла в аренде: хост и случайный суффикс, чтобы перезапущенный узел не считался прежним
+    private final String nodeId = hostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public long getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    /**
+     * Пакет, который выполняет этот узел
+     */
+    public void createJob(String batchId, BatchGenerationRequest request, User user, Template template) {
+        BatchJob job = newJob(batchId, request, user, template);
+        job.setLeaseOwner(nodeId);
+        job.setLeaseExpiresAt(leaseExpiry());
+        batchJobRepository.save(job);
+    }
+
+    /**
+     * Распределённый пакет: строки делятся на части по chunkRows, части разбирают все узлы
+     */
+    @Transactional
+    public void createDistributedJob(String batchId, BatchGenerationRequest request, User user,
+                                     Template template, int chunkRows) {
+        BatchJob job = newJob(batchId, request, user, template);
+        job.setDistributed(true);
+        batchJobRepository.save(job);
+        createChunks(batchId, job.getTotalRows(), chunkRows);
+    }
+
+    /**
+     * Отложенный пакет: ждёт notBefore, а пакет off-peak — ещё и окна низкой нагрузки.
+     * Части распределённого пакета создаются при выпуске
+     */
+    public void createScheduledJob(String batchId, BatchGenerationRequest request, User user, Template template,
+                                   LocalDateTime notBefore, boolean offPeak) {
+        BatchJob job = newJob(batchId, request, user, template);
+        job.setStatus(BatchJob.STATUS_SCHEDULED);
+        job.setDistributed(request.isDistributed());
+        job.setNotBefore(notBefore);
+        job.setOffPeak(offPeak);
+        batchJobRepository.save(job);
+    }
+
+    private void createChunks(String batchId, int totalRows, int chunkRows) {
+        List<BatchChunk> chunks = new ArrayList<>();
+        for (int start = 0; start < totalRows; start += chunkRows) {
+            chunks.add(new BatchChunk(batchId, start, Math.min(start + chunkRows, totalRows)));
+        }
+        chunkRepository.saveAll(chunks);
+    }
+
+    private BatchJob newJob(String batchId, BatchGenerationRequest request, User user, Template template) {
+        String requestJson;
+        try {
+            requestJson = objectMapper.writeValueAsString(request);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to store batch request: " + e.getMessage(), e);
+        }
+        return new BatchJob(batchId, user != null ? user.getId() : null,
+          template, requestJson, request.getDataRows().size());
+    }
+
+    /**
+     * Сохраняет итоги строк [startRow, startRow + rows.size()) и сдвигает отметку выполненных строк
+     */
+    @Transactional
+    public void saveCheckpoint(String batchId, int startRow, List<BatchCheckpointRow> rows) {
+        BatchJob job = batchJobRepository.findById(batchId).orElse(null);
+        if (job == null || !BatchJob.STATUS_RUNNING.equals(job.getStatus())) {
+            return;
+        }
+        if (!nodeId.equals(job.getLeaseOwner())) {
+            throw new BatchLeaseLostException("Batch " + batchId + " is now run by " + job.getLeaseOwner());
+        }
+        try {
+            checkpointRepository.save(new BatchJobCheckpoint(
+              batchId, startRow, startRow + rows.size(), objectMapper.writeValueAsString(rows)));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to store batch checkpoint: " + e.getMessage(), e);
+        }
+        job.setCompletedRows(startRow + rows.size());
+        job.setLeaseExpiresAt(leaseExpiry());
+        job.setUpdatedAt(LocalDateTime.now());
+    }
+
+    /**
+     * Продлевает аренду пакета; если пакет уже забрал другой узел — BatchLeaseLostException
+     */
+    @Transactional
+    public void renewJobLease(String batchId) {
+        if (batchJobRepository.renewLease(batchId, nodeId, leaseExpiry(), LocalDateTime.now()) == 0) {
+            throw new BatchLeaseLostException("Lost lease on batch " + batchId);
+        }
+    }
+
+    /**
+     * Итоги уже выполненных строк по порядку. Если контрольные точки не идут подряд
+     * или файлов строк больше нет на диске, пакет начинается заново.
+     */
+    @Transactional
+    public List<BatchCheckpointRow> loadCheckpoint(String batchId, Path tempDir) {
+        List<BatchCheckpointRow> rows = new ArrayList<>();
+        try {
+            for (BatchJobCheckpoint checkpoint : checkpointRepository.findByJobIdOrderByStartRow(batchId)) {
+                if (checkpoint.getStartRow() != rows.size()) {
+                    return restartFromScratch(batchId);
+                }
+                rows.addAll(objectMapper.readValue(checkpoint.getRowsJson(), ROWS_TYPE));
+            }
+        } catch (JsonProcessingException e) {
+            return restartFromScratch(batchId);
+        }
+
+        if (!filesExist(rows, tempDir)) {
+            return restartFromScratch(batchId);
+        }
+        return rows;
+    }
+
+    private boolean filesExist(List<BatchCheckpointRow> rows, Path directory) {
+        for (BatchCheckpointRow row : rows) {
+            if (row.getFiles() != null) {
+                for (String file : row.getFiles().values()) {
+                    if (!Files.isRegularFile(directory.resolve(file))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private List<BatchCheckpointRow> restartFromScratch(String batchId) {
+        checkpointRepository.deleteByJobId(batchId);
+        batchJobRepository.findById(batchId).ifPresent(job -> job.setCompletedRows(0));
+        return new ArrayList<>();
+    }
+
+    /**
+     * Захватывает часть распределённого пакета, по кругу между владельцами пакетов
+     * (см. BatchChunkRepository.findClaimable). Часть, которая не выполнилась за maxAttempts
+     * захватов, завершает пакет с ошибкой, чтобы она не перезапускалась бесконечно.
+     */
+    @Transactional
+    public Optional<BatchChunk> claimChunk(int maxAttempts) {
+        Optional<BatchChunk> claimable;
+        while ((claimable = chunkRepository.findClaimable(LocalDateTime.now())).isPresent()) {
+            BatchChunk chunk = claimable.get();
+            if (chunk.getAttempts() >= maxAttempts) {
+                failJob(chunk.getJobId(), "Rows " + (chunk.getStartRow() + 1) + "-" + chunk.getEndRow()
+                  + " failed after " + chunk.getAttempts() + " attempts");
+                continue;
+            }
+            chunk.setStatus(BatchChunk.STATUS_RUNNING);
+            chunk.setLeaseOwner(nodeId);
+            chunk.setLeaseExpiresAt(leaseExpiry());
+            chunk.setAttempts(chunk.getAttempts() + 1);
+            return Optional.of(chunk);
+        }
+        return Optional.empty();
+    }
+
+    @Transactional
+    public void renewChunkLease(Long chunkId) {
+        if (chunkRepository.renewLease(chunkId, nodeId, leaseExpiry()) == 0) {
+            throw new BatchLeaseLostException("Lost lease on batch chunk " + chunkId);
+        }
+    }
+
+    /**
+     * Сохраняет итоги части. Если аренду части уже забрал другой узел, итоги отбрасываются.
+     */
+    @Transactional
+    public boolean completeChunk(Long chunkId, List<BatchCheckpointRow> rows) {
+        BatchChunk chunk = chunkRepository.findById(chunkId).orElse(null);
+        if (chunk == null || !BatchChunk.STATUS_RUNNING.equals(chunk.getStatus())
+          || !nodeId.equals(chunk.getLeaseOwner())) {
+            return false;
+        }
+        try {
+            chunk.setRowsJson(objectMapper.writeValueAsString(rows));
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to store batch chunk: " + e.getMessage(), e);
+        }
+        chunk.setStatus(BatchChunk.STATUS_DONE);
+        chunk.setLeaseOwner(null);
+        chunk.setLeaseExpiresAt(null);
+        batchJobRepository.addCompletedRows(chunk.getJobId(), rows.size(), LocalDateTime.now());
+        return true;
+    }
+
+    // Часть снова доступна всем узлам; попытка уже засчитана при захвате
+    @Transactional
+    public void releaseChunk(Long chunkId) {
+        chunkRepository.findById(chunkId)
+          .filter(chunk -> nodeId.equals(chunk.getLeaseOwner()))
+          .ifPresent(chunk -> {
+              chunk.setStatus(BatchChunk.STATUS_PENDING);
+              chunk.setLeaseOwner(null);
+              chunk.setLeaseExpiresAt(null);
+          });
+    }
+
+    /**
+     * Захватывает сборку распределённого пакета, все части которого выполнены
+     */
+    @Transactional
+    public Optional<BatchJob> claimAssembly() {
+        Optional<BatchJob> assemblable = batchJobRepository.findAssemblable(LocalDateTime.now());
+        assemblable.ifPresent(job -> {
+            job.setStatus(BatchJob.STATUS_ASSEMBLING);
+            job.setLeaseOwner(nodeId);
+            job.setLeaseExpiresAt(leaseExpiry());
+            job.setUpdatedAt(LocalDateTime.now());
+        });
+        return assemblable;
+    }
+
+    /**
+     * Итоги всех частей пакета по порядку строк. Если файлов части нет в общем каталоге,
+     * часть возвращается в очередь, пакет — в RUNNING, и результат — null.
+     */
+    @Transactional
+    public List<BatchCheckpointRow> loadChunkRows(String batchId, Path workDir) {
+        List<BatchCheckpointRow> rows = new ArrayList<>();
+        boolean requeued = false;
+        for (BatchChunk chunk : chunkRepository.findByJobIdOrderByStartRow(batchId)) {
+            List<BatchCheckpointRow> chunkRows = null;
+            try {
+                chunkRows = objectMapper.readValue(chunk.getRowsJson(), ROWS_TYPE);
+            } catch (JsonProcessingException | IllegalArgumentException e) {
+                // Часть выполняется заново
+            }
+            if (chunkRows == null || !filesExist(chunkRows, workDir)) {
+                chunk.setStatus(BatchChunk.STATUS_PENDING);
+                chunk.setRowsJson(null);
+                requeued = true;
+                continue;
+            }
+            rows.addAll(chunkRows);
+        }
+
+        if (requeued) {
+            batchJobRepository.findById(batchId).ifPresent(job -> {
+                job.setStatus(BatchJob.STATUS_RUNNING);
+                job.setLeaseOwner(null);
+                job.setLeaseExpiresAt(null);
+            });
+            return null;
+        }
+        return rows;
+    }
+
+    @Transactional
+    public void completeJob(String batchId, BatchGenerationResult result) {
+        batchJobRepository.findById(batchId).ifPresent(job -> {
+            job.setStatus(BatchJob.STATUS_COMPLETED);
+            job.setLeaseOwner(null);
+            job.setLeaseExpiresAt(null);
+            job.setCompletedRows(job.getTotalRows());
+            job.setSuccessfulRows(result.getSuccessfulDocuments());
+            job.setFailedRows(result.getFailedDocuments());
+            job.setOutputSink(result.getOutputSink());
+            job.setOutputLocation(result.getOutputLocation());
+            job.setRequestJson(null);
+            job.setUpdatedAt(LocalDateTime.now());
+        });
+        checkpointRepository.deleteByJobId(batchId);
+        chunkRepository.deleteByJobId(batchId);
+    }
+
+    @Transactional
+    public void failJob(String batchId, String errorMessage) {
+        batchJobRepository.findById(batchId).ifPresent(job -> {
+            job.setStatus(BatchJob.STATUS_FAILED);
+            job.setErrorMessage(errorMessage);
+            job.setRequestJson(null);
+            job.setLeaseOwner(null);
+            job.setLeaseExpiresAt(null);
+            job.setUpdatedAt(LocalDateTime.now());
+        });
+        checkpointRepository.deleteByJobId(batchId);
+        chunkRepository.deleteByJobId(batchId);
+    }
+
+    /**
+     * Захватывает пакет, узел которого перестал продлевать аренду (упал или перезапущен).
+     * Счётчик попыток растёт, чтобы пакет, который сам роняет приложение, не запускался бесконечно.
+     */
+    @Transactional
+    public Optional<BatchJob> claimInterruptedJob(int maxAttempts) {
+        Optional<BatchJob> interrupted;
+        while ((interrupted = batchJobRepository.findInterrupted(LocalDateTime.now())).isPresent()) {
+            BatchJob job = interrupted.get();
+            if (job.getAttempts() >= maxAttempts) {
+                failJob(job.getId(), "Batch was interrupted " + job.getAttempts() + " times");
+                continue;
+            }
+            job.setAttempts(job.getAttempts() + 1);
+            job.setLeaseOwner(nodeId);
+            job.setLeaseExpiresAt(leaseExpiry());
+            job.setUpdatedAt(LocalDateTime.now());
+            return Optional.of(job);
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Выпускает отложенный пакет, время которого наступило. Обычный пакет переходит в RUNNING
+     * с арендой этого узла и выполняется вызывающим; распределённый получает части,
+     * которые разберут рабочие потоки всех узлов, и в Optional не возвращается.
+     */
+    @Transactional
+    public Optional<BatchJob> claimScheduledJob(boolean offPeakOpen, int chunkRows) {
+        Optional<BatchJob> due;
+        while ((due = batchJobRepository.findDueScheduled(LocalDateTime.now(), offPeakOpen)).isPresent()) {
+            BatchJob job = due.get();
+            job.setStatus(BatchJob.STATUS_RUNNING);
+            job.setUpdatedAt(LocalDateTime.now());
+            if (job.isDistributed()) {
+                createChunks(job.getId(), job.getTotalRows(), chunkRows);
+                continue;
+            }
+            job.setLeaseOwner(nodeId);
+            job.setLeaseExpiresAt(leaseExpiry());
+            return Optional.of(job);
+        }
+        return Optional.empty();
+    }
+
+    public BatchGenerationRequest readRequest(BatchJob job) {
+        try {
+            return objectMapper.readValue(job.getRequestJson(), BatchGenerationRequest.class);
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("Failed to read batch request: " + e.getMessage(), e);
+        }
+    }
+
+    // Шаблон с полями для работы вне запроса (продолжение пакета, перерендер), где ленивая загрузка уже недоступна
+    @Transactional(readOnly = true)
+    public Optional<Template> findTemplate(Long templateId) {
+        Optional<Template> template = templateRepository.findById(templateId);
+        template.ifPresent(t -> {
+            if (t.getFields() != null) {
+                t.getFields().size();
+            }
+        });
+        return template;
+    }
+
+    public Optional<BatchJob> findJob(String batchId) {
+        return batchJobRepository.findById(batchId);
+    }
+
+    private LocalDateTime leaseExpiry() {
+        return LocalDateTime.now().plusSeconds(leaseSeconds);
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "node";
+        }
+    }
+}
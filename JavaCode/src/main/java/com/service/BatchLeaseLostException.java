@@ -0,0 +1,12 @@
+package com.service;
+
+/**
+ * Узел потерял аренду пакета или его части: работу продолжает другой узел,
+ * поэтому текущий прекращает её, не отмечая пакет как ошибочный
+ */
+public class BatchLeaseLostException extends RuntimeException {
+
+    public BatchLeaseLostException(String message) {
+        super(message);
+    }
+}
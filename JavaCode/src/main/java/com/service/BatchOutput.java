@@ -0,0 +1,33 @@
+package com.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Результат одного пакета в sink. Файлы добавляются по мере готовности строк в порядке строк;
+ * после complete() результат виден целиком, после abort() — не виден вовсе.
+ */
+public interface BatchOutput {
+
+    /**
+     * Добавляет файл под именем entryName; source должен существовать до вызова complete()
+     */
+    void add(String entryName, Path source) throws IOException;
+
+    /**
+     * Завершает выгрузку и возвращает расположение результата
+     */
+    String complete() throws IOException;
+
+    /**
+     * Отменяет выгрузку и удаляет уже записанное; ошибки не бросает
+     */
+    void abort();
+
+    /**
+     * Суммарное время сжатия, если sink сжимает данные
+     */
+    default long getCompressNanos() {
+        return 0;
+    }
+}
@@ -0,0 +1,17 @@
+package com.service;
+
+import java.io.IOException;
+
+/**
+ * Куда выгружаются файлы пакета: ZIP-архив, каталог, объектное хранилище.
+ * Реализации регистрируются как бины; пакет выбирает sink по имени.
+ */
+public interface BatchOutputSink {
+
+    /**
+     * Имя, по которому sink выбирается в запросе и настройках (batch.output.sink)
+     */
+    String getName();
+
+    BatchOutput open(String batchId) throws IOException;
+}
@@ -0,0 +1,248 @@
+package com.service;
+
+import com.dto.BatchGenerationResult;
+import com.dto.BatchProgressEvent;
+import com.model.BatchJob;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Поток прогресса пакетов через server-sent events.
+ * Прогресс пакета читается один раз за интервал на всех его подписчиков; событие уходит,
+ * только если прогресс изменился, поэтому частые изменения схлопываются в одно событие за интервал.
+ * Соединение не держит поток запроса (асинхронный ответ MVC), события отправляются виртуальными
+ * потоками: медленный клиент не задерживает остальных, а пропущенное им событие покрывает следующее.
+ */
+@Service
+public class BatchProgressStreamService {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchProgressStreamService.class);
+
+    // Вес нового интервала при сглаживании скорости
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final BatchDocumentService batchDocumentService;
+    private final long intervalMillis;
+    private final long timeoutMillis;
+    private final int maxStreams;
+
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger openStreams = new AtomicInteger();
+    private ScheduledExecutorService ticker;
+    private ExecutorService senders;
+
+    public BatchProgressStreamService(BatchDocumentService batchDocumentService,
+                                      @Value("${batch.progress.stream.interval-ms:1000}") long intervalMillis,
+                                      @Value("${batch.progress.stream.timeout-minutes:30}") long timeoutMinutes,
+                                      @Value("${batch.progress.stream.max-streams:10000}") int maxStreams) {
+        this.batchDocumentService = batchDocumentService;
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        this.maxStreams = maxStreams;
+    }
+
+    @PostConstruct
+    public void start() {
+        ticker = Executors.newSingleThreadScheduledExecutor(
+                BoundedExecutors.namedThreadFactory("batch-progress-", Thread.NORM_PRIORITY));
+        ticker.scheduleWithFixedDelay(this::tickSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        senders = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("batch-progress-send-", 0).factory());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        ticker.shutdownNow();
+        senders.shutdownNow();
+        channels.values().forEach(channel -> channel.subscribers.forEach(Subscriber::close));
+    }
+
+    /**
+     * Открывает поток прогресса пакета; null, если открыто batch.progress.stream.max-streams потоков.
+     * Первое событие с текущим прогрессом отправляется сразу
+     */
+    public SseEmitter subscribe(String batchId, BatchGenerationResult current) {
+        if (openStreams.incrementAndGet() > maxStreams) {
+            openStreams.decrementAndGet();
+            return null;
+        }
+
+        Subscriber subscriber = new Subscriber(new SseEmitter(timeoutMillis));
+        if (isFinished(current.getStatus())) {
+            // Пакет уже завершён: единственное событие — итог
+            openStreams.decrementAndGet();
+            send(subscriber, toEvent(current, 0, 0, null), true);
+            return subscriber.emitter;
+        }
+
+        // Канал создаётся и пополняется атомарно, чтобы рассылка не удалила его как пустой
+        Channel channel = channels.compute(batchId, (id, existing) -> {
+            Channel target = existing != null ? existing : new Channel();
+            target.subscribers.add(subscriber);
+            return target;
+        });
+        subscriber.onClose = () -> {
+            if (channel.subscribers.remove(subscriber)) {
+                openStreams.decrementAndGet();
+            }
+        };
+        subscriber.emitter.onCompletion(subscriber.onClose);
+        subscriber.emitter.onTimeout(subscriber.onClose);
+        subscriber.emitter.onError(error -> subscriber.onClose.run());
+
+        BatchProgressEvent event = channel.lastEvent;
+        send(subscriber, event != null ? event : toEvent(current, 0, 0, null), false);
+        return subscriber.emitter;
+    }
+
+    public int getOpenStreams() {
+        return openStreams.get();
+    }
+
+    private void tickSafely() {
+        try {
+            tick();
+        } catch (RuntimeException e) {
+            // Исключение из задачи отменило бы её дальнейшие запуски
+            logger.error("Batch progress broadcast failed", e);
+        }
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+            String batchId = entry.getKey();
+            Channel channel = entry.getValue();
+            if (channels.computeIfPresent(batchId,
+                    (id, existing) -> existing.subscribers.isEmpty() ? null : existing) == null) {
+                continue;
+            }
+
+            BatchGenerationResult progress = batchDocumentService.getProgress(batchId);
+            if (progress == null) {
+                // Итог пакета удалён по сроку хранения
+                channel.subscribers.forEach(Subscriber::close);
+                channels.remove(batchId, channel);
+                continue;
+            }
+
+            BatchProgressEvent previous = channel.lastEvent;
+            boolean finished = isFinished(progress.getStatus());
+            if (previous != null && !finished
+                    && previous.getCompletedDocuments() == progress.getCompletedDocuments()
+                    && previous.getStatus().equals(progress.getStatus())) {
+                continue;
+            }
+
+            int completedDelta = previous != null
+                    ? progress.getCompletedDocuments() - previous.getCompletedDocuments() : 0;
+            int failedDelta = previous != null
+                    ? progress.getFailedDocuments() - previous.getFailedDocuments() : 0;
+            Double rate = channel.rate;
+            if (previous != null && completedDelta > 0) {
+                double seconds = (now - channel.lastEventAt) / 1e9;
+                double sample = completedDelta / seconds;
+                rate = rate == null ? sample : rate + RATE_SMOOTHING * (sample - rate);
+            }
+
+            BatchProgressEvent event = toEvent(progress, completedDelta, failedDelta, rate);
+            channel.rate = rate;
+            channel.lastEvent = event;
+            channel.lastEventAt = now;
+            for (Subscriber subscriber : channel.subscribers) {
+                send(subscriber, event, finished);
+            }
+            if (finished) {
+                channels.remove(batchId, channel);
+            }
+        }
+    }
+
+    private BatchProgressEvent toEvent(BatchGenerationResult progress, int completedDelta, int failedDelta,
+                                       Double rate) {
+        BatchProgressEvent event = new BatchProgressEvent();
+        event.setBatchId(progress.getBatchId());
+        event.setStatus(progress.getStatus());
+        event.setTotalDocuments(progress.getTotalDocuments());
+        event.setCompletedDocuments(progress.getCompletedDocuments());
+        event.setSuccessfulDocuments(progress.getSuccessfulDocuments());
+        event.setFailedDocuments(progress.getFailedDocuments());
+        event.setCompletedDelta(completedDelta);
+        event.setFailedDelta(failedDelta);
+        if (rate != null && rate > 0) {
+            event.setRowsPerSecond(Math.round(rate * 10) / 10.0);
+            int remaining = progress.getTotalDocuments() - progress.getCompletedDocuments();
+            event.setEtaSeconds((long) Math.ceil(Math.max(remaining, 0) / rate));
+        }
+        return event;
+    }
+
+    // Подписчик, который ещё не принял прошлое событие, его пропускает: следующее несёт полные счётчики
+    private void send(Subscriber subscriber, BatchProgressEvent event, boolean last) {
+        if (!subscriber.sending.compareAndSet(false, true) && !last) {
+            return;
+        }
+        try {
+            senders.execute(() -> {
+                try {
+                    subscriber.emitter.send(SseEmitter.event()
+                            .name(last ? "complete" : "progress")
+                            .data(event, MediaType.APPLICATION_JSON));
+                    if (last) {
+                        subscriber.close();
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    // Клиент отключился
+                    subscriber.close();
+                } finally {
+                    subscriber.sending.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            subscriber.sending.set(false);
+        }
+    }
+
+    private static boolean isFinished(String status) {
+        return BatchJob.STATUS_COMPLETED.equals(status) || BatchJob.STATUS_FAILED.equals(status);
+    }
+
+    // Подписчики одного пакета и последнее разосланное им событие
+    private static class Channel {
+        private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private volatile BatchProgressEvent lastEvent;
+        private long lastEventAt = System.nanoTime();
+        private Double rate;
+    }
+
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final AtomicBoolean sending = new AtomicBoolean();
+        // Снимает подписчика с канала; повторный вызов ничего не делает
+        private Runnable onClose = () -> { };
+
+        Subscriber(SseEmitter emitter) {
+            this.emitter = emitter;
+        }
+
+        void close() {
+            try {
+                emitter.complete();
+            } catch (IllegalStateException ignored) {
+                // Ответ уже завершён
+            }
+            onClose.run();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.service;
+
+import com.dto.BatchGenerationResult;
+import com.dto.BatchRowResults;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeanUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Итоги завершённых пакетов для /batch/progress. Записи живут batch.results.ttl-minutes,
+ * их число ограничено (вытесняются самые старые). Построчные итоги (BatchRowResults) больших
+ * пакетов хранятся в JSON-файле на диске, в памяти остаётся только сводка. Прочитанные с диска
+ * итоги недолго кешируются (batch.results.rows-cache-*), чтобы постраничный просмотр
+ * не разбирал весь файл на каждую страницу.
+ */
+@Service
+public class BatchResultStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchResultStore.class);
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final int spillRows;
+    private final Path spillDirectory;
+    private final Map<String, StoredResult> entries = new ConcurrentHashMap<>();
+    private final long rowsCacheTtlNanos;
+    private final Map<String, LoadedRows> loadedRows;
+
+    public BatchResultStore(@Value("${batch.results.ttl-minutes:60}") long ttlMinutes,
+                            @Value("${batch.results.max-entries:500}") int maxEntries,
+                            @Value("${batch.results.spill-rows:1000}") int spillRows,
+                            @Value("${batch.results.spill-dir:temp/results}") String spillDirectory,
+                            @Value("${batch.results.rows-cache-seconds:60}") long rowsCacheSeconds,
+                            @Value("${batch.results.rows-cache-entries:4}") int rowsCacheEntries) {
+        this.ttlNanos = TimeUnit.MINUTES.toNanos(ttlMinutes);
+        this.maxEntries = maxEntries;
+        this.spillRows = spillRows;
+        this.spillDirectory = Paths.get(spillDirectory);
+        this.rowsCacheTtlNanos = TimeUnit.SECONDS.toNanos(rowsCacheSeconds);
+        this.loadedRows = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LoadedRows> eldest) {
+                return size() > rowsCacheEntries;
+            }
+        };
+    }
+
+    public void put(BatchGenerationResult result) {
+        StoredResult stored = new StoredResult(result);
+        BatchRowResults rows = result.getRows();
+
+        if (rows != null && rows.getSize() + rows.getErrorCount() > spillRows) {
+            Path file = spillDirectory.resolve(result.getBatchId() + ".json");
+            try {
+                Files.createDirectories(spillDirectory);
+                objectMapper.writeValue(file.toFile(), rows);
+                BatchGenerationResult summary = new BatchGenerationResult();
+                BeanUtils.copyProperties(result, summary, "rows");
+                stored = new StoredResult(summary, file);
+            } catch (IOException e) {
+                logger.warn("Failed to spill results of batch {}, keeping them in memory: {}",
+                        result.getBatchId(), e.getMessage());
+            }
+        }
+
+        forgetLoadedRows(result.getBatchId());
+        StoredResult previous = entries.put(result.getBatchId(), stored);
+        if (previous != null && previous.file != null && !previous.file.equals(stored.file)) {
+            deleteQuietly(previous.file);
+        }
+        evictOverflow();
+    }
+
+    /**
+     * Сводка пакета без построчных итогов
+     */
+    public Optional<BatchGenerationResult> get(String batchId) {
+        return live(batchId).map(stored -> stored.result);
+    }
+
+    /**
+     * Построчные итоги пакета; с диска читаются, если были вынесены. Если файл уже удалён
+     * очисткой temp, итогов нет.
+     */
+    public Optional<BatchRowResults> getRows(String batchId) {
+        Optional<StoredResult> stored = live(batchId);
+        if (stored.isEmpty()) {
+            return Optional.empty();
+        }
+        if (stored.get().file == null) {
+            return Optional.ofNullable(stored.get().result.getRows());
+        }
+
+        BatchRowResults cached = getLoadedRows(batchId, stored.get());
+        if (cached != null) {
+            return Optional.of(cached);
+        }
+        try {
+            BatchRowResults rows = objectMapper.readValue(stored.get().file.toFile(), BatchRowResults.class);
+            synchronized (loadedRows) {
+                loadedRows.put(batchId, new LoadedRows(stored.get(), rows));
+            }
+            return Optional.of(rows);
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+    }
+
+    // Итоги, прочитанные с диска для той же записи не раньше rows-cache-seconds назад
+    private BatchRowResults getLoadedRows(String batchId, StoredResult stored) {
+        synchronized (loadedRows) {
+            LoadedRows loaded = loadedRows.get(batchId);
+            if (loaded == null) {
+                return null;
+            }
+            if (loaded.stored != stored || System.nanoTime() - loaded.loadedAt > rowsCacheTtlNanos) {
+                loadedRows.remove(batchId);
+                return null;
+            }
+            return loaded.rows;
+        }
+    }
+
+    private void forgetLoadedRows(String batchId) {
+        synchronized (loadedRows) {
+            loadedRows.remove(batchId);
+        }
+    }
+
+    /**
+     * Есть ли у пакета итог, срок которого не истёк
+     */
+    public boolean isLive(String batchId) {
+        return live(batchId).isPresent();
+    }
+
+    /**
+     * Отмечает, что файлы результата пакета удалены до истечения срока итога: /batch/progress
+     * сообщает об этом, а не отдаёт ссылки на пропавшие файлы
+     */
+    public void markEvicted(String batchId) {
+        live(batchId).ifPresent(stored -> stored.result.setEvicted(true));
+        forgetLoadedRows(batchId);
+    }
+
+    private Optional<StoredResult> live(String batchId) {
+        StoredResult stored = entries.get(batchId);
+        if (stored == null) {
+            return Optional.empty();
+        }
+        if (stored.isExpired(System.nanoTime())) {
+            // Запись удаляет evictExpired, чтобы очистка temp удалила и файлы пакета
+            return Optional.empty();
+        }
+        return Optional.of(stored);
+    }
+
+    /**
+     * Удаляет записи с истёкшим сроком; возвращает batchId удалённых — их файлы больше не нужны
+     */
+    public List<String> evictExpired() {
+        long now = System.nanoTime();
+        List<String> evicted = new ArrayList<>();
+        for (Map.Entry<String, StoredResult> entry : entries.entrySet()) {
+            if (entry.getValue().isExpired(now) && remove(entry.getKey(), entry.getValue())) {
+                evicted.add(entry.getKey());
+            }
+        }
+        return evicted;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("spilledEntries", entries.values().stream().filter(stored -> stored.file != null).count());
+        stats.put("maxEntries", maxEntries);
+        return stats;
+    }
+
+    // Сверх лимита вытесняются самые старые записи
+    private void evictOverflow() {
+        while (entries.size() > maxEntries) {
+            Optional<Map.Entry<String, StoredResult>> oldest = entries.entrySet().stream()
+                    .min(Comparator.comparingLong(entry -> entry.getValue().storedAt));
+            if (oldest.isEmpty()) {
+                return;
+            }
+            remove(oldest.get().getKey(), oldest.get().getValue());
+        }
+    }
+
+    private boolean remove(String batchId, StoredResult stored) {
+        if (!entries.remove(batchId, stored)) {
+            return false;
+        }
+        forgetLoadedRows(batchId);
+        if (stored.file != null) {
+            deleteQuietly(stored.file);
+        }
+        return true;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            // Файл уберёт очистка temp
+        }
+    }
+
+    private static class LoadedRows {
+        private final StoredResult stored;
+        private final BatchRowResults rows;
+        private final long loadedAt = System.nanoTime();
+
+        LoadedRows(StoredResult stored, BatchRowResults rows) {
+            this.stored = stored;
+            this.rows = rows;
+        }
+    }
+
+    private class StoredResult {
+        private final BatchGenerationResult result;
+        private final Path file;
+        private final long storedAt = System.nanoTime();
+
+        StoredResult(BatchGenerationResult result) {
+            this(result, null);
+        }
+
+        StoredResult(BatchGenerationResult result, Path file) {
+            this.result = result;
+            this.file = file;
+        }
+
+        boolean isExpired(long now) {
+            return now - storedAt > ttlNanos;
+        }
+    }
+}
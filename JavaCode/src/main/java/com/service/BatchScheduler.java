@@ -0,0 +1,123 @@
+package com.service;
+
+import com.model.BatchJob;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Выпуск отложенных пакетов. Пакет со startAt запускается, когда время наступило;
+ * пакет off-peak — только внутри окон batch.schedule.off-peak-windows (время сервера).
+ * На узле одновременно выполняется не больше batch.schedule.workers отложенных пакетов:
+ * каждый рабочий поток берёт следующий пакет, только закончив предыдущий.
+ * Как и синхронный, пакет выполняется под слотом пакетов владельца в GenerationScheduler.
+ * Распределённые пакеты при выпуске делятся на части и выполняются DistributedBatchWorker.
+ */
+@Service
+public class BatchScheduler {
+
+    public static final String OFF_PEAK = "off-peak";
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchScheduler.class);
+
+    private final BatchJobService batchJobService;
+    private final BatchDocumentService batchDocumentService;
+    private final int workers;
+    private final long pollIntervalSeconds;
+    private final int chunkRows;
+    private final List<LocalTime[]> offPeakWindows;
+    private ScheduledExecutorService scheduler;
+
+    public BatchScheduler(BatchJobService batchJobService,
+                          BatchDocumentService batchDocumentService,
+                          @Value("${batch.schedule.workers:1}") int workers,
+                          @Value("${batch.schedule.poll-interval-seconds:30}") long pollIntervalSeconds,
+                          @Value("${batch.schedule.off-peak-windows:22:00-06:00}") String offPeakWindows,
+                          @Value("${batch.distributed.chunk-rows:500}") int chunkRows) {
+        this.batchJobService = batchJobService;
+        this.batchDocumentService = batchDocumentService;
+        this.workers = workers;
+        this.pollIntervalSeconds = pollIntervalSeconds;
+        this.chunkRows = chunkRows;
+        this.offPeakWindows = parseWindows(offPeakWindows);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        scheduler = Executors.newScheduledThreadPool(workers,
+                BoundedExecutors.namedThreadFactory("batch-scheduler-", Thread.NORM_PRIORITY - 1));
+        for (int i = 0; i < workers; i++) {
+            scheduler.scheduleWithFixedDelay(this::poll, pollIntervalSeconds, pollIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Открыто ли сейчас окно низкой нагрузки
+     */
+    public boolean isOffPeakOpen() {
+        return isOffPeak(LocalTime.now());
+    }
+
+    boolean isOffPeak(LocalTime time) {
+        for (LocalTime[] window : offPeakWindows) {
+            LocalTime from = window[0];
+            LocalTime to = window[1];
+            boolean inside = from.isBefore(to)
+                    ? !time.isBefore(from) && time.isBefore(to)
+                    // Окно через полночь, например 22:00-06:00
+                    : !time.isBefore(from) || time.isBefore(to);
+            if (inside) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void poll() {
+        try {
+            Optional<BatchJob> job;
+            while (!Thread.currentThread().isInterrupted()
+                    && (job = batchJobService.claimScheduledJob(isOffPeakOpen(), chunkRows)).isPresent()) {
+                batchDocumentService.runScheduledBatch(job.get());
+            }
+        } catch (RuntimeException e) {
+            // Исключение из задачи отменило бы её дальнейшие запуски
+            logger.error("Batch scheduler poll failed", e);
+        }
+    }
+
+    // "22:00-06:00,12:00-13:00"
+    private static List<LocalTime[]> parseWindows(String value) {
+        List<LocalTime[]> windows = new ArrayList<>();
+        for (String window : value.split(",")) {
+            if (window.isBlank()) {
+                continue;
+            }
+            String[] bounds = window.trim().split("-");
+            if (bounds.length != 2) {
+                throw new IllegalArgumentException("Invalid off-peak window: " + window);
+            }
+            windows.add(new LocalTime[] {LocalTime.parse(bounds[0].trim()), LocalTime.parse(bounds[1].trim())});
+        }
+        return windows;
+    }
+}
@@ -0,0 +1,222 @@
+package com.service;
+
+import com.dto.BatchFieldValidation;
+import com.dto.BatchGenerationRequest;
+import com.dto.BatchValidationResult;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.model.Template;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Пробный прогон пакета: строки проверяются по полям шаблона за один проход,
+ * без рендера и без записи в БД. Пропущенное или пустое поле при генерации
+ * оставило бы в документе ${поле}, поэтому такие строки считаются ошибочными.
+ * Ссылки на списки (${#items}, ${/items}, ${items.name}) проверяются как колонка items с JSON-массивом.
+ * У шаблонов FreeMarker обязательны только переменные, которые подставляются без значения
+ * по умолчанию и не объявлены в самом шаблоне; неизвестные колонки для них не ищутся —
+ * колонку могут читать директивы.
+ */
+@Service
+public class BatchValidationService {
+
+    // Та же подстановка, что в DocumentService.generateContent
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$\\{([^}]+)\\}");
+    // Корень выражения FreeMarker: "user" в ${user.name?upper_case}
+    private static final Pattern EXPRESSION_ROOT = Pattern.compile("^\\s*([A-Za-z_][A-Za-z0-9_]*)");
+    // Переменные, которые объявляет сам шаблон: <#list rows as row>, <#assign total = ...>
+    private static final Pattern DECLARED_VARIABLE = Pattern.compile(
+            "<#list\\s[^>]*?\\sas\\s+([A-Za-z_][A-Za-z0-9_]*)(?:\\s*,\\s*([A-Za-z_][A-Za-z0-9_]*))?"
+            + "|<#(?:assign|local|global)\\s+([A-Za-z_][A-Za-z0-9_]*)");
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // Столько неизвестных колонок достаточно, чтобы заметить опечатку
+    private static final int MAX_UNKNOWN_COLUMNS = 100;
+
+    private final TemplateService templateService;
+    private final FreemarkerTemplateEngine freemarkerTemplateEngine;
+    private final int maxRanges;
+
+    public BatchValidationService(TemplateService templateService,
+                                  FreemarkerTemplateEngine freemarkerTemplateEngine,
+                                  @Value("${batch.validation.max-ranges:1000}") int maxRanges) {
+        this.templateService = templateService;
+        this.freemarkerTemplateEngine = freemarkerTemplateEngine;
+        this.maxRanges = maxRanges;
+    }
+
+    public BatchValidationResult validate(BatchGenerationRequest request) {
+        Template template = templateService.getTemplateById(request.getTemplateId())
+                .orElseThrow(() -> new RuntimeException("Template not found"));
+        List<Map<String, String>> rows = request.getDataRows() != null ? request.getDataRows() : List.of();
+
+        boolean freemarker = freemarkerTemplateEngine.supports(template);
+        Set<String> listFields = new TreeSet<>();
+        Set<String> required = freemarker ? freemarkerFields(template) : requiredFields(template, listFields);
+        String[] fields = required.toArray(new String[0]);
+        boolean[] isList = new boolean[fields.length];
+        for (int f = 0; f < fields.length; f++) {
+            isList[f] = listFields.contains(fields[f]);
+        }
+        int[] missingCounts = new int[fields.length];
+        int[] emptyCounts = new int[fields.length];
+        int[] notListCounts = new int[fields.length];
+        RowRanges[] missingRows = new RowRanges[fields.length];
+        RowRanges[] emptyRows = new RowRanges[fields.length];
+        RowRanges[] notListRows = new RowRanges[fields.length];
+        RowRanges invalidRows = new RowRanges(maxRanges);
+        Set<String> fieldSet = freemarker ? Set.of() : new HashSet<>(Arrays.asList(fields));
+        Set<String> unknownColumns = new TreeSet<>();
+        int invalidCount = 0;
+
+        for (int rowIndex = 0; rowIndex < rows.size(); rowIndex++) {
+            Map<String, String> row = rows.get(rowIndex);
+            boolean invalid = false;
+
+            for (int f = 0; f < fields.length; f++) {
+                String value = row != null ? row.get(fields[f]) : null;
+                if (value == null) {
+                    missingCounts[f]++;
+                    ranges(missingRows, f).add(rowIndex);
+                    invalid = true;
+                } else if (value.isBlank()) {
+                    emptyCounts[f]++;
+                    ranges(emptyRows, f).add(rowIndex);
+                    invalid = true;
+                } else if (isList[f] && !isJsonArray(value)) {
+                    notListCounts[f]++;
+                    ranges(notListRows, f).add(rowIndex);
+                    invalid = true;
+                }
+            }
+
+            if (row != null && !fieldSet.isEmpty() && unknownColumns.size() < MAX_UNKNOWN_COLUMNS) {
+                for (String column : row.keySet()) {
+                    if (!fieldSet.contains(column)) {
+                        unknownColumns.add(column);
+                    }
+                }
+            }
+
+            if (invalid) {
+                invalidCount++;
+                invalidRows.add(rowIndex);
+            }
+        }
+
+        List<BatchFieldValidation> fieldResults = new ArrayList<>();
+        for (int f = 0; f < fields.length; f++) {
+            if (missingCounts[f] == 0 && emptyCounts[f] == 0 && notListCounts[f] == 0) {
+                continue;
+            }
+            BatchFieldValidation field = new BatchFieldValidation();
+            field.setField(fields[f]);
+            field.setMissingCount(missingCounts[f]);
+            field.setEmptyCount(emptyCounts[f]);
+            field.setMissingRows(missingRows[f] != null ? missingRows[f].toList() : List.of());
+            field.setEmptyRows(emptyRows[f] != null ? emptyRows[f].toList() : List.of());
+            field.setNotListCount(notListCounts[f]);
+            field.setNotListRows(notListRows[f] != null ? notListRows[f].toList() : List.of());
+            field.setTruncated((missingRows[f] != null && missingRows[f].isTruncated())
+                    || (emptyRows[f] != null && emptyRows[f].isTruncated())
+                    || (notListRows[f] != null && notListRows[f].isTruncated()));
+            fieldResults.add(field);
+        }
+
+        BatchValidationResult result = new BatchValidationResult();
+        result.setTemplateId(template.getId());
+        result.setTotalRows(rows.size());
+        result.setValidRows(rows.size() - invalidCount);
+        result.setInvalidRows(invalidCount);
+        result.setInvalidRowRanges(invalidRows.toList());
+        result.setTruncated(invalidRows.isTruncated());
+        result.setFields(fieldResults);
+        result.setUnknownColumns(unknownColumns);
+        return result;
+    }
+
+    // Поля шаблона; если они не заданы — подстановки ${...} из текста шаблона.
+    // Маркеры секций (#items, /items) и поля элементов (items.name) сводятся к колонке списка items
+    private Set<String> requiredFields(Template template, Set<String> listFields) {
+        Set<String> references = new TreeSet<>();
+        if (template.getFields() != null && !template.getFields().isEmpty()) {
+            references.addAll(template.getFields().keySet());
+        } else if (template.getContent() != null) {
+            Matcher matcher = PLACEHOLDER.matcher(template.getContent());
+            while (matcher.find()) {
+                references.add(matcher.group(1));
+            }
+        }
+
+        Set<String> fields = new TreeSet<>();
+        for (String reference : references) {
+            if (reference.startsWith("#") || reference.startsWith("/")) {
+                listFields.add(reference.substring(1));
+            } else if (reference.indexOf('.') > 0) {
+                listFields.add(reference.substring(0, reference.indexOf('.')));
+            } else {
+                fields.add(reference);
+            }
+        }
+        fields.addAll(listFields);
+        return fields;
+    }
+
+    // Переменные шаблона FreeMarker из ${...}: корень выражения, если у подстановки нет значения
+    // по умолчанию (x!"", x??) и переменную не объявляет сам шаблон (цикл, assign)
+    private Set<String> freemarkerFields(Template template) {
+        Set<String> fields = new TreeSet<>();
+        String content = template.getContent();
+        if (content == null) {
+            return fields;
+        }
+
+        Set<String> declared = new HashSet<>();
+        Matcher declaration = DECLARED_VARIABLE.matcher(content);
+        while (declaration.find()) {
+            for (int group = 1; group <= declaration.groupCount(); group++) {
+                if (declaration.group(group) != null) {
+                    declared.add(declaration.group(group));
+                }
+            }
+        }
+
+        Matcher matcher = PLACEHOLDER.matcher(content);
+        while (matcher.find()) {
+            String expression = matcher.group(1);
+            if (expression.contains("!") || expression.contains("??")) {
+                continue;
+            }
+            Matcher root = EXPRESSION_ROOT.matcher(expression);
+            if (root.find() && !declared.contains(root.group(1))) {
+                fields.add(root.group(1));
+            }
+        }
+        return fields;
+    }
+
+    private static boolean isJsonArray(String value) {
+        if (!RepeatingContentWriter.isListValue(value)) {
+            return false;
+        }
+        try {
+            return objectMapper.readTree(value).isArray();
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+    }
+
+    // Списки диапазонов создаются только для полей, где нашлись пропуски
+    private RowRanges ranges(RowRanges[] ranges, int field) {
+        if (ranges[field] == null) {
+            ranges[field] = new RowRanges(maxRanges);
+        }
+        return ranges[field];
+    }
+}
@@ -0,0 +1,61 @@
+package com.service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пулы фиксированного размера с ограниченной очередью для сервисов генерации
+ */
+final class BoundedExecutors {
+
+    private BoundedExecutors() {
+    }
+
+    /**
+     * При заполненной очереди задача отклоняется (RejectedExecutionException)
+     */
+    static ThreadPoolExecutor newRejectingExecutor(String namePrefix, int threads,
+                                                   int queueCapacity, int priority) {
+        return new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                namedThreadFactory(namePrefix, priority),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * При заполненной очереди поток, отправляющий задачу, ждёт свободного места
+     */
+    static ThreadPoolExecutor newBlockingExecutor(String namePrefix, int threads,
+                                                  int queueCapacity, int priority) {
+        return new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                namedThreadFactory(namePrefix, priority),
+                (task, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("Executor " + namePrefix + " is shut down");
+                    }
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("Interrupted while waiting for " + namePrefix + " queue", e);
+                    }
+                });
+    }
+
+    static ThreadFactory namedThreadFactory(String prefix, int priority) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,44 @@
+package com.service;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пул байтовых блоков фиксированного размера для OutputBuffer.
+ * Хранит не больше maxPooledChunks свободных блоков, лишние отдаются сборщику мусора.
+ */
+class ChunkPool {
+    private final int chunkSize;
+    private final int maxPooledChunks;
+    private final ConcurrentLinkedQueue<byte[]> freeChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledCount = new AtomicInteger();
+
+    public ChunkPool(int chunkSize, int maxPooledChunks) {
+        this.chunkSize = chunkSize;
+        this.maxPooledChunks = maxPooledChunks;
+    }
+
+    public byte[] acquire() {
+        byte[] chunk = freeChunks.poll();
+        if (chunk != null) {
+            pooledCount.decrementAndGet();
+            return chunk;
+        }
+        return new byte[chunkSize];
+    }
+
+    public void release(byte[] chunk) {
+        if (chunk.length != chunkSize) {
+            return;
+        }
+        if (pooledCount.incrementAndGet() <= maxPooledChunks) {
+            freeChunks.offer(chunk);
+        } else {
+            pooledCount.decrementAndGet();
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+}
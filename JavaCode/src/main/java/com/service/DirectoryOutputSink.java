@@ -0,0 +1,73 @@
+package com.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Файлы пакета в каталоге: пишутся в <root>/<batchId>.partial и переименовываются
+ * в <root>/<batchId> одной атомарной операцией, так что читатели не видят недописанный пакет
+ */
+@Component
+public class DirectoryOutputSink implements BatchOutputSink {
+
+    public static final String NAME = "directory";
+
+    private final Path root;
+
+    public DirectoryOutputSink(@Value("${batch.output.directory.root:output}") String root) {
+        this.root = Paths.get(root);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public BatchOutput open(String batchId) throws IOException {
+        Path partial = Files.createDirectories(root.resolve(batchId + ".partial"));
+        Path target = root.resolve(batchId);
+
+        return new BatchOutput() {
+            @Override
+            public void add(String entryName, Path source) throws IOException {
+                Files.copy(source, partial.resolve(safeFileName(entryName)), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            @Override
+            public String complete() throws IOException {
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE);
+                return target.toString();
+            }
+
+            @Override
+            public void abort() {
+                deleteRecursively(partial);
+            }
+        };
+    }
+
+    // Имя документа приходит из данных строки: разделители путей не должны выводить за каталог пакета
+    private static String safeFileName(String entryName) {
+        return entryName.replaceAll("[\\\\/:*?\"<>|]", "_");
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException ignored) {
+                    // Остаток удалит следующая попытка
+                }
+            });
+        } catch (IOException ignored) {
+            // Каталога уже нет
+        }
+    }
+}
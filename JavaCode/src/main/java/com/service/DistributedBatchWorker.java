@@ -0,0 +1,99 @@
+package com.service;
+
+import com.model.BatchChunk;
+import com.model.BatchJob;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Фоновая работа с пакетами на каждом узле. Рабочие потоки по очереди:
+ * подхватывают пакеты, узел которых перестал продлевать аренду; захватывают части
+ * распределённых пакетов (FOR UPDATE SKIP LOCKED); собирают пакеты, все части которых готовы.
+ * Пока работа находится, поток берёт следующую без паузы.
+ */
+@Service
+public class DistributedBatchWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(DistributedBatchWorker.class);
+
+    private final BatchJobService batchJobService;
+    private final BatchDocumentService batchDocumentService;
+    private final int workers;
+    private final long pollIntervalMillis;
+    private final int maxResumeAttempts;
+    private final int maxChunkAttempts;
+    private ScheduledExecutorService scheduler;
+
+    public DistributedBatchWorker(BatchJobService batchJobService,
+                                  BatchDocumentService batchDocumentService,
+                                  @Value("${batch.distributed.workers:1}") int workers,
+                                  @Value("${batch.distributed.poll-interval-ms:1000}") long pollIntervalMillis,
+                                  @Value("${batch.resume.max-attempts:3}") int maxResumeAttempts,
+                                  @Value("${batch.distributed.max-chunk-attempts:3}") int maxChunkAttempts) {
+        this.batchJobService = batchJobService;
+        this.batchDocumentService = batchDocumentService;
+        this.workers = workers;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.maxResumeAttempts = maxResumeAttempts;
+        this.maxChunkAttempts = maxChunkAttempts;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        scheduler = Executors.newScheduledThreadPool(workers,
+                BoundedExecutors.namedThreadFactory("batch-worker-", Thread.NORM_PRIORITY - 1));
+        for (int i = 0; i < workers; i++) {
+            scheduler.scheduleWithFixedDelay(this::poll, 0, pollIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        logger.info("Batch worker {} started with {} threads", batchJobService.getNodeId(), workers);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void poll() {
+        try {
+            while (!Thread.currentThread().isInterrupted() && runNext()) {
+                // Следующая работа сразу
+            }
+        } catch (RuntimeException e) {
+            // Исключение из задачи отменило бы её дальнейшие запуски
+            logger.error("Batch worker poll failed", e);
+        }
+    }
+
+    private boolean runNext() {
+        Optional<BatchJob> interrupted = batchJobService.claimInterruptedJob(maxResumeAttempts);
+        if (interrupted.isPresent()) {
+            batchDocumentService.resumeBatch(interrupted.get());
+            return true;
+        }
+
+        Optional<BatchChunk> chunk = batchJobService.claimChunk(maxChunkAttempts);
+        if (chunk.isPresent()) {
+            batchDocumentService.runChunk(chunk.get());
+            return true;
+        }
+
+        Optional<BatchJob> assembly = batchJobService.claimAssembly();
+        if (assembly.isPresent()) {
+            batchDocumentService.assembleBatch(assembly.get());
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,424 @@
+package com.service;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Сборка документов пакета в один файл: PDF подряд или DOCX с разрывами разделов.
+ * Документы добавляются по одному по мере готовности, промежуточные данные лежат на диске.
+ */
+@Service
+public class DocumentMergeService {
+
+    public static final String FORMAT_PDF = "pdf";
+    public static final String FORMAT_DOCX = "docx";
+
+    public static boolean isSupported(String format) {
+        return FORMAT_PDF.equals(format) || FORMAT_DOCX.equals(format);
+    }
+
+    /**
+     * Открывает сборку; workDir — каталог для временных файлов
+     */
+    public MergeWriter openMerge(String format, Path workDir) throws IOException {
+        if (FORMAT_PDF.equals(format)) {
+            return new PdfMergeWriter(workDir);
+        }
+        if (FORMAT_DOCX.equals(format)) {
+            return new DocxMergeWriter(workDir);
+        }
+        throw new IllegalArgumentException("Unsupported merge format: " + format);
+    }
+
+    public interface MergeWriter extends Closeable {
+        void append(Path document) throws IOException;
+
+        /**
+         * Записывает собранный документ в target
+         */
+        void finish(Path target) throws IOException;
+    }
+
+    /**
+     * PDF: страницы копируются в общий документ, потоки которого хранятся во временном файле
+     */
+    private static class PdfMergeWriter implements MergeWriter {
+        private final PDDocument merged;
+        private final PDFMergerUtility merger = new PDFMergerUtility();
+        private final MemoryUsageSetting sourceMemory;
+
+        PdfMergeWriter(Path workDir) {
+            MemoryUsageSetting mergedMemory = MemoryUsageSetting.setupTempFileOnly();
+            mergedMemory.setTempDir(workDir.toFile());
+            this.merged = new PDDocument(mergedMemory);
+
+            this.sourceMemory = MemoryUsageSetting.setupMainMemoryOnly();
+        }
+
+        @Override
+        public void append(Path document) throws IOException {
+            // Данные страниц копируются в merged, исходный документ можно закрыть сразу
+            try (PDDocument source = PDDocument.load(document.toFile(), sourceMemory)) {
+                merger.appendDocument(merged, source);
+            }
+        }
+
+        // Документ сохраняется рядом и переименовывается: скачивание не видит недописанный PDF
+        @Override
+        public void finish(Path target) throws IOException {
+            Path partial = target.resolveSibling(target.getFileName() + ".part");
+            try {
+                merged.save(partial.toFile());
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(partial);
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            merged.close();
+        }
+    }
+
+    /**
+     * DOCX: содержимое тела каждого документа дописывается в файл на диске, между документами
+     * ставится разрыв раздела. Все документы пакета сделаны из одного шаблона, поэтому стили,
+     * связи и колонтитулы берутся из первого документа. Изображения сравниваются по хешу
+     * содержимого: одинаковая картинка всех документов хранится в файле один раз,
+     * ссылки на неё в теле переводятся на общую связь.
+     */
+    private static class DocxMergeWriter implements MergeWriter {
+        private static final String DOCUMENT_PART = "word/document.xml";
+        private static final String RELATIONSHIPS_PART = "word/_rels/document.xml.rels";
+        private static final String CONTENT_TYPES_PART = "[Content_Types].xml";
+        private static final String IMAGE_RELATIONSHIP =
+                "http://schemas.openxmlformats.org/officeDocument/2006/relationships/image";
+
+        private static final Pattern RELATIONSHIP = Pattern.compile("<Relationship\\b[^>]*>");
+        private static final Pattern ATTRIBUTE = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+        // r:embed у рисунков, r:id у картинок VML
+        private static final Pattern RELATIONSHIP_REFERENCE = Pattern.compile("(\\w+:(?:embed|id)=\")([^\"]+)\"");
+
+        private final Path workDir;
+        private final Path bodyFile;
+        private final Writer body;
+        private Path firstDocument;
+        private String documentHead;
+        private String documentTail;
+        private String bodyTag;
+        private int count;
+
+        // Хеш содержимого -> Id связи изображения в собранном документе
+        private final Map<String, String> imageRelationships = new HashMap<>();
+        // Изображения, которых нет в первом документе; содержимое ждёт finish во временных файлах
+        private final List<MergedImage> addedImages = new ArrayList<>();
+
+        DocxMergeWriter(Path workDir) throws IOException {
+            Files.createDirectories(workDir);
+            this.workDir = workDir;
+            this.bodyFile = Files.createTempFile(workDir, "merge-body-", ".xml");
+            this.body = new BufferedWriter(new OutputStreamWriter(
+                    Files.newOutputStream(bodyFile), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void append(Path document) throws IOException {
+            String xml;
+            Map<String, String> renamedRelationships;
+            try (ZipFile zip = new ZipFile(document.toFile())) {
+                ZipEntry entry = zip.getEntry(DOCUMENT_PART);
+                if (entry == null) {
+                    throw new IOException("Not a DOCX document: " + document.getFileName());
+                }
+                try (InputStream in = zip.getInputStream(entry)) {
+                    xml = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                }
+                renamedRelationships = mergeImages(zip, count == 0);
+            }
+
+            String prefix = RepeatingContentWriter.wordmlPrefix(xml);
+            String openBody = "<" + prefix + "body>";
+            int bodyStart = xml.indexOf(openBody);
+            int bodyEnd = xml.lastIndexOf("</" + prefix + "body>");
+            int sectionStart = xml.lastIndexOf("<" + prefix + "sectPr", bodyEnd);
+            if (sectionStart >= 0 && xml.indexOf("</" + prefix + "p>", sectionStart) >= 0) {
+                // Последний sectPr внутри параграфа — у тела своих свойств раздела нет
+                sectionStart = -1;
+            }
+            if (bodyStart < 0 || bodyEnd < 0) {
+                throw new IOException("Unexpected document.xml in " + document.getFileName());
+            }
+            int contentStart = bodyStart + openBody.length();
+            int contentEnd = sectionStart > contentStart ? sectionStart : bodyEnd;
+            String sectionProperties = xml.substring(contentEnd, bodyEnd);
+
+            if (count == 0) {
+                // Остальные части пакета берутся из копии первого документа
+                firstDocument = Files.createTempFile(workDir, "merge-base-", ".docx");
+                Files.copy(document, firstDocument, StandardCopyOption.REPLACE_EXISTING);
+                documentHead = xml.substring(0, contentStart);
+                documentTail = xml.substring(contentEnd);
+                bodyTag = prefix;
+            } else {
+                // Параграф со свойствами раздела завершает раздел предыдущего документа
+                body.write("<" + bodyTag + "p><" + bodyTag + "pPr>");
+                body.write(sectionProperties);
+                body.write("</" + bodyTag + "pPr></" + bodyTag + "p>");
+            }
+            if (renamedRelationships.isEmpty()) {
+                body.write(xml, contentStart, contentEnd - contentStart);
+            } else {
+                body.write(renameRelationships(xml.substring(contentStart, contentEnd), renamedRelationships));
+            }
+            count++;
+        }
+
+        /**
+         * Сопоставляет изображения документа с уже собранными по хешу содержимого.
+         * Возвращает Id связей документа, которые в собранном документе называются иначе.
+         */
+        private Map<String, String> mergeImages(ZipFile zip, boolean first) throws IOException {
+            ZipEntry relationshipsEntry = zip.getEntry(RELATIONSHIPS_PART);
+            if (relationshipsEntry == null) {
+                return Map.of();
+            }
+            String relationships;
+            try (InputStream in = zip.getInputStream(relationshipsEntry)) {
+                relationships = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+
+            Map<String, String> renamed = new HashMap<>();
+            Matcher matcher = RELATIONSHIP.matcher(relationships);
+            while (matcher.find()) {
+                Map<String, String> attributes = attributes(matcher.group());
+                String id = attributes.get("Id");
+                String target = attributes.get("Target");
+                if (id == null || target == null || !IMAGE_RELATIONSHIP.equals(attributes.get("Type"))
+                        || "External".equals(attributes.get("TargetMode"))) {
+                    continue;
+                }
+                ZipEntry imageEntry = zip.getEntry(target.startsWith("/") ? target.substring(1) : "word/" + target);
+                if (imageEntry == null) {
+                    continue;
+                }
+                byte[] content;
+                try (InputStream in = zip.getInputStream(imageEntry)) {
+                    content = in.readAllBytes();
+                }
+                String hash = sha256(content);
+
+                String mergedId = imageRelationships.get(hash);
+                if (mergedId == null) {
+                    if (first) {
+                        // Части первого документа копируются в итог как есть
+                        mergedId = id;
+                    } else {
+                        mergedId = addImage(content, target);
+                    }
+                    imageRelationships.put(hash, mergedId);
+                }
+                if (!first) {
+                    renamed.put(id, mergedId);
+                }
+            }
+            return renamed;
+        }
+
+        private String addImage(byte[] content, String target) throws IOException {
+            int number = addedImages.size() + 1;
+            int dot = target.lastIndexOf('.');
+            String extension = dot >= 0 ? target.substring(dot + 1).toLowerCase(Locale.ROOT) : "bin";
+            Path file = Files.createTempFile(workDir, "merge-image-", "." + extension);
+            Files.write(file, content);
+            MergedImage image = new MergedImage("rIdMerged" + number, "media/merged-" + number + "." + extension,
+                    extension, file);
+            addedImages.add(image);
+            return image.relationshipId;
+        }
+
+        private static String renameRelationships(String content, Map<String, String> renamed) {
+            Matcher matcher = RELATIONSHIP_REFERENCE.matcher(content);
+            StringBuilder result = new StringBuilder(content.length());
+            while (matcher.find()) {
+                String mergedId = renamed.get(matcher.group(2));
+                String replacement = mergedId != null
+                        ? matcher.group(1) + mergedId + "\""
+                        : matcher.group();
+                matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+            }
+            matcher.appendTail(result);
+            return result.toString();
+        }
+
+        private static Map<String, String> attributes(String element) {
+            Map<String, String> attributes = new HashMap<>();
+            Matcher matcher = ATTRIBUTE.matcher(element);
+            while (matcher.find()) {
+                attributes.put(matcher.group(1), matcher.group(2));
+            }
+            return attributes;
+        }
+
+        private static String sha256(byte[] content) {
+            try {
+                return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void finish(Path target) throws IOException {
+            body.flush();
+            if (firstDocument == null) {
+                throw new IOException("No documents to merge");
+            }
+
+            Path partial = target.resolveSibling(target.getFileName() + ".part");
+            try {
+                writeMerged(partial);
+                Files.move(partial, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(partial);
+                throw e;
+            }
+        }
+
+        private void writeMerged(Path partial) throws IOException {
+            try (ZipFile source = new ZipFile(firstDocument.toFile());
+                 ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(partial)))) {
+                Enumeration<? extends ZipEntry> entries = source.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    out.putNextEntry(new ZipEntry(entry.getName()));
+                    if (DOCUMENT_PART.equals(entry.getName())) {
+                        out.write(documentHead.getBytes(StandardCharsets.UTF_8));
+                        Files.copy(bodyFile, out);
+                        out.write(documentTail.getBytes(StandardCharsets.UTF_8));
+                    } else if (!addedImages.isEmpty() && RELATIONSHIPS_PART.equals(entry.getName())) {
+                        out.write(withImageRelationships(readEntry(source, entry)).getBytes(StandardCharsets.UTF_8));
+                    } else if (!addedImages.isEmpty() && CONTENT_TYPES_PART.equals(entry.getName())) {
+                        out.write(withImageContentTypes(readEntry(source, entry)).getBytes(StandardCharsets.UTF_8));
+                    } else {
+                        try (InputStream in = source.getInputStream(entry)) {
+                            in.transferTo(out);
+                        }
+                    }
+                    out.closeEntry();
+                }
+                for (MergedImage image : addedImages) {
+                    out.putNextEntry(new ZipEntry("word/" + image.target));
+                    Files.copy(image.file, out);
+                    out.closeEntry();
+                }
+            }
+        }
+
+        private static String readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+            try (InputStream in = zip.getInputStream(entry)) {
+                return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        private String withImageRelationships(String relationships) throws IOException {
+            int end = relationships.lastIndexOf("</Relationships>");
+            if (end < 0) {
+                throw new IOException("Unexpected " + RELATIONSHIPS_PART + " in merged document");
+            }
+            StringBuilder result = new StringBuilder(relationships.substring(0, end));
+            for (MergedImage image : addedImages) {
+                result.append("<Relationship Id=\"").append(image.relationshipId)
+                        .append("\" Type=\"").append(IMAGE_RELATIONSHIP)
+                        .append("\" Target=\"").append(image.target).append("\"/>");
+            }
+            return result.append(relationships.substring(end)).toString();
+        }
+
+        private String withImageContentTypes(String contentTypes) throws IOException {
+            int end = contentTypes.lastIndexOf("</Types>");
+            if (end < 0) {
+                throw new IOException("Unexpected " + CONTENT_TYPES_PART + " in merged document");
+            }
+            String lowerCase = contentTypes.toLowerCase(Locale.ROOT);
+            StringBuilder result = new StringBuilder(contentTypes.substring(0, end));
+            for (MergedImage image : addedImages) {
+                String declaration = "extension=\"" + image.extension + "\"";
+                if (!lowerCase.contains(declaration)) {
+                    result.append("<Default Extension=\"").append(image.extension)
+                            .append("\" ContentType=\"").append(imageContentType(image.extension)).append("\"/>");
+                    lowerCase += declaration;
+                }
+            }
+            return result.append(contentTypes.substring(end)).toString();
+        }
+
+        private static String imageContentType(String extension) {
+            switch (extension) {
+                case "jpg":
+                case "jpeg":
+                    return "image/jpeg";
+                case "gif":
+                    return "image/gif";
+                case "bmp":
+                    return "image/bmp";
+                case "emf":
+                    return "image/x-emf";
+                case "wmf":
+                    return "image/x-wmf";
+                default:
+                    return "image/" + extension;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+            Files.deleteIfExists(bodyFile);
+            if (firstDocument != null) {
+                Files.deleteIfExists(firstDocument);
+            }
+            for (MergedImage image : addedImages) {
+                Files.deleteIfExists(image.file);
+            }
+        }
+
+        private static class MergedImage {
+            private final String relationshipId;
+            // Путь относительно word/
+            private final String target;
+            private final String extension;
+            private final Path file;
+
+            MergedImage(String relationshipId, String target, String extension, Path file) {
+                this.relationshipId = relationshipId;
+                this.target = target;
+                this.extension = extension;
+                this.file = file;
+            }
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.service;
+
+import com.dto.TemplateRerenderStatus;
+import com.model.Template;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.Supplier;
+
+/**
+ * Фоновый перерендер сохранённых документов после изменения шаблона.
+ * Документы шаблона читаются частями по возрастанию id (пагинация по ключу), текст строится
+ * параллельно в пакетной полосе ExecutionLanes, а записывается одной транзакцией на часть.
+ * Пакетная полоса сокращается при задержках интерактивных запросов; пока она сокращена,
+ * между частями делается пауза, чтобы не нагружать и БД.
+ * У шаблона одновременно идёт один перерендер: новый запуск отменяет предыдущий.
+ * Состояние хранится в памяти; после перезапуска приложения перерендер запускают снова,
+ * документы, уже построенные по текущей версии шаблона, пропускаются (onlyStale).
+ */
+@Service
+public class DocumentRerenderService {
+
+    private static final Logger logger = LoggerFactory.getLogger(DocumentRerenderService.class);
+
+    public static final String STATUS_QUEUED = "QUEUED";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_CANCELLED = "CANCELLED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    // Число документов в одном запросе подсчёта выбранных документов
+    private static final int COUNT_SLICE = 1000;
+
+    private final DocumentService documentService;
+    private final TemplateService templateService;
+    private final BatchJobService batchJobService;
+    private final ExecutionLanes executionLanes;
+    private final int chunkSize;
+    private final long throttledPauseMillis;
+    private final ThreadPoolExecutor jobExecutor;
+    private final ThreadPoolExecutor renderExecutor;
+
+    // Последний перерендер каждого шаблона
+    private final Map<Long, RerenderJob> jobsByTemplate = new ConcurrentHashMap<>();
+
+    public DocumentRerenderService(DocumentService documentService,
+                                   TemplateService templateService,
+                                   BatchJobService batchJobService,
+                                   ExecutionLanes executionLanes,
+                                   @Value("${rerender.chunk-size:200}") int chunkSize,
+                                   @Value("${rerender.render.threads:2}") int renderThreads,
+                                   @Value("${rerender.jobs.concurrency:1}") int jobConcurrency,
+                                   @Value("${rerender.jobs.max-queued:20}") int maxQueuedJobs,
+                                   @Value("${rerender.throttled-pause-ms:500}") long throttledPauseMillis) {
+        this.documentService = documentService;
+        this.templateService = templateService;
+        this.batchJobService = batchJobService;
+        this.executionLanes = executionLanes;
+        this.chunkSize = chunkSize;
+        this.throttledPauseMillis = throttledPauseMillis;
+        this.jobExecutor = BoundedExecutors.newRejectingExecutor(
+                "rerender-job-", jobConcurrency, maxQueuedJobs, Thread.NORM_PRIORITY);
+        // Очередь на одну часть: поток задачи ждёт, пока рендер не догонит
+        this.renderExecutor = BoundedExecutors.newBlockingExecutor(
+                "rerender-render-", renderThreads, chunkSize, Thread.MIN_PRIORITY);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        jobExecutor.shutdownNow();
+        renderExecutor.shutdownNow();
+    }
+
+    /**
+     * Ставит перерендер документов шаблона в очередь; documentIds — только эти документы.
+     * RejectedExecutionException, если очередь перерендеров заполнена
+     */
+    public TemplateRerenderStatus start(Template template, List<Long> documentIds, boolean onlyStale) {
+        long[] subset = documentIds != null
+                ? documentIds.stream().filter(id -> id != null).mapToLong(Long::longValue).sorted().distinct().toArray()
+                : null;
+        RerenderJob job = new RerenderJob(template.getId(), subset, onlyStale);
+
+        RerenderJob previous = jobsByTemplate.put(template.getId(), job);
+        if (previous != null && previous.cancel()) {
+            logger.info("Re-render of template {} superseded by a new request", template.getId());
+        }
+        try {
+            jobExecutor.execute(() -> runSafely(job));
+        } catch (RuntimeException e) {
+            jobsByTemplate.remove(template.getId(), job);
+            throw e;
+        }
+        return job.toStatus(executionLanes.isBulkThrottled());
+    }
+
+    public Optional<TemplateRerenderStatus> getStatus(Long templateId) {
+        RerenderJob job = jobsByTemplate.get(templateId);
+        return job != null ? Optional.of(job.toStatus(executionLanes.isBulkThrottled())) : Optional.empty();
+    }
+
+    /**
+     * Отменяет перерендер шаблона; уже записанные части остаются. false — отменять нечего
+     */
+    public boolean cancel(Long templateId) {
+        RerenderJob job = jobsByTemplate.get(templateId);
+        return job != null && job.cancel();
+    }
+
+    private void runSafely(RerenderJob job) {
+        try {
+            run(job);
+        } catch (RuntimeException e) {
+            logger.error("Re-render of template {} failed", job.templateId, e);
+            job.finish(STATUS_FAILED, e.getMessage());
+        }
+    }
+
+    private void run(RerenderJob job) {
+        if (!job.begin()) {
+            return;
+        }
+        Template template = batchJobService.findTemplate(job.templateId).orElse(null);
+        if (template == null) {
+            job.finish(STATUS_FAILED, "Template not found");
+            return;
+        }
+        job.templateVersion = template.getVersionKey();
+        job.totalDocuments = count(job, template);
+        logger.info("Re-rendering up to {} documents of template {} (version {})",
+                job.totalDocuments, job.templateId, job.templateVersion);
+
+        long afterId = 0;
+        while (!job.cancelled) {
+            List<Long> ids;
+            long cursor;
+            if (job.subset == null) {
+                ids = documentService.findIdsForRerender(
+                        job.templateId, afterId, job.onlyStale, job.templateVersion, chunkSize);
+                if (ids.isEmpty()) {
+                    break;
+                }
+                cursor = ids.get(ids.size() - 1);
+            } else {
+                List<Long> slice = nextSlice(job.subset, afterId, chunkSize);
+                if (slice.isEmpty()) {
+                    break;
+                }
+                ids = documentService.findIdsForRerender(job.templateId, slice, job.onlyStale, job.templateVersion);
+                cursor = slice.get(slice.size() - 1);
+            }
+
+            if (!ids.isEmpty()) {
+                rerenderChunk(job, template, ids);
+            }
+            afterId = cursor;
+            job.lastDocumentId = cursor;
+
+            // Шаблон изменили во время перерендера: проход начинается заново по новой версии
+            Optional<String> currentVersion = templateService.getTemplateById(job.templateId).map(Template::getVersionKey);
+            if (currentVersion.isEmpty()) {
+                job.finish(STATUS_FAILED, "Template was deleted during re-render");
+                return;
+            }
+            if (!currentVersion.get().equals(job.templateVersion)) {
+                template = batchJobService.findTemplate(job.templateId).orElse(template);
+                logger.info("Template {} changed during re-render, restarting with version {}",
+                        job.templateId, template.getVersionKey());
+                job.restart(template.getVersionKey(), count(job, template));
+                afterId = 0;
+            }
+
+            pauseWhileThrottled();
+        }
+
+        job.finish(job.cancelled ? STATUS_CANCELLED : STATUS_COMPLETED, job.errorMessage);
+        logger.info("Re-render of template {} {}: {} rendered, {} failed", job.templateId,
+                job.status.toLowerCase(), job.renderedDocuments, job.failedDocuments);
+    }
+
+    // Текст части строится параллельно в пакетной полосе, записывается одной транзакцией
+    private void rerenderChunk(RerenderJob job, Template template, List<Long> ids) {
+        Map<Long, Map<String, String>> dataById = documentService.loadData(ids);
+
+        List<CompletableFuture<String>> rendered = new ArrayList<>(ids.size());
+        for (Long id : ids) {
+            Map<String, String> data = dataById.get(id);
+            rendered.add(CompletableFuture.supplyAsync(
+                    () -> inBulkLane(() -> documentService.generateContent(template, data)), renderExecutor));
+        }
+
+        Map<Long, String> contentById = new LinkedHashMap<>();
+        for (int i = 0; i < ids.size(); i++) {
+            try {
+                contentById.put(ids.get(i), rendered.get(i).join());
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                job.failedDocuments++;
+                job.errorMessage = "Document " + ids.get(i) + ": " + cause.getMessage();
+                logger.warn("Re-render of document {} failed: {}", ids.get(i), cause.getMessage());
+            }
+        }
+
+        if (!contentById.isEmpty()) {
+            documentService.saveRenderedContent(contentById, job.templateVersion);
+        }
+        job.renderedDocuments += contentById.size();
+        job.processedDocuments += ids.size();
+    }
+
+    private String inBulkLane(Supplier<String> render) {
+        try {
+            executionLanes.enterBulk();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+        try {
+            return render.get();
+        } finally {
+            executionLanes.exitBulk();
+        }
+    }
+
+    private void pauseWhileThrottled() {
+        if (throttledPauseMillis <= 0 || !executionLanes.isBulkThrottled()) {
+            return;
+        }
+        try {
+            Thread.sleep(throttledPauseMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Re-render interrupted", e);
+        }
+    }
+
+    private long count(RerenderJob job, Template template) {
+        if (job.subset == null) {
+            return documentService.countForRerender(job.templateId, job.onlyStale, template.getVersionKey());
+        }
+        long total = 0;
+        long afterId = 0;
+        List<Long> slice;
+        while (!(slice = nextSlice(job.subset, afterId, COUNT_SLICE)).isEmpty()) {
+            total += documentService.findIdsForRerender(
+                    job.templateId, slice, job.onlyStale, template.getVersionKey()).size();
+            afterId = slice.get(slice.size() - 1);
+        }
+        return total;
+    }
+
+    // Следующие не более limit id из отсортированного набора, большие afterId
+    private static List<Long> nextSlice(long[] ids, long afterId, int limit) {
+        int from = Arrays.binarySearch(ids, afterId);
+        from = from >= 0 ? from + 1 : -from - 1;
+        int to = Math.min(ids.length, from + limit);
+        List<Long> slice = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            slice.add(ids[i]);
+        }
+        return slice;
+    }
+
+    // Состояние перерендера; счётчики пишет только поток задачи, читают запросы статуса
+    private static class RerenderJob {
+        private final Long templateId;
+        private final long[] subset;
+        private final boolean onlyStale;
+        private final LocalDateTime createdAt = LocalDateTime.now();
+
+        private volatile String status = STATUS_QUEUED;
+        private volatile boolean cancelled;
+        private volatile String templateVersion;
+        private volatile long totalDocuments;
+        private volatile long processedDocuments;
+        private volatile long renderedDocuments;
+        private volatile long failedDocuments;
+        private volatile int restarts;
+        private volatile long lastDocumentId;
+        private volatile String errorMessage;
+        private volatile LocalDateTime startedAt;
+        private volatile LocalDateTime finishedAt;
+
+        RerenderJob(Long templateId, long[] subset, boolean onlyStale) {
+            this.templateId = templateId;
+            this.subset = subset;
+            this.onlyStale = onlyStale;
+        }
+
+        synchronized boolean begin() {
+            if (cancelled) {
+                return false;
+            }
+            status = STATUS_RUNNING;
+            startedAt = LocalDateTime.now();
+            return true;
+        }
+
+        synchronized boolean cancel() {
+            if (cancelled || isFinished()) {
+                return false;
+            }
+            cancelled = true;
+            if (STATUS_QUEUED.equals(status)) {
+                // Задача ещё в очереди и не начнётся
+                status = STATUS_CANCELLED;
+                finishedAt = LocalDateTime.now();
+            }
+            return true;
+        }
+
+        synchronized void restart(String version, long total) {
+            templateVersion = version;
+            totalDocuments = processedDocuments + total;
+            restarts++;
+        }
+
+        synchronized void finish(String finalStatus, String message) {
+            status = finalStatus;
+            errorMessage = message;
+            finishedAt = LocalDateTime.now();
+        }
+
+        private boolean isFinished() {
+            return STATUS_COMPLETED.equals(status) || STATUS_CANCELLED.equals(status) || STATUS_FAILED.equals(status);
+        }
+
+        TemplateRerenderStatus toStatus(boolean throttled) {
+            TemplateRerenderStatus result = new TemplateRerenderStatus();
+            result.setTemplateId(templateId);
+            result.setTemplateVersion(templateVersion);
+            result.setStatus(status);
+            result.setOnlyStale(onlyStale);
+            result.setTotalDocuments(totalDocuments);
+            result.setProcessedDocuments(processedDocuments);
+            result.setRenderedDocuments(renderedDocuments);
+            result.setFailedDocuments(failedDocuments);
+            result.setRestarts(restarts);
+            result.setLastDocumentId(lastDocumentId);
+            result.setErrorMessage(errorMessage);
+            result.setCreatedAt(createdAt);
+            result.setStartedAt(startedAt);
+            result.setFinishedAt(finishedAt);
+            if (startedAt != null) {
+                LocalDateTime end = finishedAt != null ? finishedAt : LocalDateTime.now();
+                double seconds = Duration.between(startedAt, end).toMillis() / 1000.0;
+                result.setDocumentsPerSecond(seconds > 0 ? Math.round(processedDocuments / seconds * 10) / 10.0 : 0);
+            }
+            result.setThrottled(throttled && STATUS_RUNNING.equals(status));
+            return result;
+        }
+    }
+}
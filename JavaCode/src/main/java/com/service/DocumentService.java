@@ -6,9 +6,13 @@ import com.model.Template;
 import com.model.User;
 import com.repository.DocumentRepository;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
@@ -22,6 +26,12 @@ public class DocumentService {
     @Autowired
     private DocumentRepository documentRepository;
 
+    @Autowired
+    private FreemarkerTemplateEngine freemarkerTemplateEngine;
+
+    @Autowired
+    private FieldFormatService fieldFormatService;
+
     public List<Document> getUserDocuments(User user) {
         try {
             return documentRepository.findByUser(user);
@@ -36,19 +46,68 @@ public class DocumentService {
 
     public Document generateDocument(String name, Template template, User user, Map<String, String> data) {
         try {
-            String generatedContent = generateContent(template.getContent(), data);
-
-            Document document = new Document(name, template, user);
-            document.setData(data);
-            document.setGeneratedContent(generatedContent);
-            document.setStatus("GENERATED");
-
-            return documentRepository.save(document);
+            String generatedContent = generateContent(template, data);
+            return saveGeneratedDocument(name, template, user, data, generatedContent);
         } catch (Exception e) {
             throw new RuntimeException("Error generating document: " + e.getMessage());
         }
     }
 
+    // Сохраняет документ с уже сгенерированным текстом (пакетная генерация рендерит текст один раз)
+    public Document saveGeneratedDocument(String name, Template template, User user,
+                                          Map<String, String> data, String generatedContent) {
+        Document document = new Document(name, template, user);
+        document.setData(data);
+        document.setGeneratedContent(generatedContent);
+        document.setTemplateVersion(template.getVersionKey());
+        document.setStatus("GENERATED");
+
+        return documentRepository.save(document);
+    }
+
+    // Документ строки пакета: при повторе строки (продолжение пакета, повтор части)
+    // обновляется уже сохранённый документ. Одновременную вставку отсекает уникальный ключ (batch_id, batch_row)
+    public Document saveBatchDocument(String batchId, int rowIndex, String name, Template template, User user,
+                                      Map<String, String> data, String generatedContent) {
+        Optional<Document> existing = documentRepository.findByBatchIdAndBatchRow(batchId, rowIndex);
+        if (existing.isPresent()) {
+            return updateBatchDocument(existing.get(), name, data, generatedContent, template);
+        }
+
+        Document document = new Document(name, template, user);
+        document.setBatchId(batchId);
+        document.setBatchRow(rowIndex);
+        document.setData(data);
+        document.setGeneratedContent(generatedContent);
+        document.setTemplateVersion(template.getVersionKey());
+        try {
+            return documentRepository.saveAndFlush(document);
+        } catch (DataIntegrityViolationException e) {
+            Document saved = documentRepository.findByBatchIdAndBatchRow(batchId, rowIndex).orElseThrow(() -> e);
+            return updateBatchDocument(saved, name, data, generatedContent, template);
+        }
+    }
+
+    private Document updateBatchDocument(Document document, String name, Map<String, String> data,
+                                         String generatedContent, Template template) {
+        document.setName(name);
+        document.setData(new HashMap<>(data));
+        document.setGeneratedContent(generatedContent);
+        document.setTemplateVersion(template.getVersionKey());
+        document.setStatus("GENERATED");
+        return documentRepository.save(document);
+    }
+
+    // Текст документа: через FreeMarker, если он включён для шаблона, иначе простой подстановкой.
+    // Значения типизированных полей форматируются по локали шаблона
+    public String generateContent(Template template, Map<String, String> data) {
+        Map<String, String> values = fieldFormatService.format(template, data);
+        if (freemarkerTemplateEngine.supports(template)) {
+            return freemarkerTemplateEngine.render(template, values);
+        }
+        return generateContent(fieldFormatService.textContent(template), values);
+    }
+
     // NEW: Публичный метод для генерации контента (используется в BatchDocumentService)
     public String generateContent(String templateContent, Map<String, String> data) {
         if (templateContent == null) return "";
@@ -69,6 +128,45 @@ public class DocumentService {
         return result;
     }
 
+    // Следующие id документов шаблона для перерендера; afterId — последний обработанный id
+    public List<Long> findIdsForRerender(Long templateId, long afterId, boolean onlyStale,
+                                         String templateVersion, int limit) {
+        return documentRepository.findIdsForRerender(templateId, afterId, onlyStale, templateVersion, limit);
+    }
+
+    public List<Long> findIdsForRerender(Long templateId, Collection<Long> ids, boolean onlyStale,
+                                         String templateVersion) {
+        return documentRepository.findIdsForRerender(templateId, ids, onlyStale, templateVersion);
+    }
+
+    public long countForRerender(Long templateId, boolean onlyStale, String templateVersion) {
+        return documentRepository.countForRerender(templateId, onlyStale, templateVersion);
+    }
+
+    // Данные документов по id; у документа без данных — пустой словарь
+    public Map<Long, Map<String, String>> loadData(Collection<Long> ids) {
+        Map<Long, Map<String, String>> dataById = new HashMap<>();
+        for (Long id : ids) {
+            dataById.put(id, new HashMap<>());
+        }
+        for (Object[] row : documentRepository.findDataRows(ids)) {
+            Map<String, String> data = dataById.get(((Number) row[0]).longValue());
+            if (data != null) {
+                data.put((String) row[1], (String) row[2]);
+            }
+        }
+        return dataById;
+    }
+
+    // Новый текст документов одной транзакцией: UPDATE уходят пачками (hibernate.jdbc.batch_size)
+    @Transactional
+    public void saveRenderedContent(Map<Long, String> contentById, String templateVersion) {
+        for (Document document : documentRepository.findAllById(contentById.keySet())) {
+            document.setGeneratedContent(contentById.get(document.getId()));
+            document.setTemplateVersion(templateVersion);
+        }
+    }
+
     public void deleteDocument(Long id) {
         documentRepository.deleteById(id);
     }
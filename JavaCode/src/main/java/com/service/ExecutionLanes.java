@@ -0,0 +1,164 @@
+package com.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ConcurrentTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Две полосы выполнения генерации.
+ * Интерактивная (предпросмотр, одиночные экспорты) — отдельный пул для потоковых ответов;
+ * p99 задержки считается по самой генерации (timeInteractive), без ожидания слота и записи ответа клиенту. Пакетная (пакеты, массовый перерендер) ограничена числом
+ * одновременных задач и сокращает его, когда p99 интерактивной полосы превышает порог.
+ */
+@Service
+public class ExecutionLanes {
+
+    private static final long P99_REFRESH_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final ThreadPoolExecutor interactiveExecutor;
+    private final ConcurrentTaskExecutor interactiveTaskExecutor;
+    private final LatencyWindow interactiveLatency;
+
+    private final int bulkConcurrency;
+    private final int throttledBulkConcurrency;
+    private final long p99ThresholdNanos;
+
+    private final Object bulkLock = new Object();
+    private int bulkRunning;
+
+    public ExecutionLanes(
+            @Value("${lanes.interactive.threads:8}") int interactiveThreads,
+            @Value("${lanes.interactive.queue-capacity:100}") int interactiveQueueCapacity,
+            @Value("${lanes.interactive.latency-window-seconds:10}") long latencyWindowSeconds,
+            @Value("${lanes.bulk.concurrency:4}") int bulkConcurrency,
+            @Value("${lanes.bulk.throttled-concurrency:1}") int throttledBulkConcurrency,
+            @Value("${lanes.bulk.interactive-p99-threshold-ms:500}") long p99ThresholdMillis) {
+        this.interactiveExecutor = BoundedExecutors.newRejectingExecutor(
+                "lane-interactive-", interactiveThreads, interactiveQueueCapacity, Thread.MAX_PRIORITY - 1);
+        this.interactiveLatency = new LatencyWindow(1024, TimeUnit.SECONDS.toNanos(latencyWindowSeconds));
+        this.interactiveTaskExecutor = new ConcurrentTaskExecutor(interactiveExecutor);
+
+        this.bulkConcurrency = bulkConcurrency;
+        this.throttledBulkConcurrency = throttledBulkConcurrency;
+        this.p99ThresholdNanos = TimeUnit.MILLISECONDS.toNanos(p99ThresholdMillis);
+    }
+
+    /**
+     * Пул интерактивной полосы; на нём выполняются потоковые ответы MVC
+     */
+    public AsyncTaskExecutor getInteractiveExecutor() {
+        return interactiveTaskExecutor;
+    }
+
+    /**
+     * Замер интерактивной генерации (рендер, конвертация); открывается после получения слота
+     * GenerationScheduler и закрывается до записи ответа
+     */
+    public InteractiveTimer timeInteractive() {
+        return new InteractiveTimer();
+    }
+
+    public long getInteractiveP99Millis() {
+        return TimeUnit.NANOSECONDS.toMillis(interactiveLatency.p99());
+    }
+
+    public boolean isBulkThrottled() {
+        return interactiveLatency.p99() > p99ThresholdNanos;
+    }
+
+    /**
+     * Занимает место в пакетной полосе; ждёт, пока число пакетных задач превышает текущий лимит
+     */
+    public void enterBulk() throws InterruptedException {
+        synchronized (bulkLock) {
+            // Лимит пересчитывается периодически: p99 меняется без уведомлений
+            while (bulkRunning >= currentBulkLimit()) {
+                bulkLock.wait(100);
+            }
+            bulkRunning++;
+        }
+    }
+
+    public void exitBulk() {
+        synchronized (bulkLock) {
+            bulkRunning--;
+            bulkLock.notifyAll();
+        }
+    }
+
+    private int currentBulkLimit() {
+        return isBulkThrottled() ? throttledBulkConcurrency : bulkConcurrency;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        interactiveExecutor.shutdownNow();
+    }
+
+    public class InteractiveTimer implements AutoCloseable {
+        private final long startedAt = System.nanoTime();
+
+        private InteractiveTimer() {
+        }
+
+        @Override
+        public void close() {
+            interactiveLatency.record(System.nanoTime() - startedAt);
+        }
+    }
+
+    // Последние замеры задержки за окно времени; p99 пересчитывается не чаще раза в 500 мс
+    private static class LatencyWindow {
+        private final long[] samples;
+        private final long[] recordedAt;
+        private final long windowNanos;
+        private int next;
+        private int count;
+
+        private long cachedP99;
+        private long cachedAt;
+
+        LatencyWindow(int capacity, long windowNanos) {
+            this.samples = new long[capacity];
+            this.recordedAt = new long[capacity];
+            this.windowNanos = windowNanos;
+        }
+
+        synchronized void record(long latencyNanos) {
+            samples[next] = latencyNanos;
+            recordedAt[next] = System.nanoTime();
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        synchronized long p99() {
+            long now = System.nanoTime();
+            if (cachedAt != 0 && now - cachedAt < P99_REFRESH_NANOS) {
+                return cachedP99;
+            }
+
+            long[] recent = new long[count];
+            int size = 0;
+            for (int i = 0; i < count; i++) {
+                if (now - recordedAt[i] <= windowNanos) {
+                    recent[size++] = samples[i];
+                }
+            }
+
+            if (size == 0) {
+                cachedP99 = 0;
+            } else {
+                Arrays.sort(recent, 0, size);
+                cachedP99 = recent[Math.min(size - 1, (int) Math.ceil(size * 0.99) - 1)];
+            }
+            cachedAt = now;
+            return cachedP99;
+        }
+    }
+}
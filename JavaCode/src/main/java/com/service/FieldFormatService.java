@@ -0,0 +1,284 @@
+package com.service;
+
+import com.model.Template;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.text.NumberFormat;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.format.FormatStyle;
+import java.time.temporal.TemporalAccessor;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Форматирование типизированных полей шаблона при рендере.
+ * Тип поля в Template.fields: text, date[:шаблон], number[:шаблон DecimalFormat],
+ * currency[:код валюты], boolean[:да/нет], image[:ШxВ]. Значения приходят в нейтральном виде
+ * (2024-03-05, 1234.5, true) и выводятся по локали шаблона.
+ * Форматтеры создаются один раз на тип, шаблон и локаль и потокобезопасны;
+ * значение, которое не удалось разобрать, выводится как есть.
+ * Поля image вставляются картинкой только в DOCX (MediaService), в тексте их нет.
+ */
+@Service
+public class FieldFormatService {
+
+    public static final String TYPE_TEXT = "text";
+    public static final String TYPE_DATE = "date";
+    public static final String TYPE_NUMBER = "number";
+    public static final String TYPE_CURRENCY = "currency";
+    public static final String TYPE_BOOLEAN = "boolean";
+    public static final String TYPE_IMAGE = "image";
+
+    private static final DateTimeFormatter INPUT_DOTTED_DATE = DateTimeFormatter.ofPattern("dd.MM.yyyy");
+    private static final Set<String> TRUE_VALUES = Set.of("true", "1", "yes", "y", "on", "да");
+    private static final Set<String> FALSE_VALUES = Set.of("false", "0", "no", "n", "off", "нет");
+
+    // Скомпилированных полей хватает на все шаблоны, которые рендерятся одновременно
+    private static final int MAX_COMPILED_TEMPLATES = 1024;
+
+    private final Locale defaultLocale;
+
+    // Ключ — тип, шаблон и локаль
+    private final Map<String, FieldFormat> formatters = new ConcurrentHashMap<>();
+    // Ключ — версия шаблона
+    private final Map<String, CompiledFields> compiledTemplates = new ConcurrentHashMap<>();
+
+    public FieldFormatService(@Value("${template.fields.default-locale:ru-RU}") String defaultLocale) {
+        this.defaultLocale = Locale.forLanguageTag(defaultLocale);
+    }
+
+    /**
+     * Данные для рендера с отформатированными значениями типизированных полей.
+     * Если таких полей у шаблона нет, возвращается исходная карта без копирования
+     */
+    public Map<String, String> format(Template template, Map<String, String> data) {
+        if (data == null || template.getFields() == null || template.getFields().isEmpty()) {
+            return data;
+        }
+        CompiledFields compiled = compile(template);
+        if (compiled.formats.isEmpty() && compiled.imageFields.isEmpty()) {
+            return data;
+        }
+
+        Map<String, String> formatted = new LinkedHashMap<>(data);
+        for (Map.Entry<String, FieldFormat> field : compiled.formats.entrySet()) {
+            String value = data.get(field.getKey());
+            if (value != null && !value.isBlank()) {
+                formatted.put(field.getKey(), field.getValue().format(value.trim(), value));
+            }
+        }
+        for (String field : compiled.imageFields) {
+            if (formatted.containsKey(field)) {
+                formatted.put(field, "");
+            }
+        }
+        return formatted;
+    }
+
+    /**
+     * Текст шаблона для простой подстановки: плейсхолдеры полей image убраны,
+     * иначе пустое значение оставило бы в тексте ${поле}
+     */
+    public String textContent(Template template) {
+        if (template.getFields() == null || template.getFields().isEmpty() || template.getContent() == null) {
+            return template.getContent();
+        }
+        return compile(template).textContent;
+    }
+
+    /**
+     * Проверяет описание типа поля; IllegalArgumentException с причиной, если тип или шаблон неверны
+     */
+    public void validate(String spec, String locale) {
+        formatter(spec, locale != null ? Locale.forLanguageTag(locale) : defaultLocale);
+    }
+
+    static boolean isImage(String spec) {
+        return spec != null && TYPE_IMAGE.equals(typeOf(spec));
+    }
+
+    private CompiledFields compile(Template template) {
+        CompiledFields compiled = compiledTemplates.get(template.getVersionKey());
+        if (compiled != null) {
+            return compiled;
+        }
+
+        Locale locale = template.getLocale() != null ? Locale.forLanguageTag(template.getLocale()) : defaultLocale;
+        compiled = new CompiledFields();
+        String textContent = template.getContent();
+        for (Map.Entry<String, String> field : template.getFields().entrySet()) {
+            if (field.getValue() == null || TYPE_TEXT.equals(typeOf(field.getValue()))) {
+                continue;
+            }
+            if (isImage(field.getValue())) {
+                compiled.imageFields.add(field.getKey());
+                if (textContent != null) {
+                    textContent = textContent.replace("${" + field.getKey() + "}", "");
+                }
+                continue;
+            }
+            try {
+                compiled.formats.put(field.getKey(), formatter(field.getValue(), locale));
+            } catch (IllegalArgumentException e) {
+                // Неизвестный тип в старых данных: поле выводится как текст
+            }
+        }
+        compiled.textContent = textContent;
+
+        if (compiledTemplates.size() >= MAX_COMPILED_TEMPLATES) {
+            compiledTemplates.clear();
+        }
+        compiledTemplates.put(template.getVersionKey(), compiled);
+        return compiled;
+    }
+
+    private FieldFormat formatter(String spec, Locale locale) {
+        String key = spec + "|" + locale.toLanguageTag();
+        FieldFormat cached = formatters.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        // Создание может бросить IllegalArgumentException: неверное описание не кешируется
+        FieldFormat created = createFormatter(typeOf(spec), patternOf(spec), locale);
+        FieldFormat existing = formatters.putIfAbsent(key, created);
+        return existing != null ? existing : created;
+    }
+
+    private FieldFormat createFormatter(String type, String pattern, Locale locale) {
+        switch (type) {
+            case TYPE_TEXT:
+                return (value, raw) -> raw;
+            case TYPE_DATE: {
+                DateTimeFormatter formatter = pattern != null
+                        ? DateTimeFormatter.ofPattern(pattern, locale)
+                        : DateTimeFormatter.ofLocalizedDate(FormatStyle.LONG).withLocale(locale);
+                return (value, raw) -> {
+                    TemporalAccessor date = parseDate(value);
+                    if (date == null) {
+                        return raw;
+                    }
+                    try {
+                        return formatter.format(date);
+                    } catch (RuntimeException e) {
+                        // В шаблоне время, а в значении только дата
+                        return raw;
+                    }
+                };
+            }
+            case TYPE_NUMBER: {
+                if (pattern != null) {
+                    // Проверка шаблона сразу, а не при первом значении
+                    new DecimalFormat(pattern, DecimalFormatSymbols.getInstance(locale));
+                }
+                // DecimalFormat не потокобезопасен: у каждого потока рендера свой экземпляр
+                ThreadLocal<NumberFormat> format = ThreadLocal.withInitial(() -> pattern != null
+                        ? new DecimalFormat(pattern, DecimalFormatSymbols.getInstance(locale))
+                        : NumberFormat.getNumberInstance(locale));
+                return (value, raw) -> {
+                    BigDecimal number = parseNumber(value);
+                    return number != null ? format.get().format(number) : raw;
+                };
+            }
+            case TYPE_CURRENCY: {
+                Currency currency = pattern != null ? Currency.getInstance(pattern.toUpperCase(Locale.ROOT)) : null;
+                ThreadLocal<NumberFormat> format = ThreadLocal.withInitial(() -> {
+                    NumberFormat currencyFormat = NumberFormat.getCurrencyInstance(locale);
+                    if (currency != null) {
+                        currencyFormat.setCurrency(currency);
+                    }
+                    return currencyFormat;
+                });
+                return (value, raw) -> {
+                    BigDecimal number = parseNumber(value);
+                    return number != null ? format.get().format(number) : raw;
+                };
+            }
+            case TYPE_IMAGE:
+                // Проверка размера; в тексте картинки нет
+                MediaService.parseSize(pattern);
+                return (value, raw) -> "";
+            case TYPE_BOOLEAN: {
+                String[] labels = pattern != null ? pattern.split("/", -1) : defaultBooleanLabels(locale);
+                if (labels.length != 2) {
+                    throw new IllegalArgumentException("Boolean labels must look like yes/no: " + pattern);
+                }
+                return (value, raw) -> {
+                    String normalized = value.toLowerCase(Locale.ROOT);
+                    if (TRUE_VALUES.contains(normalized)) {
+                        return labels[0];
+                    }
+                    if (FALSE_VALUES.contains(normalized)) {
+                        return labels[1];
+                    }
+                    return raw;
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown field type: " + type);
+        }
+    }
+
+    // 2024-03-05, 2024-03-05T10:15[:30], с часовым поясом или 05.03.2024
+    private static TemporalAccessor parseDate(String value) {
+        try {
+            if (value.indexOf('T') > 0) {
+                return value.endsWith("Z") || value.lastIndexOf('+') > 0 || value.lastIndexOf('-') > 10
+                        ? OffsetDateTime.parse(value)
+                        : LocalDateTime.parse(value);
+            }
+            if (value.indexOf('.') > 0) {
+                return LocalDate.parse(value, INPUT_DOTTED_DATE);
+            }
+            return LocalDate.parse(value);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    // 1234.5, 1 234,5 или 1234,5: пробелы разрядов убираются, единственная запятая — десятичная
+    private static BigDecimal parseNumber(String value) {
+        String normalized = value.replace(" ", "").replace("\u00A0", "").replace("\u202F", "");
+        if (normalized.indexOf('.') < 0 && normalized.indexOf(',') == normalized.lastIndexOf(',')) {
+            normalized = normalized.replace(',', '.');
+        }
+        try {
+            return new BigDecimal(normalized);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String[] defaultBooleanLabels(Locale locale) {
+        return "ru".equals(locale.getLanguage()) ? new String[] {"Да", "Нет"} : new String[] {"Yes", "No"};
+    }
+
+    private static String typeOf(String spec) {
+        int colon = spec.indexOf(':');
+        return (colon < 0 ? spec : spec.substring(0, colon)).trim().toLowerCase(Locale.ROOT);
+    }
+
+    static String patternOf(String spec) {
+        int colon = spec.indexOf(':');
+        return colon < 0 || colon == spec.length() - 1 ? null : spec.substring(colon + 1);
+    }
+
+    private static class CompiledFields {
+        private final Map<String, FieldFormat> formats = new HashMap<>();
+        private final Set<String> imageFields = new HashSet<>();
+        private String textContent;
+    }
+
+    @FunctionalInterface
+    private interface FieldFormat {
+        // value — без пробелов по краям, raw — как пришло
+        String format(String value, String raw);
+    }
+}
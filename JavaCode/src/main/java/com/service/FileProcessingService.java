@@ -1,23 +1,32 @@
 package com.service;
 
+import com.model.InMemoryMultipartFile;
+import com.model.Template;
+import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
 import org.apache.poi.xwpf.usermodel.*;
-import org.apache.pdfbox.pdmodel.PDDocument;
-import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.PDPageContentStream;
-import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTPageMar;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTPageSz;
 import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTR;
+import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTSectPr;
 import org.openxmlformats.schemas.wordprocessingml.x2006.main.CTText;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -26,6 +35,23 @@ public class FileProcessingService {
 
     private static final Logger logger = LoggerFactory.getLogger(FileProcessingService.class);
 
+    public static final String DOCX_CONTENT_TYPE =
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    @Autowired
+    private FreemarkerTemplateEngine freemarkerTemplateEngine;
+
+    @Autowired
+    private OutputBufferService outputBufferService;
+
+    @Autowired
+    private FieldFormatService fieldFormatService;
+
+    @Autowired
+    private MediaService mediaService;
+
     public String extractTextFromDocx(MultipartFile file) throws IOException {
         StringBuilder content = new StringBuilder();
 
@@ -92,49 +118,158 @@ public class FileProcessingService {
      * Генерирует DOCX на основе оригинального шаблона DOCX с заменой переменных
      */
     public byte[] generateDocxFromTemplate(MultipartFile templateFile, Map<String, String> data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        generateDocxFromTemplate(templateFile, data, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * То же, что generateDocxFromTemplate, но пишет результат сразу в переданный поток
+     */
+    public void generateDocxFromTemplate(MultipartFile templateFile, Map<String, String> data,
+                                         OutputStream outputStream) throws IOException {
+        generateDocxFromTemplate(templateFile, data, outputStream, Map.of());
+    }
+
+    private void generateDocxFromTemplate(MultipartFile templateFile, Map<String, String> data,
+                                          OutputStream outputStream,
+                                          Map<String, MediaService.PlacedImage> images) throws IOException {
         try (InputStream inputStream = templateFile.getInputStream();
-             XWPFDocument document = new XWPFDocument(inputStream);
-             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+             XWPFDocument document = new XWPFDocument(inputStream)) {
 
             logger.info("Processing DOCX template with {} data fields", data.size());
 
-            // Обрабатываем параграфы
-            for (XWPFParagraph paragraph : document.getParagraphs()) {
+            // Списки, на которые ссылаются повторяющиеся строки и секции (${items.поле}, ${#items})
+            Set<String> listFields = new HashSet<>();
+            forEachTemplateParagraph(document, paragraph -> {
+                boolean repeating = RepeatingContentWriter.collectListReferences(paragraph.getText(), data, listFields);
+                if (!images.isEmpty()) {
+                    insertImages(paragraph, data, images);
+                }
                 replaceVariablesInParagraph(paragraph, data);
+                if (repeating) {
+                    // Плейсхолдеры элемента должны идти одним куском текста, чтобы их нашёл потоковый проход
+                    mergeRuns(paragraph);
+                }
+            });
+
+            if (listFields.isEmpty()) {
+                document.write(outputStream);
+            } else {
+                // Повторения раскрываются при копировании уже записанного документа
+                OutputBuffer buffer = outputBufferService.newBuffer();
+                try {
+                    document.write(buffer);
+                    buffer.close();
+                    try (InputStream written = buffer.openInputStream()) {
+                        RepeatingContentWriter.write(written, outputStream, data, listFields);
+                    }
+                } finally {
+                    buffer.release();
+                }
             }
+            logger.info("DOCX template processed successfully");
 
-            // Обрабатываем таблицы
-            for (XWPFTable table : document.getTables()) {
-                for (XWPFTableRow row : table.getRows()) {
-                    for (XWPFTableCell cell : row.getTableCells()) {
-                        for (XWPFParagraph paragraph : cell.getParagraphs()) {
-                            replaceVariablesInParagraph(paragraph, data);
-                        }
+        } catch (Exception e) {
+            logger.error("Error generating DOCX from template: {}", e.getMessage());
+            throw new IOException("Failed to generate DOCX from template", e);
+        }
+    }
+
+    /**
+     * Обходит параграфы документа, в которых могут быть переменные: тело, таблицы, колонтитулы
+     */
+    void forEachTemplateParagraph(XWPFDocument document, Consumer<XWPFParagraph> action) {
+        for (XWPFParagraph paragraph : document.getParagraphs()) {
+            action.accept(paragraph);
+        }
+
+        for (XWPFTable table : document.getTables()) {
+            for (XWPFTableRow row : table.getRows()) {
+                for (XWPFTableCell cell : row.getTableCells()) {
+                    for (XWPFParagraph paragraph : cell.getParagraphs()) {
+                        action.accept(paragraph);
                     }
                 }
             }
+        }
 
-            // Обрабатываем headers
-            for (XWPFHeader header : document.getHeaderList()) {
-                for (XWPFParagraph paragraph : header.getParagraphs()) {
-                    replaceVariablesInParagraph(paragraph, data);
-                }
+        for (XWPFHeader header : document.getHeaderList()) {
+            for (XWPFParagraph paragraph : header.getParagraphs()) {
+                action.accept(paragraph);
             }
+        }
 
-            // Обрабатываем footers
-            for (XWPFFooter footer : document.getFooterList()) {
-                for (XWPFParagraph paragraph : footer.getParagraphs()) {
-                    replaceVariablesInParagraph(paragraph, data);
-                }
+        for (XWPFFooter footer : document.getFooterList()) {
+            for (XWPFParagraph paragraph : footer.getParagraphs()) {
+                action.accept(paragraph);
             }
+        }
+    }
 
-            document.write(outputStream);
-            logger.info("DOCX template processed successfully");
-            return outputStream.toByteArray();
+    /**
+     * Открывает шаблон как документ без подстановки переменных: оригинальный DOCX
+     * или документ, собранный из текста шаблона
+     */
+    public XWPFDocument openTemplateDocument(Template template) throws IOException {
+        if (template.getDocxFileContent() != null) {
+            return new XWPFDocument(new ByteArrayInputStream(template.getDocxFileContent()));
+        }
+        return createDocxFromText(template.getContent() != null ? template.getContent() : "");
+    }
 
-        } catch (Exception e) {
-            logger.error("Error generating DOCX from template: {}", e.getMessage());
-            throw new IOException("Failed to generate DOCX from template", e);
+    /**
+     * Генерирует DOCX для шаблона: из оригинального DOCX, если он загружен, иначе из текста шаблона
+     */
+    public byte[] generateDocx(Template template, Map<String, String> data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        generateDocx(template, data, outputStream);
+        return outputStream.toByteArray();
+    }
+
+    public void generateDocx(Template template, Map<String, String> data,
+                             OutputStream outputStream) throws IOException {
+        generateDocx(template, data, outputStream, mediaService.inlineOnly());
+    }
+
+    /**
+     * generateDocx с изображениями пакета: поля image берут картинки из media,
+     * декодированных один раз на пакет
+     */
+    public void generateDocx(Template template, Map<String, String> data, OutputStream outputStream,
+                             MediaService.MediaLibrary media) throws IOException {
+        Map<String, String> values = formatFields(template, data);
+        if (template.getDocxFileContent() != null) {
+            MultipartFile templateFile = new InMemoryMultipartFile(
+                    template.getOriginalFileName(),
+                    DOCX_CONTENT_TYPE,
+                    template.getDocxFileContent()
+            );
+            generateDocxFromTemplate(templateFile, values, outputStream, mediaService.resolveImages(template, data, media));
+        } else if (freemarkerTemplateEngine.supports(template)) {
+            generateDocxFromText(freemarkerTemplateEngine.render(template, values), outputStream);
+        } else {
+            generateDocxFromTextTemplate(fieldFormatService.textContent(template), values, outputStream);
+        }
+    }
+
+    /**
+     * Данные для подстановки: значения типизированных полей отформатированы по локали шаблона
+     */
+    public Map<String, String> formatFields(Template template, Map<String, String> data) {
+        return fieldFormatService.format(template, data);
+    }
+
+    /**
+     * Вариант generateDocx для пакетной генерации: текстовый шаблон не обрабатывается повторно,
+     * используется уже сгенерированный текст renderedText
+     */
+    public void generateDocx(Template template, Map<String, String> data, String renderedText,
+                             OutputStream outputStream, MediaService.MediaLibrary media) throws IOException {
+        if (template.getDocxFileContent() != null) {
+            generateDocx(template, data, outputStream, media);
+        } else {
+            generateDocxFromText(renderedText, outputStream);
         }
     }
 
@@ -179,108 +314,184 @@ public class FileProcessingService {
     }
 
     /**
-     * Альтернативный метод - создает DOCX из текстового шаблона с базовым форматированием
+     * Заменяет плейсхолдеры полей image картинками. Текст параграфа собирается в первый run,
+     * как в replaceVariablesInParagraph, и делится на куски между картинками; куски наследуют
+     * форматирование первого run. Одна и та же картинка хранится в документе один раз.
      */
-    public byte[] generateDocxFromTextTemplate(String templateContent, Map<String, String> data) throws IOException {
-        try (XWPFDocument document = new XWPFDocument();
-             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
+    private void insertImages(XWPFParagraph paragraph, Map<String, String> data,
+                              Map<String, MediaService.PlacedImage> images) {
+        String paragraphText = paragraph.getText();
+        if (paragraphText == null || !paragraphText.contains("${") || paragraph.getRuns().isEmpty()) {
+            return;
+        }
+        Matcher matcher = VARIABLE_PATTERN.matcher(paragraphText);
+        boolean hasImage = false;
+        while (matcher.find() && !hasImage) {
+            hasImage = images.containsKey(matcher.group(1));
+        }
+        if (!hasImage) {
+            return;
+        }
 
-            // Обрабатываем шаблон
-            String processedContent = processTemplate(templateContent, data);
+        List<XWPFRun> runs = paragraph.getRuns();
+        StringBuilder fullText = new StringBuilder();
+        for (XWPFRun run : runs) {
+            String text = run.getText(0);
+            if (text != null) {
+                fullText.append(text);
+            }
+            run.setText("", 0);
+        }
+        XWPFRun firstRun = runs.get(0);
+        String text = fullText.toString();
 
-            // Разбиваем на строки и сохраняем структуру
-            String[] lines = processedContent.split("\n");
+        matcher = VARIABLE_PATTERN.matcher(text);
+        int position = 0;
+        XWPFRun textRun = firstRun;
+        while (matcher.find()) {
+            MediaService.PlacedImage image = images.get(matcher.group(1));
+            if (image == null) {
+                continue;
+            }
+            appendText(textRun, processTemplate(text.substring(position, matcher.start()), data));
+            XWPFRun pictureRun = paragraph.createRun();
+            try {
+                pictureRun.addPicture(new ByteArrayInputStream(image.image.bytes), image.image.pictureType,
+                        image.image.fileName, image.widthEmu, image.heightEmu);
+            } catch (InvalidFormatException | IOException e) {
+                throw new IllegalStateException("Failed to insert image " + matcher.group(1) + ": " + e.getMessage(), e);
+            }
+            textRun = paragraph.createRun();
+            if (firstRun.getCTR().getRPr() != null) {
+                textRun.getCTR().setRPr(firstRun.getCTR().getRPr());
+            }
+            position = matcher.end();
+        }
+        appendText(textRun, processTemplate(text.substring(position), data));
+    }
 
-            for (String line : lines) {
-                if (line.trim().isEmpty()) {
-                    // Пустая строка
-                    document.createParagraph();
-                    continue;
-                }
+    private static void appendText(XWPFRun run, String text) {
+        if (!text.isEmpty()) {
+            String current = run.getText(0);
+            run.setText(current != null ? current + text : text, 0);
+        }
+    }
 
-                XWPFParagraph paragraph = document.createParagraph();
-
-                // Определяем тип контента по форматированию
-                if (line.trim().startsWith("# ")) {
-                    // Заголовок 1 уровня
-                    paragraph.setStyle("Heading1");
-                    XWPFRun run = paragraph.createRun();
-                    run.setText(line.substring(2).trim());
-                    run.setBold(true);
-                    run.setFontSize(16);
-                } else if (line.trim().startsWith("## ")) {
-                    // Заголовок 2 уровня
-                    paragraph.setStyle("Heading2");
-                    XWPFRun run = paragraph.createRun();
-                    run.setText(line.substring(3).trim());
-                    run.setBold(true);
-                    run.setFontSize(14);
-                } else if (line.trim().startsWith("- ") || line.trim().startsWith("* ")) {
-                    // Элемент списка
-                    XWPFRun run = paragraph.createRun();
-                    run.setText("• " + line.substring(2).trim());
-                    run.setFontSize(11);
-                } else if (line.matches("^\\d+\\.\\s.+")) {
-                    // Нумерованный список
-                    XWPFRun run = paragraph.createRun();
-                    run.setText(line);
-                    run.setFontSize(11);
-                } else {
-                    // Обычный текст
-                    XWPFRun run = paragraph.createRun();
-                    run.setText(line);
-                    run.setFontSize(11);
-                }
+    private void mergeRuns(XWPFParagraph paragraph) {
+        List<XWPFRun> runs = paragraph.getRuns();
+        if (runs.size() < 2) {
+            return;
+        }
+
+        StringBuilder fullText = new StringBuilder();
+        for (XWPFRun run : runs) {
+            String text = run.getText(0);
+            if (text != null) {
+                fullText.append(text);
             }
+            run.setText("", 0);
+        }
+        runs.get(0).setText(fullText.toString(), 0);
+    }
+
+    /**
+     * Альтернативный метод - создает DOCX из текстового шаблона с базовым форматированием
+     */
+    public byte[] generateDocxFromTextTemplate(String templateContent, Map<String, String> data) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        generateDocxFromTextTemplate(templateContent, data, outputStream);
+        return outputStream.toByteArray();
+    }
 
+    public void generateDocxFromTextTemplate(String templateContent, Map<String, String> data,
+                                             OutputStream outputStream) throws IOException {
+        generateDocxFromText(processTemplate(templateContent, data), outputStream);
+    }
+
+    /**
+     * Создает DOCX из уже обработанного текста (переменные подставлены заранее)
+     */
+    public void generateDocxFromText(String processedContent, OutputStream outputStream) throws IOException {
+        try (XWPFDocument document = createDocxFromText(processedContent)) {
             document.write(outputStream);
-            logger.info("DOCX generated from text template with {} lines", lines.length);
-            return outputStream.toByteArray();
         }
     }
 
-    public byte[] generatePdfDocument(String content) throws IOException {
-        try (PDDocument document = new PDDocument();
-             ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-
-            PDPage page = new PDPage();
-            document.addPage(page);
-
-            try (PDPageContentStream contentStream = new PDPageContentStream(document, page)) {
-                contentStream.beginText();
-                contentStream.setFont(PDType1Font.HELVETICA, 12);
-                contentStream.newLineAtOffset(50, 750);
-
-                String[] lines = content.split("\n");
-                for (String line : lines) {
-                    if (line.length() > 100) {
-                        String[] parts = splitLongLine(line, 80);
-                        for (String part : parts) {
-                            contentStream.showText(part);
-                            contentStream.newLineAtOffset(0, -15);
-                        }
-                    } else {
-                        contentStream.showText(line);
-                        contentStream.newLineAtOffset(0, -15);
-                    }
-                }
+    private XWPFDocument createDocxFromText(String processedContent) {
+        XWPFDocument document = new XWPFDocument();
+
+        // Часть стилей нужна конвертеру в PDF, у пустого XWPFDocument её нет
+        document.createStyles();
 
-                contentStream.endText();
+        // Разбиваем на строки и сохраняем структуру
+        String[] lines = processedContent.split("\n");
+
+        for (String line : lines) {
+            if (line.trim().isEmpty()) {
+                // Пустая строка
+                document.createParagraph();
+                continue;
             }
 
-            document.save(outputStream);
-            return outputStream.toByteArray();
-        } catch (Exception e) {
-            logger.error("Error generating PDF: {}", e.getMessage());
-            throw new IOException("Failed to generate PDF document", e);
+            XWPFParagraph paragraph = document.createParagraph();
+
+            // Определяем тип контента по форматированию
+            if (line.trim().startsWith("# ")) {
+                // Заголовок 1 уровня
+                paragraph.setStyle("Heading1");
+                XWPFRun run = paragraph.createRun();
+                run.setText(line.substring(2).trim());
+                run.setBold(true);
+                run.setFontSize(16);
+            } else if (line.trim().startsWith("## ")) {
+                // Заголовок 2 уровня
+                paragraph.setStyle("Heading2");
+                XWPFRun run = paragraph.createRun();
+                run.setText(line.substring(3).trim());
+                run.setBold(true);
+                run.setFontSize(14);
+            } else if (line.trim().startsWith("- ") || line.trim().startsWith("* ")) {
+                // Элемент списка
+                XWPFRun run = paragraph.createRun();
+                run.setText("• " + line.substring(2).trim());
+                run.setFontSize(11);
+            } else if (line.matches("^\\d+\\.\\s.+")) {
+                // Нумерованный список
+                XWPFRun run = paragraph.createRun();
+                run.setText(line);
+                run.setFontSize(11);
+            } else {
+                // Обычный текст
+                XWPFRun run = paragraph.createRun();
+                run.setText(line);
+                run.setFontSize(11);
+            }
         }
+
+        addDefaultPageSettings(document);
+
+        logger.info("DOCX generated from text template with {} lines", lines.length);
+        return document;
     }
 
-    private String[] splitLongLine(String line, int maxLength) {
-        return line.split("(?<=\\G.{" + maxLength + "})");
+    /**
+     * Задаёт размер страницы A4 и поля: без секции документа конвертер в PDF не работает
+     */
+    private void addDefaultPageSettings(XWPFDocument document) {
+        CTSectPr sectPr = document.getDocument().getBody().addNewSectPr();
+
+        CTPageSz pageSize = sectPr.addNewPgSz();
+        pageSize.setW(BigInteger.valueOf(11906));
+        pageSize.setH(BigInteger.valueOf(16838));
+
+        CTPageMar margins = sectPr.addNewPgMar();
+        margins.setTop(BigInteger.valueOf(1134));
+        margins.setBottom(BigInteger.valueOf(1134));
+        margins.setLeft(BigInteger.valueOf(1701));
+        margins.setRight(BigInteger.valueOf(850));
     }
 
-    private String processTemplate(String templateContent, Map<String, String> data) {
+    String processTemplate(String templateContent, Map<String, String> data) {
         if (templateContent == null) return "";
 
         String result = templateContent;
@@ -0,0 +1,104 @@
+package com.service;
+
+import com.model.Template;
+import freemarker.template.Configuration;
+import freemarker.template.TemplateException;
+import freemarker.template.TemplateExceptionHandler;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Движок FreeMarker для текстовых шаблонов (включается полем Template.engine).
+ * Шаблон компилируется из содержимого того экземпляра Template, который рендерится, и хранится
+ * в ограниченном кеше по Template.getVersionKey(). Пакет или сессия, взявшие шаблон до его изменения,
+ * продолжают рендерить своё содержимое, как и простой движок. Скомпилированные шаблоны потокобезопасны.
+ */
+@Service
+public class FreemarkerTemplateEngine {
+
+    private final Configuration configuration;
+    private final Map<String, CompiledTemplate> compiled;
+
+    public FreemarkerTemplateEngine(@Value("${freemarker.cache.max-templates:200}") int maxTemplates) {
+        Configuration configuration = new Configuration(Configuration.VERSION_2_3_32);
+        configuration.setLocalizedLookup(false);
+        configuration.setDefaultEncoding(StandardCharsets.UTF_8.name());
+        configuration.setTemplateExceptionHandler(TemplateExceptionHandler.RETHROW_HANDLER);
+        configuration.setLogTemplateExceptions(false);
+        configuration.setWrapUncheckedExceptions(true);
+        this.configuration = configuration;
+        this.compiled = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledTemplate> eldest) {
+                return size() > maxTemplates;
+            }
+        };
+    }
+
+    /**
+     * FreeMarker применяется только к текстовым шаблонам; DOCX обрабатываются как раньше
+     */
+    public boolean supports(Template template) {
+        return Template.ENGINE_FREEMARKER.equals(template.getEngine())
+                && template.getDocxFileContent() == null;
+    }
+
+    public String render(Template template, Map<String, ?> data) {
+        try {
+            StringWriter writer = new StringWriter();
+            compile(template).process(data, writer);
+            return writer.toString();
+        } catch (IOException | TemplateException e) {
+            throw new RuntimeException("Error rendering FreeMarker template: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Проверяет синтаксис шаблона; возвращает текст ошибки или null
+     */
+    public String validate(String content) {
+        try {
+            new freemarker.template.Template("validation", new StringReader(content), configuration);
+            return null;
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+    }
+
+    // Под одним ключом версии содержимое обычно одно и то же; несохранённые шаблоны (без id и даты)
+    // делят ключ, поэтому запись используется, только если совпадает и содержимое
+    private freemarker.template.Template compile(Template template) throws IOException {
+        String content = template.getContent() != null ? template.getContent() : "";
+        String key = template.getVersionKey();
+        synchronized (compiled) {
+            CompiledTemplate cached = compiled.get(key);
+            if (cached != null && cached.content.equals(content)) {
+                return cached.template;
+            }
+        }
+
+        freemarker.template.Template fresh = new freemarker.template.Template(
+                "tpl-" + key, new StringReader(content), configuration);
+        synchronized (compiled) {
+            compiled.put(key, new CompiledTemplate(content, fresh));
+        }
+        return fresh;
+    }
+
+    private static class CompiledTemplate {
+        private final String content;
+        private final freemarker.template.Template template;
+
+        CompiledTemplate(String content, freemarker.template.Template template) {
+            this.content = content;
+            this.template = template;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.service;
+
+/**
+ * Запрос на генерацию не принят планировщиком: очередь пользователя заполнена
+ * или ожидание слота превысило допустимое время
+ */
+public class GenerationRejectedException extends RuntimeException {
+
+    private final long retryAfterSeconds;
+
+    public GenerationRejectedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,261 @@
+package com.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Допуск задач генерации (пакеты, экспорты, предпросмотр) с честной очередью по пользователям.
+ * Общее число одновременно выполняемых задач ограничено, у каждого пользователя есть квота
+ * одновременных задач и ограниченная очередь ожидания. Освободившийся слот отдаётся
+ * пользователям по кругу, поэтому один большой клиент не может занять все слоты.
+ * Пакеты получают слоты через acquireBulk и занимают не больше max-bulk-concurrent из них:
+ * остальные слоты всегда остаются предпросмотрам и экспортам.
+ */
+@Service
+public class GenerationScheduler {
+
+    private final int maxConcurrent;
+    private final int maxBulkConcurrent;
+    private final int defaultUserQuota;
+    private final Map<String, Integer> userQuotas;
+    private final int maxQueuedPerUser;
+    private final long maxWaitMillis;
+    private final long minRetryAfterSeconds;
+
+    private final Object lock = new Object();
+    private final Map<String, UserState> users = new HashMap<>();
+    // Пользователи с ожидающими задачами в порядке обхода по кругу
+    private final ArrayDeque<String> rotation = new ArrayDeque<>();
+    private int running;
+    private int bulkRunning;
+    private double averageHoldMillis;
+
+    public GenerationScheduler(
+            @Value("${generation.scheduler.max-concurrent:4}") int maxConcurrent,
+            @Value("${generation.scheduler.max-bulk-concurrent:2}") int maxBulkConcurrent,
+            @Value("${generation.scheduler.default-user-quota:2}") int defaultUserQuota,
+            @Value("${generation.scheduler.user-quotas:}") String userQuotas,
+            @Value("${generation.scheduler.max-queued-per-user:10}") int maxQueuedPerUser,
+            @Value("${generation.scheduler.max-wait-seconds:30}") long maxWaitSeconds,
+            @Value("${generation.scheduler.min-retry-after-seconds:5}") long minRetryAfterSeconds) {
+        this.maxConcurrent = maxConcurrent;
+        // Хотя бы один слот не достаётся пакетам
+        this.maxBulkConcurrent = Math.max(1, Math.min(maxBulkConcurrent, maxConcurrent - 1));
+        this.defaultUserQuota = defaultUserQuota;
+        this.userQuotas = parseQuotas(userQuotas);
+        this.maxQueuedPerUser = maxQueuedPerUser;
+        this.maxWaitMillis = TimeUnit.SECONDS.toMillis(maxWaitSeconds);
+        this.minRetryAfterSeconds = minRetryAfterSeconds;
+    }
+
+    /**
+     * Слот выполнения; освобождается через close()
+     */
+    public class Permit implements AutoCloseable {
+        private final String userKey;
+        private final boolean bulk;
+        private final long grantedAt = System.currentTimeMillis();
+        private boolean released;
+
+        private Permit(String userKey, boolean bulk) {
+            this.userKey = userKey;
+            this.bulk = bulk;
+        }
+
+        @Override
+        public void close() {
+            synchronized (lock) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                release(userKey, bulk, System.currentTimeMillis() - grantedAt);
+            }
+        }
+    }
+
+    /**
+     * Ждёт слот для пользователя. Бросает GenerationRejectedException,
+     * если очередь пользователя заполнена или слот не освободился за отведённое время.
+     */
+    public Permit acquire(String userKey) {
+        return acquire(userKey, false);
+    }
+
+    /**
+     * Слот для пакетной генерации: кроме квоты пользователя, ограничен общим числом слотов пакетов
+     */
+    public Permit acquireBulk(String userKey) {
+        return acquire(userKey, true);
+    }
+
+    private Permit acquire(String userKey, boolean bulk) {
+        synchronized (lock) {
+            UserState state = users.computeIfAbsent(userKey, key -> new UserState());
+
+            if (running < maxConcurrent && state.running < quotaFor(userKey) && state.waiting.isEmpty()
+                    && (!bulk || bulkRunning < maxBulkConcurrent)) {
+                grant(state, bulk);
+                return new Permit(userKey, bulk);
+            }
+
+            if (state.waiting.size() >= maxQueuedPerUser) {
+                throw new GenerationRejectedException("Generation queue is full", retryAfterSeconds(state));
+            }
+
+            Waiter waiter = new Waiter(bulk);
+            state.waiting.add(waiter);
+            if (!rotation.contains(userKey)) {
+                rotation.add(userKey);
+            }
+            // Свободный слот мог не достаться только из-за ждущего пакета впереди в очереди пользователя
+            dispatch();
+
+            long deadline = System.currentTimeMillis() + maxWaitMillis;
+            try {
+                while (!waiter.granted) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        state.waiting.remove(waiter);
+                        forgetIfIdle(userKey, state);
+                        throw new GenerationRejectedException("Timed out waiting for a generation slot",
+                                retryAfterSeconds(state));
+                    }
+                    lock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (waiter.granted) {
+                    release(userKey, bulk, 0);
+                } else {
+                    state.waiting.remove(waiter);
+                    forgetIfIdle(userKey, state);
+                }
+                throw new GenerationRejectedException("Interrupted while waiting for a generation slot",
+                        minRetryAfterSeconds);
+            }
+
+            return new Permit(userKey, bulk);
+        }
+    }
+
+    private void release(String userKey, boolean bulk, long heldMillis) {
+        UserState state = users.get(userKey);
+        running--;
+        if (bulk) {
+            bulkRunning--;
+        }
+        if (state != null) {
+            state.running--;
+            forgetIfIdle(userKey, state);
+        }
+        if (heldMillis > 0) {
+            averageHoldMillis = averageHoldMillis == 0
+                    ? heldMillis
+                    : averageHoldMillis * 0.9 + heldMillis * 0.1;
+        }
+        dispatch();
+        lock.notifyAll();
+    }
+
+    // Раздаёт свободные слоты ожидающим пользователям по кругу
+    private void dispatch() {
+        int skipped = 0;
+        while (running < maxConcurrent && !rotation.isEmpty() && skipped < rotation.size()) {
+            String userKey = rotation.poll();
+            UserState state = users.get(userKey);
+
+            if (state == null || state.waiting.isEmpty()) {
+                continue;
+            }
+            if (state.running >= quotaFor(userKey)) {
+                rotation.add(userKey);
+                skipped++;
+                continue;
+            }
+
+            Waiter waiter = nextGrantable(state);
+            if (waiter == null) {
+                rotation.add(userKey);
+                skipped++;
+                continue;
+            }
+
+            state.waiting.remove(waiter);
+            waiter.granted = true;
+            grant(state, waiter.bulk);
+            skipped = 0;
+            if (!state.waiting.isEmpty()) {
+                rotation.add(userKey);
+            }
+        }
+    }
+
+    // Первая задача пользователя, которой можно дать слот: пакеты пропускаются, пока их слоты заняты
+    private Waiter nextGrantable(UserState state) {
+        for (Waiter waiter : state.waiting) {
+            if (!waiter.bulk || bulkRunning < maxBulkConcurrent) {
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    private void grant(UserState state, boolean bulk) {
+        running++;
+        state.running++;
+        if (bulk) {
+            bulkRunning++;
+        }
+    }
+
+    private void forgetIfIdle(String userKey, UserState state) {
+        if (state.running == 0 && state.waiting.isEmpty()) {
+            users.remove(userKey);
+            rotation.remove(userKey);
+        }
+    }
+
+    private long retryAfterSeconds(UserState state) {
+        double waitMillis = averageHoldMillis * (state.waiting.size() + 1) / Math.max(1, maxConcurrent);
+        return Math.max(minRetryAfterSeconds, (long) Math.ceil(waitMillis / 1000.0));
+    }
+
+    private int quotaFor(String userKey) {
+        return userQuotas.getOrDefault(userKey, defaultUserQuota);
+    }
+
+    // Формат: "alice:4,bob:1"
+    private static Map<String, Integer> parseQuotas(String value) {
+        Map<String, Integer> quotas = new HashMap<>();
+        if (value == null || value.isBlank()) {
+            return quotas;
+        }
+        for (String item : value.split(",")) {
+            String[] parts = item.trim().split(":");
+            if (parts.length == 2) {
+                quotas.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            }
+        }
+        return quotas;
+    }
+
+    private static class UserState {
+        private int running;
+        private final ArrayDeque<Waiter> waiting = new ArrayDeque<>();
+    }
+
+    private static class Waiter {
+        private final boolean bulk;
+        private boolean granted;
+
+        Waiter(boolean bulk) {
+            this.bulk = bulk;
+        }
+    }
+}
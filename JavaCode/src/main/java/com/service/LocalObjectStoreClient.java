@@ -0,0 +1,99 @@
+package com.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Локальная замена объектного хранилища для разработки и проверки: части загрузки лежат
+ * в <root>/.uploads/<uploadId>, при завершении склеиваются в <root>/<bucket>/<key>.
+ * Объект появляется одной атомарной операцией, как в S3.
+ */
+public class LocalObjectStoreClient implements ObjectStoreClient {
+
+    private final Path root;
+
+    public LocalObjectStoreClient(Path root) {
+        this.root = root;
+    }
+
+    @Override
+    public String createMultipartUpload(String bucket, String key) throws IOException {
+        String uploadId = UUID.randomUUID().toString();
+        Files.createDirectories(uploadDirectory(uploadId));
+        return uploadId;
+    }
+
+    @Override
+    public String uploadPart(String bucket, String key, String uploadId, int partNumber,
+                             byte[] data, int length) throws IOException {
+        Path directory = uploadDirectory(uploadId);
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("No such upload: " + uploadId);
+        }
+        try (OutputStream out = Files.newOutputStream(directory.resolve(String.valueOf(partNumber)))) {
+            out.write(data, 0, length);
+        }
+        return md5(data, length);
+    }
+
+    @Override
+    public void completeMultipartUpload(String bucket, String key, String uploadId,
+                                        List<String> eTags) throws IOException {
+        Path directory = uploadDirectory(uploadId);
+        Path target = root.resolve(bucket).resolve(key).normalize();
+        if (!target.startsWith(root.resolve(bucket).normalize())) {
+            throw new IOException("Invalid object key: " + key);
+        }
+        Files.createDirectories(target.getParent());
+
+        Path partial = directory.resolve("object");
+        try (OutputStream out = Files.newOutputStream(partial)) {
+            for (int partNumber = 1; partNumber <= eTags.size(); partNumber++) {
+                Files.copy(directory.resolve(String.valueOf(partNumber)), out);
+            }
+        }
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteRecursively(directory);
+    }
+
+    @Override
+    public void abortMultipartUpload(String bucket, String key, String uploadId) {
+        deleteRecursively(uploadDirectory(uploadId));
+    }
+
+    private Path uploadDirectory(String uploadId) {
+        return root.resolve(".uploads").resolve(uploadId);
+    }
+
+    private static String md5(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            digest.update(data, 0, length);
+            return "\"" + HexFormat.of().formatHex(digest.digest()) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.deleteIfExists(path);
+                } catch (IOException ignored) {
+                    // Остаток удалит следующая попытка
+                }
+            });
+        } catch (IOException ignored) {
+            // Загрузки уже нет
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.service;
+
+import com.model.Template;
+import org.apache.poi.util.Units;
+import org.apache.poi.xwpf.usermodel.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Изображения для полей типа image (подписи, логотипы).
+ * Значение поля — data URI (data:image/png;base64,...) или имя из media пакета.
+ * Изображение декодируется, хешируется и измеряется один раз на содержимое (SHA-256):
+ * одинаковые картинки разных строк и пакетов — один и тот же экземпляр MediaImage.
+ */
+@Service
+public class MediaService {
+
+    // Без заданного размера картинка не шире 16 см при 96 dpi
+    private static final int MAX_NATURAL_WIDTH_PX = 600;
+
+    private final int maxImageBytes;
+    private final MediaLibrary inlineOnly = new MediaLibrary(Map.of());
+
+    // Декодированные изображения по хешу содержимого; вытеснение не ломает рендер — библиотеки держат ссылки сами
+    private final Map<String, MediaImage> imagesByHash;
+
+    public MediaService(@Value("${media.max-image-bytes:5242880}") int maxImageBytes,
+                        @Value("${media.cache.max-images:256}") int maxCachedImages) {
+        this.maxImageBytes = maxImageBytes;
+        this.imagesByHash = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, MediaImage> eldest) {
+                return size() > maxCachedImages;
+            }
+        });
+    }
+
+    /**
+     * Библиотека пакета: именованные изображения декодируются сразу и один раз на пакет.
+     * IllegalArgumentException, если какое-то изображение не читается
+     */
+    public MediaLibrary library(Map<String, String> media) {
+        if (media == null || media.isEmpty()) {
+            return inlineOnly;
+        }
+        Map<String, MediaImage> named = new HashMap<>();
+        for (Map.Entry<String, String> entry : media.entrySet()) {
+            try {
+                named.put(entry.getKey(), decode(entry.getValue(), true));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Media " + entry.getKey() + ": " + e.getMessage(), e);
+            }
+        }
+        return new MediaLibrary(named);
+    }
+
+    /**
+     * Библиотека без именованных изображений: только data URI в значениях полей
+     */
+    public MediaLibrary inlineOnly() {
+        return inlineOnly;
+    }
+
+    /**
+     * Изображения полей типа image для строки. Пустое значение пропускается (плейсхолдер остаётся,
+     * как у пустого текстового поля); значение, которое не удаётся прочитать как изображение, — IOException
+     */
+    Map<String, PlacedImage> resolveImages(Template template, Map<String, String> data, MediaLibrary library)
+            throws IOException {
+        if (template.getFields() == null || data == null) {
+            return Map.of();
+        }
+        Map<String, PlacedImage> images = null;
+        for (Map.Entry<String, String> field : template.getFields().entrySet()) {
+            if (!FieldFormatService.isImage(field.getValue())) {
+                continue;
+            }
+            String value = data.get(field.getKey());
+            if (value == null || value.isBlank()) {
+                continue;
+            }
+            MediaImage image = library.resolve(value.trim());
+            if (image == null) {
+                throw new IOException("Field " + field.getKey() + " is neither a media name nor a data URI");
+            }
+            if (images == null) {
+                images = new HashMap<>();
+            }
+            images.put(field.getKey(), place(image, FieldFormatService.patternOf(field.getValue())));
+        }
+        return images != null ? images : Map.of();
+    }
+
+    /**
+     * Размер из описания поля: image:200x80 или image:200 (высота по пропорциям), в пикселях
+     */
+    static int[] parseSize(String pattern) {
+        if (pattern == null || pattern.isBlank()) {
+            return new int[] {0, 0};
+        }
+        String[] parts = pattern.trim().toLowerCase(Locale.ROOT).split("x", -1);
+        try {
+            int width = Integer.parseInt(parts[0].trim());
+            int height = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 0;
+            if (parts.length > 2 || width <= 0 || height < 0) {
+                throw new NumberFormatException();
+            }
+            return new int[] {width, height};
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Image size must look like 200x80 or 200: " + pattern);
+        }
+    }
+
+    private PlacedImage place(MediaImage image, String pattern) {
+        int[] size = parseSize(pattern);
+        int width = size[0];
+        int height = size[1];
+        if (width == 0) {
+            width = Math.min(image.widthPx, MAX_NATURAL_WIDTH_PX);
+        }
+        if (height == 0) {
+            height = (int) Math.max(1, Math.round((double) image.heightPx * width / image.widthPx));
+        }
+        return new PlacedImage(image, Units.pixelToEMU(width), Units.pixelToEMU(height));
+    }
+
+    private MediaImage decode(String value, boolean allowBareBase64) throws IOException {
+        String base64;
+        if (value.startsWith("data:")) {
+            int comma = value.indexOf(',');
+            if (comma < 0 || !value.substring(0, comma).endsWith(";base64")) {
+                throw new IOException("Only base64 data URIs are supported");
+            }
+            base64 = value.substring(comma + 1);
+        } else if (allowBareBase64) {
+            base64 = value;
+        } else {
+            return null;
+        }
+
+        // Оценка размера до декодирования: 4 символа base64 на 3 байта
+        if ((long) base64.length() * 3 / 4 > maxImageBytes) {
+            throw new IOException("Image is larger than " + maxImageBytes + " bytes");
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getMimeDecoder().decode(base64);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid base64 image data", e);
+        }
+
+        String hash = sha256(bytes);
+        MediaImage cached = imagesByHash.get(hash);
+        if (cached != null) {
+            return cached;
+        }
+        MediaImage image = probe(hash, bytes);
+        imagesByHash.put(hash, image);
+        return image;
+    }
+
+    // Тип по сигнатуре, размеры — из заголовка, без декодирования пикселей
+    private static MediaImage probe(String hash, byte[] bytes) throws IOException {
+        int pictureType;
+        String extension;
+        if (startsWith(bytes, 0x89, 'P', 'N', 'G')) {
+            pictureType = Document.PICTURE_TYPE_PNG;
+            extension = "png";
+        } else if (startsWith(bytes, 0xFF, 0xD8)) {
+            pictureType = Document.PICTURE_TYPE_JPEG;
+            extension = "jpeg";
+        } else if (startsWith(bytes, 'G', 'I', 'F', '8')) {
+            pictureType = Document.PICTURE_TYPE_GIF;
+            extension = "gif";
+        } else if (startsWith(bytes, 'B', 'M')) {
+            pictureType = Document.PICTURE_TYPE_BMP;
+            extension = "bmp";
+        } else {
+            throw new IOException("Unsupported image format (PNG, JPEG, GIF or BMP expected)");
+        }
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unreadable " + extension + " image");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new MediaImage(hash, bytes, pictureType, "image-" + hash.substring(0, 12) + "." + extension,
+                        reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int... signature) {
+        if (bytes.length < signature.length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((bytes[i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Изображения пакета по именам; значения-data URI декодируются через общий кеш
+     */
+    public class MediaLibrary {
+        private final Map<String, MediaImage> named;
+
+        MediaLibrary(Map<String, MediaImage> named) {
+            this.named = named;
+        }
+
+        MediaImage resolve(String value) throws IOException {
+            MediaImage image = named.get(value);
+            return image != null ? image : decode(value, false);
+        }
+    }
+
+    static class MediaImage {
+        final String hash;
+        final byte[] bytes;
+        final int pictureType;
+        final String fileName;
+        final int widthPx;
+        final int heightPx;
+
+        MediaImage(String hash, byte[] bytes, int pictureType, String fileName, int widthPx, int heightPx) {
+            this.hash = hash;
+            this.bytes = bytes;
+            this.pictureType = pictureType;
+            this.fileName = fileName;
+            this.widthPx = widthPx;
+            this.heightPx = heightPx;
+        }
+    }
+
+    // Изображение и его размер в документе (EMU)
+    static class PlacedImage {
+        final MediaImage image;
+        final int widthEmu;
+        final int heightEmu;
+
+        PlacedImage(MediaImage image, int widthEmu, int heightEmu) {
+            this.image = image;
+            this.widthEmu = widthEmu;
+            this.heightEmu = heightEmu;
+        }
+    }
+}
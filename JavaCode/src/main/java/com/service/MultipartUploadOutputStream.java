@@ -0,0 +1,136 @@
+package com.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Поток, который режет данные на части фиксированного размера и загружает их в хранилище
+ * параллельно на пуле загрузки, пока продолжается запись. Число частей в памяти ограничено
+ * очередью пула: при её заполнении запись ждёт. close() дожидается всех частей и завершает загрузку.
+ */
+class MultipartUploadOutputStream extends OutputStream {
+
+    private final ObjectStoreClient client;
+    private final String bucket;
+    private final String key;
+    private final String uploadId;
+    private final int partSize;
+    private final ThreadPoolExecutor uploadExecutor;
+
+    private final List<Future<String>> parts = new ArrayList<>();
+    private byte[] buffer;
+    private int position;
+    private boolean closed;
+
+    MultipartUploadOutputStream(ObjectStoreClient client, String bucket, String key,
+                                int partSize, ThreadPoolExecutor uploadExecutor) throws IOException {
+        this.client = client;
+        this.bucket = bucket;
+        this.key = key;
+        this.partSize = partSize;
+        this.uploadExecutor = uploadExecutor;
+        this.uploadId = client.createMultipartUpload(bucket, key);
+        this.buffer = new byte[partSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (position == partSize) {
+            uploadBuffer();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (position == partSize) {
+                uploadBuffer();
+            }
+            int chunk = Math.min(length, partSize - position);
+            System.arraycopy(data, offset, buffer, position, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    /**
+     * Загружает последнюю часть, ждёт остальные и завершает загрузку; при ошибке загрузка отменяется
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            // Хранилище требует хотя бы одну часть, даже пустую
+            if (position > 0 || parts.isEmpty()) {
+                uploadBuffer();
+            }
+            List<String> eTags = new ArrayList<>(parts.size());
+            for (Future<String> part : parts) {
+                eTags.add(await(part));
+            }
+            client.completeMultipartUpload(bucket, key, uploadId, eTags);
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        } finally {
+            buffer = null;
+        }
+    }
+
+    /**
+     * Отменяет загрузку: незагруженные части отбрасываются, загруженные удаляются хранилищем
+     */
+    void abort() {
+        closed = true;
+        buffer = null;
+        for (Future<String> part : parts) {
+            part.cancel(true);
+        }
+        try {
+            client.abortMultipartUpload(bucket, key, uploadId);
+        } catch (IOException ignored) {
+            // Незавершённую загрузку уберёт правило жизненного цикла хранилища
+        }
+    }
+
+    private void uploadBuffer() throws IOException {
+        if (closed && buffer == null) {
+            throw new IOException("Upload is closed");
+        }
+        byte[] data = buffer;
+        int length = position;
+        int partNumber = parts.size() + 1;
+
+        try {
+            parts.add(uploadExecutor.submit(() -> client.uploadPart(bucket, key, uploadId, partNumber, data, length)));
+        } catch (RuntimeException e) {
+            throw new IOException("Failed to schedule part upload", e);
+        }
+
+        // Отправленный буфер принадлежит задаче загрузки
+        buffer = new byte[partSize];
+        position = 0;
+    }
+
+    private String await(Future<String> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Part upload interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Part upload failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+}
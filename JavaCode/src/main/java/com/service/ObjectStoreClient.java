@@ -0,0 +1,25 @@
+package com.service;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Минимальный клиент S3-совместимого хранилища: только составная (multipart) загрузка
+ */
+public interface ObjectStoreClient {
+
+    String createMultipartUpload(String bucket, String key) throws IOException;
+
+    /**
+     * Загружает часть (номера с 1) и возвращает её ETag
+     */
+    String uploadPart(String bucket, String key, String uploadId, int partNumber,
+                      byte[] data, int length) throws IOException;
+
+    /**
+     * eTags — в порядке номеров частей
+     */
+    void completeMultipartUpload(String bucket, String key, String uploadId, List<String> eTags) throws IOException;
+
+    void abortMultipartUpload(String bucket, String key, String uploadId) throws IOException;
+}
@@ -0,0 +1,107 @@
+package com.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * ZIP пакета загружается прямо в S3-совместимое хранилище составной загрузкой:
+ * архив пишется в поток, который по мере заполнения частей отправляет их параллельно.
+ * Без batch.output.s3.endpoint используется локальная замена хранилища (LocalObjectStoreClient).
+ */
+@Component
+public class ObjectStoreOutputSink implements BatchOutputSink {
+
+    public static final String NAME = "s3";
+
+    // Минимальный размер части, кроме последней, в S3
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final ZipArchiveService zipArchiveService;
+    private final ObjectStoreClient client;
+    private final String bucket;
+    private final String keyPrefix;
+    private final int partSize;
+    private final ThreadPoolExecutor uploadExecutor;
+
+    public ObjectStoreOutputSink(ZipArchiveService zipArchiveService,
+                                 @Value("${batch.output.s3.endpoint:}") String endpoint,
+                                 @Value("${batch.output.s3.region:us-east-1}") String region,
+                                 @Value("${batch.output.s3.access-key:}") String accessKey,
+                                 @Value("${batch.output.s3.secret-key:}") String secretKey,
+                                 @Value("${batch.output.s3.bucket:batches}") String bucket,
+                                 @Value("${batch.output.s3.key-prefix:}") String keyPrefix,
+                                 @Value("${batch.output.s3.part-size:8388608}") int partSize,
+                                 @Value("${batch.output.s3.upload-threads:4}") int uploadThreads,
+                                 @Value("${batch.output.s3.local-root:temp/object-store}") String localRoot) {
+        this.zipArchiveService = zipArchiveService;
+        this.client = endpoint.isBlank()
+                ? new LocalObjectStoreClient(Paths.get(localRoot))
+                : new S3ObjectStoreClient(endpoint, region, accessKey, secretKey);
+        this.bucket = bucket;
+        this.keyPrefix = keyPrefix;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+
+        // Очередь на uploadThreads частей: вместе с выполняемыми это предел буферов в памяти
+        this.uploadExecutor = BoundedExecutors.newBlockingExecutor(
+                "s3-upload-", uploadThreads, uploadThreads, Thread.NORM_PRIORITY);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public BatchOutput open(String batchId) throws IOException {
+        String key = keyPrefix + batchId + ".zip";
+        MultipartUploadOutputStream upload =
+                new MultipartUploadOutputStream(client, bucket, key, partSize, uploadExecutor);
+        ZipArchiveService.ArchiveWriter writer = zipArchiveService.openArchive(upload);
+
+        return new BatchOutput() {
+            @Override
+            public void add(String entryName, Path source) throws IOException {
+                writer.add(new ZipArchiveService.ArchiveEntry(
+                        entryName, source, ZipArchiveService.compressionMethodFor(entryName)));
+            }
+
+            @Override
+            public String complete() throws IOException {
+                try {
+                    writer.close();
+                } catch (IOException | RuntimeException e) {
+                    upload.abort();
+                    throw e;
+                }
+                upload.close();
+                return "s3://" + bucket + "/" + key;
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                    // Загрузка всё равно отменяется
+                }
+                upload.abort();
+            }
+
+            @Override
+            public long getCompressNanos() {
+                return writer.getCompressNanos();
+            }
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        uploadExecutor.shutdownNow();
+    }
+}
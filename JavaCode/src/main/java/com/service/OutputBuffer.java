@@ -0,0 +1,187 @@
+package com.service;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Буфер для сгенерированного файла: данные лежат в блоках из ChunkPool,
+ * а при превышении порога переносятся во временный файл и дальше пишутся туда.
+ * Готовый результат отдаётся в поток (ZIP, HTTP) или переносится в файл без лишних копий.
+ * После использования буфер нужно освободить через release(). Не потокобезопасен.
+ */
+public class OutputBuffer extends OutputStream {
+    private final long memoryThreshold;
+    private final Path spillDirectory;
+    private final ChunkPool chunkPool;
+
+    private final List<byte[]> chunks = new ArrayList<>();
+    private int positionInLastChunk;
+    private long size;
+
+    private Path spillFile;
+    private OutputStream spillStream;
+    private boolean closed;
+
+    OutputBuffer(long memoryThreshold, Path spillDirectory, ChunkPool chunkPool) {
+        this.memoryThreshold = memoryThreshold;
+        this.spillDirectory = spillDirectory;
+        this.chunkPool = chunkPool;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Buffer is closed");
+        }
+        if (spillStream == null && size + len > memoryThreshold) {
+            spillToDisk();
+        }
+        if (spillStream != null) {
+            spillStream.write(b, off, len);
+            size += len;
+            return;
+        }
+
+        while (len > 0) {
+            if (chunks.isEmpty() || positionInLastChunk == chunkPool.getChunkSize()) {
+                chunks.add(chunkPool.acquire());
+                positionInLastChunk = 0;
+            }
+            byte[] chunk = chunks.get(chunks.size() - 1);
+            int count = Math.min(len, chunk.length - positionInLastChunk);
+            System.arraycopy(b, off, chunk, positionInLastChunk, count);
+            positionInLastChunk += count;
+            off += count;
+            len -= count;
+            size += count;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (spillStream != null) {
+            spillStream.flush();
+        }
+    }
+
+    /**
+     * Завершает запись. Данные остаются доступными до вызова release().
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (spillStream != null) {
+            spillStream.close();
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isInMemory() {
+        return spillFile == null;
+    }
+
+    /**
+     * Копирует содержимое в поток (запись ZIP, ответ HTTP)
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (spillFile != null) {
+            flush();
+            Files.copy(spillFile, out);
+        } else {
+            writeChunks(out);
+        }
+    }
+
+    public InputStream openInputStream() throws IOException {
+        if (spillFile != null) {
+            flush();
+            return Files.newInputStream(spillFile);
+        }
+        List<InputStream> streams = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            streams.add(new ByteArrayInputStream(chunks.get(i), 0, chunkLength(i)));
+        }
+        return new SequenceInputStream(Collections.enumeration(streams));
+    }
+
+    /**
+     * Сохраняет содержимое в файл: временный файл просто переносится, блоки из памяти записываются.
+     * После вызова буфер освобождён.
+     */
+    public void moveTo(Path target) throws IOException {
+        close();
+        try {
+            if (spillFile != null) {
+                Files.move(spillFile, target, StandardCopyOption.REPLACE_EXISTING);
+                spillFile = null;
+            } else {
+                try (OutputStream out = Files.newOutputStream(target)) {
+                    writeChunks(out);
+                }
+            }
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Возвращает блоки в пул и удаляет временный файл
+     */
+    public void release() {
+        try {
+            close();
+        } catch (IOException ignored) {
+            // Файл всё равно удаляется ниже
+        }
+        for (byte[] chunk : chunks) {
+            chunkPool.release(chunk);
+        }
+        chunks.clear();
+        if (spillFile != null) {
+            try {
+                Files.deleteIfExists(spillFile);
+            } catch (IOException ignored) {
+                // Остаток уберёт очистка временной папки
+            }
+            spillFile = null;
+        }
+    }
+
+    private void spillToDisk() throws IOException {
+        Files.createDirectories(spillDirectory);
+        spillFile = Files.createTempFile(spillDirectory, "buffer-", ".tmp");
+        spillStream = new BufferedOutputStream(Files.newOutputStream(spillFile));
+        writeChunks(spillStream);
+
+        for (byte[] chunk : chunks) {
+            chunkPool.release(chunk);
+        }
+        chunks.clear();
+    }
+
+    private void writeChunks(OutputStream out) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            out.write(chunks.get(i), 0, chunkLength(i));
+        }
+    }
+
+    private int chunkLength(int index) {
+        return index == chunks.size() - 1 ? positionInLastChunk : chunks.get(index).length;
+    }
+}
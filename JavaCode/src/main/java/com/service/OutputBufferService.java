@@ -0,0 +1,32 @@
+package com.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Выдаёт буферы для сгенерированных файлов с общим пулом блоков памяти
+ */
+@Service
+public class OutputBufferService {
+
+    private final ChunkPool chunkPool;
+    private final long memoryThreshold;
+    private final Path spillDirectory;
+
+    public OutputBufferService(
+            @Value("${output.buffer.memory-threshold:4194304}") long memoryThreshold,
+            @Value("${output.buffer.chunk-size:65536}") int chunkSize,
+            @Value("${output.buffer.max-pooled-chunks:256}") int maxPooledChunks,
+            @Value("${output.buffer.spill-dir:temp/spill}") String spillDirectory) {
+        this.memoryThreshold = memoryThreshold;
+        this.chunkPool = new ChunkPool(chunkSize, maxPooledChunks);
+        this.spillDirectory = Paths.get(spillDirectory);
+    }
+
+    public OutputBuffer newBuffer() {
+        return new OutputBuffer(memoryThreshold, spillDirectory, chunkPool);
+    }
+}
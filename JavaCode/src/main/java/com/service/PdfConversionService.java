@@ -0,0 +1,152 @@
+package com.service;
+
+import com.lowagie.text.pdf.BaseFont;
+import fr.opensagres.poi.xwpf.converter.core.IXWPFConverter;
+import fr.opensagres.poi.xwpf.converter.pdf.PdfConverter;
+import fr.opensagres.poi.xwpf.converter.pdf.PdfOptions;
+import fr.opensagres.xdocreport.itext.extension.font.ITextFontRegistry;
+import jakarta.annotation.PreDestroy;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Конвертация сгенерированного DOCX в PDF через XDocReport.
+ * Интерактивные экспорты и пакетная генерация работают на разных ограниченных пулах,
+ * поэтому пакет не может занять все потоки конвертации.
+ */
+@Service
+public class PdfConversionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PdfConversionService.class);
+
+    // Конвертер и настройки шрифтов создаются один раз и переиспользуются всеми потоками
+    private final IXWPFConverter<PdfOptions> converter = PdfConverter.getInstance();
+    private final PdfOptions pdfOptions = PdfOptions.create()
+            .fontProvider(ITextFontRegistry.getRegistry())
+            .fontEncoding(BaseFont.IDENTITY_H);
+
+    // Метка в handoff: результат конвертации больше никто не ждёт
+    private static final Object ABANDONED = new Object();
+
+    private final OutputBufferService outputBufferService;
+    private final ThreadPoolExecutor interactiveExecutor;
+    private final ThreadPoolExecutor batchExecutor;
+    private final long timeoutSeconds;
+    private final long queueTimeoutSeconds;
+
+    public PdfConversionService(
+            OutputBufferService outputBufferService,
+            @Value("${pdf.conversion.interactive.threads:2}") int interactiveThreads,
+            @Value("${pdf.conversion.interactive.queue-capacity:20}") int interactiveQueueCapacity,
+            @Value("${pdf.conversion.batch.threads:1}") int batchThreads,
+            @Value("${pdf.conversion.batch.queue-capacity:4}") int batchQueueCapacity,
+            @Value("${pdf.conversion.timeout-seconds:30}") long timeoutSeconds,
+            @Value("${pdf.conversion.queue-timeout-seconds:120}") long queueTimeoutSeconds) {
+        this.outputBufferService = outputBufferService;
+        this.timeoutSeconds = timeoutSeconds;
+        this.queueTimeoutSeconds = queueTimeoutSeconds;
+
+        // Интерактивный пул: при переполнении очереди запрос сразу отклоняется
+        this.interactiveExecutor = BoundedExecutors.newRejectingExecutor(
+                "pdf-interactive-", interactiveThreads, interactiveQueueCapacity, Thread.NORM_PRIORITY);
+
+        // Пакетный пул: при переполнении очереди вызывающий поток ждёт свободного места
+        this.batchExecutor = BoundedExecutors.newBlockingExecutor(
+                "pdf-batch-", batchThreads, batchQueueCapacity, Thread.MIN_PRIORITY);
+    }
+
+    /**
+     * Конвертирует DOCX в PDF для интерактивного экспорта. PDF собирается в буфер на потоке конвертера,
+     * а в ответ его копирует вызывающий поток: медленный клиент не держит конвертер.
+     * Буфер освобождает вызывающий. Бросает RejectedExecutionException, если очередь конвертации заполнена.
+     */
+    public OutputBuffer convertDocxToPdf(byte[] docxContent) throws IOException {
+        return convert(interactiveExecutor, docxContent);
+    }
+
+    /**
+     * Конвертирует DOCX в PDF для пакетной генерации (низкий приоритет, ожидание места в очереди)
+     */
+    public void convertDocxToPdfForBatch(byte[] docxContent, OutputStream outputStream) throws IOException {
+        OutputBuffer pdf = convert(batchExecutor, docxContent);
+        try {
+            pdf.writeTo(outputStream);
+        } finally {
+            pdf.release();
+        }
+    }
+
+    private OutputBuffer convert(ExecutorService executor, byte[] docxContent) throws IOException {
+        CountDownLatch started = new CountDownLatch(1);
+        // Готовый буфер передаётся через handoff; если вызывающий уже ушёл по таймауту,
+        // буфер освобождает поток конвертера
+        AtomicReference<Object> handoff = new AtomicReference<>();
+        Future<?> future = executor.submit(() -> {
+            started.countDown();
+            OutputBuffer buffer = outputBufferService.newBuffer();
+            try {
+                doConvert(docxContent, buffer);
+                buffer.close();
+            } catch (IOException | RuntimeException e) {
+                buffer.release();
+                throw e;
+            }
+            if (!handoff.compareAndSet(null, buffer)) {
+                buffer.release();
+            }
+            return null;
+        });
+
+        boolean completed = false;
+        try {
+            // Ожидание в очереди ограничено отдельно: timeout-seconds считается от начала конвертации
+            if (!started.await(queueTimeoutSeconds, TimeUnit.SECONDS)) {
+                future.cancel(false);
+                logger.error("PDF conversion waited in queue for more than {} seconds", queueTimeoutSeconds);
+                throw new IOException("PDF conversion queue wait timed out");
+            }
+            future.get(timeoutSeconds, TimeUnit.SECONDS);
+            completed = true;
+            return (OutputBuffer) handoff.get();
+        } catch (TimeoutException e) {
+            // XDocReport не проверяет прерывание: cancel(true) только освобождает вызывающий поток,
+            // поток пула остаётся занят, пока конвертация не закончится сама.
+            // Поэтому пулы маленькие и с ограниченной очередью, а ожидание очереди ограничено отдельно
+            future.cancel(true);
+            logger.error("PDF conversion timed out after {} seconds", timeoutSeconds);
+            throw new IOException("PDF conversion timed out", e);
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("PDF conversion interrupted", e);
+        } catch (ExecutionException e) {
+            logger.error("Error converting DOCX to PDF: {}", e.getCause().getMessage());
+            throw new IOException("Failed to convert DOCX to PDF", e.getCause());
+        } finally {
+            if (!completed && handoff.getAndSet(ABANDONED) instanceof OutputBuffer buffer) {
+                buffer.release();
+            }
+        }
+    }
+
+    private void doConvert(byte[] docxContent, OutputStream outputStream) throws IOException {
+        try (XWPFDocument document = new XWPFDocument(new ByteArrayInputStream(docxContent))) {
+            converter.convert(document, outputStream, pdfOptions);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        interactiveExecutor.shutdownNow();
+        batchExecutor.shutdownNow();
+    }
+}
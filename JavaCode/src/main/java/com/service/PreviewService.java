@@ -0,0 +1,133 @@
+package com.service;
+
+import com.model.Template;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Предпросмотр DOCX с объединением одинаковых запросов:
+ * одновременные запросы с теми же (шаблон, данные) ждут одного рендера,
+ * а готовый результат недолго хранится в кеше.
+ */
+@Service
+public class PreviewService {
+
+    private final FileProcessingService fileProcessingService;
+    private final GenerationScheduler generationScheduler;
+    private final ExecutionLanes executionLanes;
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final int maxEntryBytes;
+
+    private final ConcurrentHashMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, CachedPreview> cache;
+
+    public PreviewService(FileProcessingService fileProcessingService,
+                          GenerationScheduler generationScheduler,
+                          ExecutionLanes executionLanes,
+                          @Value("${preview.cache.ttl-seconds:30}") long ttlSeconds,
+                          @Value("${preview.cache.max-entries:200}") int maxEntries,
+                          @Value("${preview.cache.max-entry-bytes:2097152}") int maxEntryBytes) {
+        this.fileProcessingService = fileProcessingService;
+        this.generationScheduler = generationScheduler;
+        this.executionLanes = executionLanes;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);
+        this.maxEntries = maxEntries;
+        this.maxEntryBytes = maxEntryBytes;
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedPreview> eldest) {
+                return size() > PreviewService.this.maxEntries;
+            }
+        };
+    }
+
+    public byte[] renderPreview(String userKey, Template template, Map<String, String> data) throws IOException {
+        String key = RenderKeys.contentKey(template, data, "preview-docx");
+
+        byte[] cached = getCached(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        CompletableFuture<byte[]> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+
+        // Этот запрос рендерит; остальные с тем же ключом ждут его результата
+        try (GenerationScheduler.Permit permit = generationScheduler.acquire(userKey)) {
+            byte[] content = getCached(key);
+            if (content == null) {
+                try (ExecutionLanes.InteractiveTimer timer = executionLanes.timeInteractive()) {
+                    content = fileProcessingService.generateDocx(template, data);
+                }
+            }
+            putCached(key, content);
+            future.complete(content);
+            return content;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private byte[] await(CompletableFuture<byte[]> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    private byte[] getCached(String key) {
+        synchronized (cache) {
+            CachedPreview preview = cache.get(key);
+            if (preview == null) {
+                return null;
+            }
+            if (System.nanoTime() - preview.createdAt > ttlNanos) {
+                cache.remove(key);
+                return null;
+            }
+            return preview.content;
+        }
+    }
+
+    private void putCached(String key, byte[] content) {
+        if (content.length > maxEntryBytes) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(key, new CachedPreview(content, System.nanoTime()));
+        }
+    }
+
+    private static class CachedPreview {
+        private final byte[] content;
+        private final long createdAt;
+
+        CachedPreview(byte[] content, long createdAt) {
+            this.content = content;
+            this.createdAt = createdAt;
+        }
+    }
+}
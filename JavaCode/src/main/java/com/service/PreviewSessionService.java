@@ -0,0 +1,287 @@
+package com.service;
+
+import com.model.Template;
+import jakarta.annotation.PreDestroy;
+import org.apache.poi.xwpf.usermodel.XWPFDocument;
+import org.apache.poi.xwpf.usermodel.XWPFParagraph;
+import org.apache.poi.xwpf.usermodel.XWPFRun;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Сессии предпросмотра для интерактивного редактирования.
+ * Шаблон разбирается один раз при открытии сессии; документ и индекс
+ * "поле -> параграфы с этим полем" хранятся в памяти. Клиент присылает только изменённые поля,
+ * и заново подставляются значения лишь в затронутых параграфах.
+ * Шаблоны FreeMarker (циклы, условия), шаблоны с полями image (картинки вставляет MediaService)
+ * и данные со списками (повторяющиеся строки) так разобрать нельзя — тогда сессия хранит только
+ * данные и при каждом изменении рендерит документ целиком.
+ */
+@Service
+public class PreviewSessionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PreviewSessionService.class);
+
+    private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    private final FileProcessingService fileProcessingService;
+    private final GenerationScheduler generationScheduler;
+    private final ExecutionLanes executionLanes;
+    private final FreemarkerTemplateEngine freemarkerTemplateEngine;
+
+    private final long idleTimeoutNanos;
+    private final int maxSessions;
+    private final int maxSessionsPerUser;
+
+    private final ConcurrentHashMap<String, PreviewSession> sessions = new ConcurrentHashMap<>();
+
+    public PreviewSessionService(FileProcessingService fileProcessingService,
+                                 GenerationScheduler generationScheduler,
+                                 ExecutionLanes executionLanes,
+                                 FreemarkerTemplateEngine freemarkerTemplateEngine,
+                                 @Value("${preview.session.idle-timeout-seconds:300}") long idleTimeoutSeconds,
+                                 @Value("${preview.session.max-sessions:100}") int maxSessions,
+                                 @Value("${preview.session.max-per-user:5}") int maxSessionsPerUser) {
+        this.fileProcessingService = fileProcessingService;
+        this.generationScheduler = generationScheduler;
+        this.executionLanes = executionLanes;
+        this.freemarkerTemplateEngine = freemarkerTemplateEngine;
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+    }
+
+    /**
+     * Открывает сессию: разбирает шаблон и подставляет начальные данные
+     */
+    public String openSession(String userKey, Template template, Map<String, String> data) throws IOException {
+        evictSessions(userKey);
+
+        PreviewSession session;
+        try (GenerationScheduler.Permit permit = generationScheduler.acquire(userKey);
+             ExecutionLanes.InteractiveTimer timer = executionLanes.timeInteractive()) {
+            if (freemarkerTemplateEngine.supports(template) || hasImageFields(template)) {
+                session = new PreviewSession(userKey, template, null);
+            } else {
+                session = new PreviewSession(userKey, template, fileProcessingService.openTemplateDocument(template));
+                fileProcessingService.forEachTemplateParagraph(session.document, session::indexParagraph);
+            }
+            session.apply(data != null ? data : Map.of(), fileProcessingService);
+        }
+
+        String sessionId = UUID.randomUUID().toString();
+        sessions.put(sessionId, session);
+        logger.info("Preview session {} opened for template {} with {} slots",
+                sessionId, template.getId(), session.slots.size());
+        return sessionId;
+    }
+
+    /**
+     * Применяет изменённые поля (null удаляет значение) и возвращает текущий DOCX.
+     * Пустой результат — сессии нет, она закрыта или принадлежит другому пользователю.
+     */
+    public Optional<byte[]> updateSession(String userKey, String sessionId,
+                                          Map<String, String> changes) throws IOException {
+        PreviewSession session = sessions.get(sessionId);
+        if (session == null || !session.userKey.equals(userKey)) {
+            return Optional.empty();
+        }
+
+        try (GenerationScheduler.Permit permit = generationScheduler.acquire(userKey)) {
+            synchronized (session) {
+                if (session.closed) {
+                    return Optional.empty();
+                }
+                session.lastAccess = System.nanoTime();
+
+                try (ExecutionLanes.InteractiveTimer timer = executionLanes.timeInteractive()) {
+                    session.apply(changes != null ? changes : Map.of(), fileProcessingService);
+
+                    if (session.document == null || session.hasListData()) {
+                        return Optional.of(fileProcessingService.generateDocx(session.template, session.data));
+                    }
+
+                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                    session.document.write(outputStream);
+                    return Optional.of(outputStream.toByteArray());
+                }
+            }
+        }
+    }
+
+    private static boolean hasImageFields(Template template) {
+        return template.getFields() != null
+                && template.getFields().values().stream().anyMatch(FieldFormatService::isImage);
+    }
+
+    public boolean closeSession(String userKey, String sessionId) {
+        PreviewSession session = sessions.get(sessionId);
+        if (session == null || !session.userKey.equals(userKey)) {
+            return false;
+        }
+        sessions.remove(sessionId, session);
+        session.close();
+        return true;
+    }
+
+    // Закрывает простаивающие сессии, затем самые давние сессии этого пользователя сверх его лимита
+    // и, если сессий всё ещё слишком много, самые давние среди всех — так один пользователь
+    // не вытесняет чужие сессии, открывая свои
+    private void evictSessions(String userKey) {
+        long now = System.nanoTime();
+        sessions.entrySet().removeIf(entry -> {
+            if (now - entry.getValue().lastAccess > idleTimeoutNanos) {
+                entry.getValue().close();
+                return true;
+            }
+            return false;
+        });
+
+        List<Map.Entry<String, PreviewSession>> userSessions = sessions.entrySet().stream()
+                .filter(entry -> entry.getValue().userKey.equals(userKey))
+                .sorted(Comparator.comparingLong(entry -> entry.getValue().lastAccess))
+                .toList();
+        for (int i = 0; i <= userSessions.size() - maxSessionsPerUser; i++) {
+            removeSession(userSessions.get(i));
+        }
+
+        while (sessions.size() >= maxSessions) {
+            sessions.entrySet().stream()
+                    .min(Comparator.comparingLong(entry -> entry.getValue().lastAccess))
+                    .ifPresent(this::removeSession);
+        }
+    }
+
+    private void removeSession(Map.Entry<String, PreviewSession> entry) {
+        if (sessions.remove(entry.getKey(), entry.getValue())) {
+            entry.getValue().close();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        sessions.values().forEach(PreviewSession::close);
+        sessions.clear();
+    }
+
+    private static class PreviewSession {
+        private final String userKey;
+        private final Template template;
+        // null — шаблон рендерится целиком при каждом изменении
+        private final XWPFDocument document;
+        private final List<Slot> slots = new ArrayList<>();
+        private final Map<String, List<Slot>> slotsByField = new HashMap<>();
+        private final Map<String, String> data = new HashMap<>();
+        private volatile long lastAccess = System.nanoTime();
+        private boolean closed;
+
+        PreviewSession(String userKey, Template template, XWPFDocument document) {
+            this.userKey = userKey;
+            this.template = template;
+            this.document = document;
+        }
+
+        void indexParagraph(XWPFParagraph paragraph) {
+            String text = paragraph.getText();
+            if (text == null || !text.contains("${") || paragraph.getRuns().isEmpty()) {
+                return;
+            }
+
+            Slot slot = new Slot(paragraph);
+            Matcher matcher = VARIABLE_PATTERN.matcher(slot.originalText);
+            while (matcher.find()) {
+                slotsByField.computeIfAbsent(matcher.group(1), key -> new ArrayList<>()).add(slot);
+            }
+            slots.add(slot);
+        }
+
+        // Пересчитываются только параграфы, где встречаются изменённые поля
+        void apply(Map<String, String> changes, FileProcessingService fileProcessingService) {
+            Set<Slot> affected = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (Map.Entry<String, String> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    data.remove(change.getKey());
+                } else {
+                    data.put(change.getKey(), change.getValue());
+                }
+                affected.addAll(slotsByField.getOrDefault(change.getKey(), List.of()));
+            }
+
+            if (affected.isEmpty()) {
+                return;
+            }
+            Map<String, String> values = fileProcessingService.formatFields(template, data);
+            for (Slot slot : affected) {
+                slot.render(fileProcessingService.processTemplate(slot.originalText, values));
+            }
+        }
+
+        boolean hasListData() {
+            return data.values().stream().anyMatch(RepeatingContentWriter::isListValue);
+        }
+
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (document == null) {
+                return;
+            }
+            try {
+                document.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close preview session document: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Параграф с переменными: исходный текст runs сохраняется, чтобы подставлять значения
+     * заново при каждом изменении — так же, как это делает replaceVariablesInParagraph
+     */
+    private static class Slot {
+        private final List<XWPFRun> runs;
+        private final String[] originalRunTexts;
+        private final String originalText;
+
+        Slot(XWPFParagraph paragraph) {
+            this.runs = new ArrayList<>(paragraph.getRuns());
+            this.originalRunTexts = new String[runs.size()];
+
+            StringBuilder fullText = new StringBuilder();
+            for (int i = 0; i < runs.size(); i++) {
+                originalRunTexts[i] = runs.get(i).getText(0);
+                if (originalRunTexts[i] != null) {
+                    fullText.append(originalRunTexts[i]);
+                }
+            }
+            this.originalText = fullText.toString();
+        }
+
+        void render(String processedText) {
+            if (processedText.equals(originalText)) {
+                // Значений нет — возвращаем исходные runs с плейсхолдерами
+                for (int i = 0; i < runs.size(); i++) {
+                    runs.get(i).setText(originalRunTexts[i] != null ? originalRunTexts[i] : "", 0);
+                }
+                return;
+            }
+
+            for (XWPFRun run : runs) {
+                run.setText("", 0);
+            }
+            runs.get(0).setText(processedText, 0);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.service;
+
+import com.model.Template;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Ключи кешей рендера: SHA-256 от версии шаблона, уточнения (например, форматов) и данных строки
+ */
+final class RenderKeys {
+
+    private RenderKeys() {
+    }
+
+    static String contentKey(Template template, Map<String, String> data, String qualifier) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((template.getVersionKey() + "\u0000" + qualifier + "\u0000")
+                    .getBytes(StandardCharsets.UTF_8));
+
+            // Порядок полей не должен влиять на ключ
+            for (Map.Entry<String, String> entry : new TreeMap<>(data).entrySet()) {
+                digest.update((entry.getKey() + "\u0000" + entry.getValue() + "\u0000")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Повторяющиеся строки таблиц и секции в DOCX-шаблонах.
+ * Строка таблицы с ${items.поле} повторяется для каждого элемента списка items,
+ * параграфы между ${#items} и ${/items} — целиком. Значение списка в данных — JSON-массив объектов.
+ * Повторённые фрагменты не создаются в модели POI: word/document.xml переписывается потоком,
+ * а элементы списка читаются из JSON по одному, поэтому память не растёт с числом строк.
+ * Вложенные списки не поддерживаются.
+ */
+final class RepeatingContentWriter {
+
+    private static final String DOCUMENT_PART = "word/document.xml";
+    private static final Pattern WORDML_PREFIX = Pattern.compile(
+            "xmlns:(\\w+)=\"http://schemas\\.openxmlformats\\.org/wordprocessingml/2006/main\"");
+    // ${items.поле}, ${#items}, ${/items}
+    private static final Pattern LIST_REFERENCE = Pattern.compile("\\$\\{([#/])?([^}.#/]+)(\\.[^}]*)?\\}");
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final TypeReference<Map<String, Object>> ITEM_TYPE = new TypeReference<>() {};
+
+    private RepeatingContentWriter() {
+    }
+
+    /**
+     * Значение поля — список (JSON-массив)
+     */
+    static boolean isListValue(String value) {
+        return value != null && value.stripLeading().startsWith("[");
+    }
+
+    /**
+     * Добавляет в found списки, на которые ссылается текст параграфа; true, если такие ссылки есть
+     */
+    static boolean collectListReferences(String text, Map<String, String> data, Set<String> found) {
+        if (text == null || !text.contains("${")) {
+            return false;
+        }
+
+        boolean referenced = false;
+        Matcher matcher = LIST_REFERENCE.matcher(text);
+        while (matcher.find()) {
+            boolean listSyntax = matcher.group(1) != null || matcher.group(3) != null;
+            if (listSyntax && isListValue(data.get(matcher.group(2)))) {
+                found.add(matcher.group(2));
+                referenced = true;
+            }
+        }
+        return referenced;
+    }
+
+    /**
+     * Копирует DOCX из source в target, раскрывая повторяющиеся строки и секции в word/document.xml.
+     * Поток target не закрывается.
+     */
+    static void write(InputStream source, OutputStream target, Map<String, String> data,
+                      Set<String> listNames) throws IOException {
+        ZipInputStream zipIn = new ZipInputStream(source);
+        ZipOutputStream zipOut = new ZipOutputStream(target);
+
+        ZipEntry entry;
+        while ((entry = zipIn.getNextEntry()) != null) {
+            zipOut.putNextEntry(new ZipEntry(entry.getName()));
+            if (DOCUMENT_PART.equals(entry.getName())) {
+                // Сам document.xml размером с шаблон; растёт только вывод
+                String xml = new String(zipIn.readAllBytes(), StandardCharsets.UTF_8);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(zipOut, StandardCharsets.UTF_8));
+                expand(xml, writer, data, listNames);
+                writer.flush();
+            } else {
+                zipIn.transferTo(zipOut);
+            }
+            zipOut.closeEntry();
+        }
+        zipOut.finish();
+    }
+
+    private static void expand(String xml, Writer writer, Map<String, String> data,
+                               Set<String> listNames) throws IOException {
+        String prefix = wordmlPrefix(xml);
+        String paragraphTag = prefix + "p";
+        String rowTag = prefix + "tr";
+
+        String names = listNames.stream().map(Pattern::quote).collect(Collectors.joining("|"));
+        Matcher marker = Pattern.compile("\\$\\{(#)?(" + names + ")([.}])").matcher(xml);
+
+        int written = 0;
+        int from = 0;
+        while (from < xml.length() && marker.find(from)) {
+            String name = marker.group(2);
+            boolean section = marker.group(1) != null;
+            from = marker.end();
+
+            int start;
+            int bodyStart;
+            int bodyEnd;
+            int end;
+            if (section && "}".equals(marker.group(3))) {
+                // Секция: от параграфа с ${#items} до параграфа с ${/items}; сами маркеры не выводятся
+                int closeAt = xml.indexOf("${/" + name + "}", marker.end());
+                start = elementStart(xml, paragraphTag, marker.start());
+                if (closeAt < 0 || start < written) {
+                    continue;
+                }
+                bodyStart = elementEnd(xml, paragraphTag, start);
+                bodyEnd = elementStart(xml, paragraphTag, closeAt);
+                end = elementEnd(xml, paragraphTag, bodyEnd);
+            } else if (!section && ".".equals(marker.group(3))) {
+                // Строка таблицы с полями элемента
+                start = elementStart(xml, rowTag, marker.start());
+                if (start < written) {
+                    continue;
+                }
+                bodyStart = start;
+                end = elementEnd(xml, rowTag, start);
+                bodyEnd = end;
+            } else {
+                continue;
+            }
+            // Маркер должен находиться внутри найденного элемента (например, поле списка вне таблицы)
+            if (bodyStart < 0 || bodyEnd < bodyStart || end <= marker.start()) {
+                continue;
+            }
+
+            writer.write(xml, written, start - written);
+            writeItems(xml.substring(bodyStart, bodyEnd), name, data.get(name), writer);
+            written = end;
+            from = end;
+        }
+        writer.write(xml, written, xml.length() - written);
+    }
+
+    private static void writeItems(String body, String name, String listJson, Writer writer) throws IOException {
+        Pattern field = Pattern.compile("\\$\\{" + Pattern.quote(name) + "\\.([^}]+)\\}");
+
+        try (JsonParser parser = objectMapper.createParser(listJson)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("List field '" + name + "' must be a JSON array");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                Map<String, Object> item = objectMapper.readValue(parser, ITEM_TYPE);
+                writer.write(substitute(body, field, item));
+            }
+            if (parser.currentToken() != JsonToken.END_ARRAY) {
+                throw new IOException("List field '" + name + "' must contain only JSON objects");
+            }
+        }
+    }
+
+    // Подставляет поля элемента; отсутствующее поле даёт пустую ячейку
+    private static String substitute(String body, Pattern field, Map<String, Object> item) {
+        Matcher matcher = field.matcher(body);
+        StringBuilder result = new StringBuilder(body.length() + 64);
+        while (matcher.find()) {
+            Object value = item.get(matcher.group(1));
+            String text = value != null ? escapeXml(String.valueOf(value)) : "";
+            matcher.appendReplacement(result, Matcher.quoteReplacement(text));
+        }
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    // Префикс пространства имён WordprocessingML в document.xml, обычно "w:"
+    static String wordmlPrefix(String xml) {
+        Matcher matcher = WORDML_PREFIX.matcher(xml);
+        return matcher.find() ? matcher.group(1) + ":" : "w:";
+    }
+
+    // Начало элемента <tag> или <tag ...>, в котором находится позиция
+    private static int elementStart(String xml, String tag, int position) {
+        return Math.max(xml.lastIndexOf("<" + tag + ">", position), xml.lastIndexOf("<" + tag + " ", position));
+    }
+
+    // Позиция сразу после закрывающего тега элемента, начинающегося в start (с учётом вложенности)
+    private static int elementEnd(String xml, String tag, int start) {
+        if (start < 0) {
+            return -1;
+        }
+        String close = "</" + tag + ">";
+        int depth = 0;
+        int position = start;
+        while (position < xml.length()) {
+            int nextOpen = nextOpenTag(xml, tag, position);
+            int nextClose = xml.indexOf(close, position);
+            if (nextClose < 0) {
+                return -1;
+            }
+            if (nextOpen >= 0 && nextOpen < nextClose) {
+                depth++;
+                position = nextOpen + tag.length() + 1;
+            } else {
+                depth--;
+                position = nextClose + close.length();
+                if (depth == 0) {
+                    return position;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static int nextOpenTag(String xml, String tag, int from) {
+        int plain = xml.indexOf("<" + tag + ">", from);
+        int withAttributes = xml.indexOf("<" + tag + " ", from);
+        if (plain < 0) return withAttributes;
+        if (withAttributes < 0) return plain;
+        return Math.min(plain, withAttributes);
+    }
+
+    private static String escapeXml(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&' -> escaped.append("&amp;");
+                case '<' -> escaped.append("&lt;");
+                case '>' -> escaped.append("&gt;");
+                case '"' -> escaped.append("&quot;");
+                case '\'' -> escaped.append("&apos;");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,46 @@
+package com.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Номера строк в виде диапазонов; строки добавляются по возрастанию,
+ * поэтому подряд идущая строка просто продлевает последний диапазон
+ */
+class RowRanges {
+
+    private final int maxRanges;
+    private final List<int[]> ranges = new ArrayList<>();
+    private boolean truncated;
+
+    RowRanges(int maxRanges) {
+        this.maxRanges = maxRanges;
+    }
+
+    void add(int row) {
+        if (!ranges.isEmpty()) {
+            int[] last = ranges.get(ranges.size() - 1);
+            if (last[1] + 1 == row) {
+                last[1] = row;
+                return;
+            }
+        }
+        if (ranges.size() >= maxRanges) {
+            truncated = true;
+            return;
+        }
+        ranges.add(new int[] {row, row});
+    }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    List<String> toList() {
+        List<String> result = new ArrayList<>(ranges.size());
+        for (int[] range : ranges) {
+            result.add(range[0] == range[1] ? String.valueOf(range[0]) : range[0] + "-" + range[1]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,193 @@
+package com.service;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Клиент S3-совместимого хранилища (AWS S3, MinIO и т. п.) на JDK HttpClient.
+ * Адресация path-style (endpoint/bucket/key), запросы подписываются AWS Signature V4.
+ */
+public class S3ObjectStoreClient implements ObjectStoreClient {
+
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final DateTimeFormatter SCOPE_DATE = DateTimeFormatter.ofPattern("yyyyMMdd");
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+
+    private final URI endpoint;
+    private final String region;
+    private final String accessKey;
+    private final String secretKey;
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+
+    public S3ObjectStoreClient(String endpoint, String region, String accessKey, String secretKey) {
+        this.endpoint = URI.create(endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint);
+        this.region = region;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    @Override
+    public String createMultipartUpload(String bucket, String key) throws IOException {
+        HttpResponse<String> response = send("POST", bucket, key, Map.of("uploads", ""), new byte[0], 0);
+        Matcher matcher = UPLOAD_ID.matcher(response.body());
+        if (!matcher.find()) {
+            throw new IOException("No UploadId in response: " + response.body());
+        }
+        return matcher.group(1);
+    }
+
+    @Override
+    public String uploadPart(String bucket, String key, String uploadId, int partNumber,
+                             byte[] data, int length) throws IOException {
+        HttpResponse<String> response = send("PUT", bucket, key,
+                Map.of("partNumber", String.valueOf(partNumber), "uploadId", uploadId), data, length);
+        return response.headers().firstValue("ETag")
+                .orElseThrow(() -> new IOException("No ETag for part " + partNumber));
+    }
+
+    @Override
+    public void completeMultipartUpload(String bucket, String key, String uploadId,
+                                        List<String> eTags) throws IOException {
+        StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < eTags.size(); i++) {
+            body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+                    .append(eTags.get(i).replace("\"", "&quot;")).append("</ETag></Part>");
+        }
+        body.append("</CompleteMultipartUpload>");
+
+        byte[] content = body.toString().getBytes(StandardCharsets.UTF_8);
+        HttpResponse<String> response = send("POST", bucket, key, Map.of("uploadId", uploadId), content, content.length);
+        // S3 может вернуть 200 с ошибкой в теле
+        if (response.body().contains("<Error>")) {
+            throw new IOException("Failed to complete upload: " + response.body());
+        }
+    }
+
+    @Override
+    public void abortMultipartUpload(String bucket, String key, String uploadId) throws IOException {
+        send("DELETE", bucket, key, Map.of("uploadId", uploadId), new byte[0], 0);
+    }
+
+    private HttpResponse<String> send(String method, String bucket, String key, Map<String, String> query,
+                                      byte[] body, int length) throws IOException {
+        String path = endpoint.getRawPath() + "/" + encodePath(bucket) + "/" + encodePath(key);
+        String canonicalQuery = canonicalQuery(query);
+        ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+        String amzDate = AMZ_DATE.format(now);
+        String payloadHash = sha256Hex(body, length);
+        String host = endpoint.getPort() > 0 ? endpoint.getHost() + ":" + endpoint.getPort() : endpoint.getHost();
+
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n"
+                + "host:" + host + "\n"
+                + "x-amz-content-sha256:" + payloadHash + "\n"
+                + "x-amz-date:" + amzDate + "\n\n"
+                + "host;x-amz-content-sha256;x-amz-date\n"
+                + payloadHash;
+
+        String scope = SCOPE_DATE.format(now) + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n"
+                + sha256Hex(canonicalRequest.getBytes(StandardCharsets.UTF_8), -1);
+        String signature = HexFormat.of().formatHex(hmac(signingKey(SCOPE_DATE.format(now)), stringToSign));
+
+        HttpRequest request = HttpRequest.newBuilder(URI.create(endpoint.getScheme() + "://" + host + path
+                        + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery)))
+                .timeout(Duration.ofMinutes(5))
+                .header("x-amz-content-sha256", payloadHash)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                        + ", SignedHeaders=host;x-amz-content-sha256;x-amz-date, Signature=" + signature)
+                .method(method, HttpRequest.BodyPublishers.ofByteArray(body, 0, length))
+                .build();
+
+        HttpResponse<String> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Object store request interrupted", e);
+        }
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException(method + " " + path + " failed with " + response.statusCode() + ": " + response.body());
+        }
+        return response;
+    }
+
+    private byte[] signingKey(String date) {
+        byte[] key = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key = hmac(key, region);
+        key = hmac(key, "s3");
+        return hmac(key, "aws4_request");
+    }
+
+    private static byte[] hmac(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    private static String sha256Hex(byte[] data, int length) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, 0, length < 0 ? data.length : length);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Параметры по алфавиту, кодирование по RFC 3986, как требует Signature V4
+    private static String canonicalQuery(Map<String, String> query) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, String> entry : new TreeMap<>(query).entrySet()) {
+            if (!result.isEmpty()) {
+                result.append('&');
+            }
+            result.append(encode(entry.getKey())).append('=').append(encode(entry.getValue()));
+        }
+        return result.toString();
+    }
+
+    private static String encodePath(String path) {
+        String[] segments = path.split("/", -1);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < segments.length; i++) {
+            if (i > 0) {
+                result.append('/');
+            }
+            result.append(encode(segments[i]));
+        }
+        return result.toString();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+}
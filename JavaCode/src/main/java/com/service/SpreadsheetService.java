@@ -0,0 +1,155 @@
+package com.service;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Вывод в XLSX через SXSSF: в памяти держится только скользящее окно строк,
+ * остальные сбрасываются во временный файл, поэтому память не зависит от числа строк.
+ */
+@Service
+public class SpreadsheetService {
+
+    public static final String XLSX_CONTENT_TYPE =
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet";
+
+    // Ограничение Excel на длину текста в ячейке
+    private static final int MAX_CELL_LENGTH = 32767;
+
+    private final int windowSize;
+
+    public SpreadsheetService(@Value("${spreadsheet.window-size:100}") int windowSize) {
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * XLSX одного документа: лист с полями и значениями и лист с текстом построчно
+     */
+    public void generateXlsx(Map<String, String> data, String content, OutputStream outputStream) throws IOException {
+        SXSSFWorkbook workbook = newWorkbook();
+        try {
+            CellStyle headerStyle = headerStyle(workbook);
+
+            Sheet fields = workbook.createSheet("Fields");
+            writeRow(fields.createRow(0), headerStyle, "Field", "Value");
+            int rowIndex = 1;
+            for (Map.Entry<String, String> entry : new TreeMap<>(data).entrySet()) {
+                writeRow(fields.createRow(rowIndex++), null, entry.getKey(), entry.getValue());
+            }
+
+            Sheet text = workbook.createSheet("Content");
+            rowIndex = 0;
+            for (String line : (content != null ? content : "").split("\n")) {
+                writeRow(text.createRow(rowIndex++), null, line);
+            }
+
+            workbook.write(outputStream);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+
+    /**
+     * Сводная таблица пакета: одна строка на документ, строки добавляются по мере готовности
+     */
+    public SummaryWriter openSummary(List<String> fieldColumns) {
+        return new SummaryWriter(fieldColumns);
+    }
+
+    public class SummaryWriter implements Closeable {
+        private final SXSSFWorkbook workbook;
+        private final SXSSFSheet sheet;
+        private final List<String> fieldColumns;
+        private int nextRow;
+
+        private SummaryWriter(List<String> fieldColumns) {
+            this.workbook = newWorkbook();
+            this.sheet = workbook.createSheet("Summary");
+            this.fieldColumns = fieldColumns;
+
+            Row header = sheet.createRow(nextRow++);
+            CellStyle headerStyle = headerStyle(workbook);
+            int column = 0;
+            for (String title : List.of("Row", "Document", "Status", "Document ID", "Error")) {
+                writeCell(header, column++, title, headerStyle);
+            }
+            for (String field : fieldColumns) {
+                writeCell(header, column++, field, headerStyle);
+            }
+            writeCell(header, column, "Content", headerStyle);
+            sheet.createFreezePane(0, 1);
+        }
+
+        public void addRow(int rowIndex, String documentName, String status, String documentId,
+                           String error, Map<String, String> data, String content) {
+            Row row = sheet.createRow(nextRow++);
+            row.createCell(0).setCellValue(rowIndex + 1);
+            int column = 1;
+            writeCell(row, column++, documentName, null);
+            writeCell(row, column++, status, null);
+            writeCell(row, column++, documentId, null);
+            writeCell(row, column++, error, null);
+            for (String field : fieldColumns) {
+                writeCell(row, column++, data != null ? data.get(field) : null, null);
+            }
+            writeCell(row, column, content, null);
+        }
+
+        public void write(OutputStream outputStream) throws IOException {
+            workbook.write(outputStream);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Удаляет временные файлы окна
+            workbook.dispose();
+            workbook.close();
+        }
+    }
+
+    private SXSSFWorkbook newWorkbook() {
+        SXSSFWorkbook workbook = new SXSSFWorkbook(windowSize);
+        workbook.setCompressTempFiles(true);
+        return workbook;
+    }
+
+    private static CellStyle headerStyle(SXSSFWorkbook workbook) {
+        Font font = workbook.createFont();
+        font.setBold(true);
+        CellStyle style = workbook.createCellStyle();
+        style.setFont(font);
+        return style;
+    }
+
+    private static void writeRow(Row row, CellStyle style, String... values) {
+        for (int i = 0; i < values.length; i++) {
+            writeCell(row, i, values[i], style);
+        }
+    }
+
+    private static void writeCell(Row row, int column, String value, CellStyle style) {
+        if (value == null) {
+            return;
+        }
+        Cell cell = row.createCell(column);
+        cell.setCellValue(value.length() > MAX_CELL_LENGTH ? value.substring(0, MAX_CELL_LENGTH) : value);
+        if (style != null) {
+            cell.setCellStyle(style);
+        }
+    }
+}
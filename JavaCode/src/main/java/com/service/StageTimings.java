@@ -0,0 +1,35 @@
+package com.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Суммарное время по стадиям конвейера генерации (по всем потокам)
+ */
+class StageTimings {
+
+    private final Map<String, LongAdder> nanosByStage = new ConcurrentHashMap<>();
+    private final String[] stageOrder;
+
+    StageTimings(String... stageOrder) {
+        this.stageOrder = stageOrder;
+        for (String stage : stageOrder) {
+            nanosByStage.put(stage, new LongAdder());
+        }
+    }
+
+    void add(String stage, long nanos) {
+        nanosByStage.computeIfAbsent(stage, key -> new LongAdder()).add(nanos);
+    }
+
+    Map<String, Long> toMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        for (String stage : stageOrder) {
+            millis.put(stage, TimeUnit.NANOSECONDS.toMillis(nanosByStage.get(stage).sum()));
+        }
+        return millis;
+    }
+}
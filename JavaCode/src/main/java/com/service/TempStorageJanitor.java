@@ -0,0 +1,341 @@
+package com.service;
+
+import com.model.BatchJob;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Периодическая очистка каталога temp:
+ * итоги пакетов с истёкшим сроком вместе с их файлами (ZIP, собранный документ, каталог пакета);
+ * каталоги пакетов, которые уже не выполняются
+ * и давно не менялись; забытые файлы буферов вывода. Если temp всё ещё больше квоты,
+ * удаляются результаты пакетов (ZIP, собранные документы, построчные итоги): сначала файлы пакетов,
+ * итоги которых уже истекли, от старых к новым, и только потом файлы пакетов с действующим итогом —
+ * такой итог отмечается как вытесненный (BatchResultStore.markEvicted).
+ * Файлы моложе temp.janitor.min-age-minutes не трогаются: их может дописывать идущий пакет.
+ */
+@Service
+public class TempStorageJanitor {
+
+    private static final Logger logger = LoggerFactory.getLogger(TempStorageJanitor.class);
+
+    // Каталоги пакетов называются по batchId
+    private static final Pattern BATCH_DIRECTORY = Pattern.compile(
+            "[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
+
+    private final BatchResultStore resultStore;
+    private final BatchJobService batchJobService;
+    private final Path root;
+    private final Path resultsDirectory;
+    private final Path spillDirectory;
+    private final Path sharedDirectory;
+    private final long quotaBytes;
+    private final long intervalSeconds;
+    private final long minAgeMillis;
+    private final long orphanAgeMillis;
+
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong evictedFiles = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private final AtomicLong removedOrphans = new AtomicLong();
+    private final AtomicLong expiredResults = new AtomicLong();
+    private volatile Instant lastRunAt;
+    private volatile long lastRunMillis;
+    private ScheduledExecutorService scheduler;
+
+    public TempStorageJanitor(BatchResultStore resultStore,
+                              BatchJobService batchJobService,
+                              @Value("${temp.janitor.root:temp}") String root,
+                              @Value("${batch.results.spill-dir:temp/results}") String resultsDirectory,
+                              @Value("${output.buffer.spill-dir:temp/spill}") String spillDirectory,
+                              @Value("${batch.distributed.work-dir:temp/shared}") String sharedDirectory,
+                              @Value("${temp.janitor.quota-bytes:10737418240}") long quotaBytes,
+                              @Value("${temp.janitor.interval-seconds:300}") long intervalSeconds,
+                              @Value("${temp.janitor.min-age-minutes:10}") long minAgeMinutes,
+                              @Value("${temp.janitor.orphan-age-hours:24}") long orphanAgeHours) {
+        this.resultStore = resultStore;
+        this.batchJobService = batchJobService;
+        this.root = Paths.get(root);
+        this.resultsDirectory = Paths.get(resultsDirectory);
+        this.spillDirectory = Paths.get(spillDirectory);
+        this.sharedDirectory = Paths.get(sharedDirectory);
+        this.quotaBytes = quotaBytes;
+        this.intervalSeconds = intervalSeconds;
+        this.minAgeMillis = TimeUnit.MINUTES.toMillis(minAgeMinutes);
+        this.orphanAgeMillis = TimeUnit.HOURS.toMillis(orphanAgeHours);
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                BoundedExecutors.namedThreadFactory("temp-janitor-", Thread.MIN_PRIORITY));
+        scheduler.scheduleWithFixedDelay(this::runSafely, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void runSafely() {
+        try {
+            cleanUp();
+        } catch (RuntimeException e) {
+            // Исключение из задачи отменило бы её дальнейшие запуски
+            logger.error("Temp storage clean-up failed", e);
+        }
+    }
+
+    public synchronized void cleanUp() {
+        long start = System.currentTimeMillis();
+
+        for (String batchId : resultStore.evictExpired()) {
+            expiredResults.incrementAndGet();
+            removeBatchFiles(batchId);
+        }
+        removeOrphanBatchDirectories(root, start);
+        removeOrphanBatchDirectories(sharedDirectory, start);
+        removeStaleFiles(spillDirectory, start);
+
+        long used = sizeOf(root);
+        if (used > quotaBytes) {
+            used -= evictOldestResults(used - quotaBytes, start);
+            if (used > quotaBytes) {
+                logger.warn("Temp storage {} uses {} bytes over quota {} after eviction", root, used, quotaBytes);
+            }
+        }
+
+        usedBytes.set(used);
+        lastRunAt = Instant.now();
+        lastRunMillis = System.currentTimeMillis() - start;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("usedBytes", usedBytes.get());
+        stats.put("quotaBytes", quotaBytes);
+        stats.put("evictedFiles", evictedFiles.get());
+        stats.put("evictedBytes", evictedBytes.get());
+        stats.put("removedOrphanDirectories", removedOrphans.get());
+        stats.put("expiredResults", expiredResults.get());
+        stats.put("lastRunAt", lastRunAt != null ? lastRunAt.toString() : null);
+        stats.put("lastRunMillis", lastRunMillis);
+        stats.put("resultStore", resultStore.getStats());
+        return stats;
+    }
+
+    // Каталог пакета, который не выполняется (нет в БД или завершён) и давно не менялся
+    private void removeOrphanBatchDirectories(Path directory, long now) {
+        for (Path batchDirectory : list(directory)) {
+            String name = batchDirectory.getFileName().toString();
+            if (!Files.isDirectory(batchDirectory) || !BATCH_DIRECTORY.matcher(name).matches()
+                    || now - lastModified(batchDirectory) < orphanAgeMillis || isActive(name)) {
+                continue;
+            }
+            long size = sizeOf(batchDirectory);
+            deleteRecursively(batchDirectory);
+            removedOrphans.incrementAndGet();
+            logger.info("Removed orphan batch directory {} ({} bytes)", batchDirectory, size);
+        }
+    }
+
+    // Файлы пакета, итог которого истёк: скачать их по ссылке из /batch/progress уже нельзя
+    private void removeBatchFiles(String batchId) {
+        if (isActive(batchId)) {
+            return;
+        }
+        long size = 0;
+        for (Path file : list(root)) {
+            String name = file.getFileName().toString();
+            if (Files.isRegularFile(file)
+                    && (name.equals(batchId + ".zip") || name.startsWith(batchId + "-merged."))) {
+                size += sizeOf(file);
+                deleteQuietly(file);
+            }
+        }
+        for (Path batchDirectory : List.of(root.resolve(batchId), sharedDirectory.resolve(batchId))) {
+            if (Files.isDirectory(batchDirectory)) {
+                size += sizeOf(batchDirectory);
+                deleteRecursively(batchDirectory);
+            }
+        }
+        if (size > 0) {
+            logger.info("Removed files of expired batch {} ({} bytes)", batchId, size);
+        }
+    }
+
+    private boolean isActive(String batchId) {
+        try {
+            return batchJobService.findJob(batchId)
+                    .map(job -> BatchJob.STATUS_RUNNING.equals(job.getStatus())
+                            || BatchJob.STATUS_ASSEMBLING.equals(job.getStatus()))
+                    .orElse(false);
+        } catch (RuntimeException e) {
+            // Без БД нельзя понять, продолжится ли пакет: каталог остаётся
+            return true;
+        }
+    }
+
+    // Файлы буферов, которые остались от упавших запросов
+    private void removeStaleFiles(Path directory, long now) {
+        for (Path file : list(directory)) {
+            if (Files.isRegularFile(file) && now - lastModified(file) >= orphanAgeMillis) {
+                long size = sizeOf(file);
+                if (deleteQuietly(file)) {
+                    evictedFiles.incrementAndGet();
+                    evictedBytes.addAndGet(size);
+                }
+            }
+        }
+    }
+
+    /**
+     * Удаляет результаты пакетов от старых к новым, пока не освободится bytesToFree
+     */
+    private long evictOldestResults(long bytesToFree, long now) {
+        List<Path> candidates = new ArrayList<>();
+        for (Path file : list(root)) {
+            if (Files.isRegularFile(file)) {
+                candidates.add(file);
+            }
+        }
+        for (Path file : list(resultsDirectory)) {
+            if (Files.isRegularFile(file)) {
+                candidates.add(file);
+            }
+        }
+
+        Map<Path, Long> modified = new HashMap<>();
+        Map<Path, String> liveBatch = new HashMap<>();
+        candidates.removeIf(file -> {
+            long time = lastModified(file);
+            modified.put(file, time);
+            String batchId = batchIdOf(file);
+            if (batchId != null && resultStore.isLive(batchId)) {
+                liveBatch.put(file, batchId);
+            }
+            return now - time < minAgeMillis;
+        });
+        // Файлы, которые ещё можно скачать, удаляются последними
+        candidates.sort(Comparator.<Path, Boolean>comparing(liveBatch::containsKey)
+                .thenComparingLong(modified::get));
+
+        long freed = 0;
+        for (Path file : candidates) {
+            if (freed >= bytesToFree) {
+                break;
+            }
+            long size = sizeOf(file);
+            if (deleteQuietly(file)) {
+                freed += size;
+                evictedFiles.incrementAndGet();
+                evictedBytes.addAndGet(size);
+                String batchId = liveBatch.get(file);
+                if (batchId != null) {
+                    resultStore.markEvicted(batchId);
+                    logger.warn("Evicted {} ({} bytes) of unexpired batch {} to keep temp storage under quota",
+                            file, size, batchId);
+                } else {
+                    logger.info("Evicted {} ({} bytes) to keep temp storage under quota", file, size);
+                }
+            }
+        }
+        return freed;
+    }
+
+    // Файлы результата называются по batchId: <batchId>.zip, <batchId>-merged.pdf, <batchId>.json
+    private static String batchIdOf(Path file) {
+        String name = file.getFileName().toString();
+        if (name.length() < 36) {
+            return null;
+        }
+        String batchId = name.substring(0, 36);
+        return BATCH_DIRECTORY.matcher(batchId).matches() ? batchId : null;
+    }
+
+    private static List<Path> list(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            List<Path> paths = new ArrayList<>();
+            stream.forEach(paths::add);
+            return paths;
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        AtomicLong size = new AtomicLong();
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    size.addAndGet(attributes.size());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Файл удалён, пока шёл обход
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // Учитывается то, что успели обойти
+        }
+        return size.get();
+    }
+
+    private static boolean deleteQuietly(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    deleteQuietly(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    deleteQuietly(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            // Остаток удалит следующий запуск
+        }
+    }
+}
@@ -8,7 +8,9 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.regex.Matcher;
@@ -25,6 +27,9 @@ public class TemplateService {
     @Autowired
     private  FileProcessingService fileProcessingService;
 
+    @Autowired
+    private FieldFormatService fieldFormatService;
+
     public List<Template> getUserTemplates(User user) {
         return templateRepository.findByUser(user);
     }
@@ -40,28 +45,79 @@ public class TemplateService {
         return templateRepository.findById(id);
     }
 
-    public Template createTemplate(String name, String content, User user, Map<String, String> fields) {
+    public Template createTemplate(String name, String content, User user, Map<String, String> fields,
+                                   String engine) {
         try {
             Template template = new Template(name, content, user);
             template.setFields(fields);
+            if (engine != null) template.setEngine(engine);
             return templateRepository.save(template);
         } catch (Exception e) {
             throw new RuntimeException("Error creating template: " + e.getMessage(), e);
         }
     }
 
-    public Template updateTemplate(Long id, String name, String content, Map<String, String> fields) {
+    public Template updateTemplate(Long id, String name, String content, Map<String, String> fields,
+                                   String engine) {
         Optional<Template> templateOpt = templateRepository.findById(id);
         if (templateOpt.isPresent()) {
             Template template = templateOpt.get();
             if (name != null) template.setName(name);
             if (content != null) template.setContent(content);
-            if (fields != null) template.setFields(fields);
+            if (fields != null) template.setFields(keepFieldTypes(template.getFields(), fields));
+            if (engine != null) template.setEngine(engine);
             return templateRepository.save(template);
         }
         throw new RuntimeException("Template not found");
     }
 
+    /**
+     * Задаёт типы полей (date, number, currency, boolean, text) и локаль форматирования.
+     * IllegalArgumentException, если поля нет в шаблоне, тип неизвестен или шаблон формата неверен
+     */
+    public Template updateFieldTypes(Template template, Map<String, String> types, String locale) {
+        if (locale != null && Locale.forLanguageTag(locale).getLanguage().isEmpty()) {
+            throw new IllegalArgumentException("Unknown locale: " + locale);
+        }
+        String effectiveLocale = locale != null ? locale : template.getLocale();
+
+        Map<String, String> fields = template.getFields() != null ? new HashMap<>(template.getFields()) : new HashMap<>();
+        if (types != null) {
+            for (Map.Entry<String, String> type : types.entrySet()) {
+                if (!fields.containsKey(type.getKey())) {
+                    throw new IllegalArgumentException("Unknown field: " + type.getKey());
+                }
+                String spec = type.getValue() != null ? type.getValue().trim() : FieldFormatService.TYPE_TEXT;
+                fieldFormatService.validate(spec, effectiveLocale);
+                fields.put(type.getKey(), spec);
+            }
+        }
+
+        template.setFields(fields);
+        if (locale != null) {
+            template.setLocale(locale);
+        } else {
+            // Версия шаблона меняется: кеши рендера не должны отдавать документы со старым форматированием
+            template.setUpdatedAt(LocalDateTime.now());
+        }
+        return templateRepository.save(template);
+    }
+
+    // Поля берутся из нового текста шаблона, а заданные ранее типы сохраняются
+    private Map<String, String> keepFieldTypes(Map<String, String> previous, Map<String, String> fields) {
+        if (previous == null || previous.isEmpty()) {
+            return fields;
+        }
+        Map<String, String> merged = new HashMap<>(fields);
+        for (Map.Entry<String, String> field : merged.entrySet()) {
+            String type = previous.get(field.getKey());
+            if (type != null) {
+                field.setValue(type);
+            }
+        }
+        return merged;
+    }
+
     public void deleteTemplate(Long id) {
         templateRepository.deleteById(id);
     }
@@ -84,7 +140,7 @@ public class TemplateService {
     }
 
     private TemplateDTO convertToDTO(Template template) {
-        return new TemplateDTO(
+        TemplateDTO dto = new TemplateDTO(
                 template.getId(),
                 template.getName(),
                 template.getDescription(),
@@ -95,6 +151,9 @@ public class TemplateService {
                 template.getOriginalFileName(),
                 template.getDocxFileContent()
         );
+        dto.setEngine(template.getEngine());
+        dto.setLocale(template.getLocale());
+        return dto;
     }
 
     public Template createTemplateFromDocx(String name, MultipartFile file, User user, Map<String, String> fields) {
@@ -0,0 +1,252 @@
+package com.service;
+
+import jakarta.annotation.PreDestroy;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Параллельная упаковка ZIP: записи сжимаются на пуле потоков,
+ * а в архив складываются строго в порядке передачи.
+ * Метод сжатия (STORED или DEFLATED) выбирается для каждой записи вызывающим кодом.
+ */
+@Service
+public class ZipArchiveService {
+
+    private static final int COPY_BUFFER_SIZE = 8192;
+
+    private final OutputBufferService outputBufferService;
+    private final ExecutorService executor;
+    private final int compressionLevel;
+    private final int maxPendingEntries;
+
+    public ZipArchiveService(OutputBufferService outputBufferService,
+                             @Value("${zip.archive.threads:4}") int threads,
+                             @Value("${zip.archive.compression-level:6}") int compressionLevel,
+                             @Value("${zip.archive.max-pending-entries:16}") int maxPendingEntries) {
+        this.outputBufferService = outputBufferService;
+        this.compressionLevel = compressionLevel;
+        this.maxPendingEntries = maxPendingEntries;
+
+        this.executor = Executors.newFixedThreadPool(threads,
+                BoundedExecutors.namedThreadFactory("zip-deflate-", Thread.NORM_PRIORITY));
+    }
+
+    /**
+     * Запись архива: имя внутри ZIP, исходный файл и метод сжатия (ZipEntry.STORED или ZipEntry.DEFLATED)
+     */
+    public static class ArchiveEntry {
+        private final String name;
+        private final Path source;
+        private final int method;
+
+        public ArchiveEntry(String name, Path source, int method) {
+            this.name = name;
+            this.source = source;
+            this.method = method;
+        }
+
+        public String getName() { return name; }
+        public Path getSource() { return source; }
+        public int getMethod() { return method; }
+    }
+
+    /**
+     * Метод сжатия по имени файла: DOCX, PDF и XLSX уже сжаты внутри, повторный deflate почти ничего не даёт
+     */
+    public static int compressionMethodFor(String entryName) {
+        String fileName = entryName.toLowerCase();
+        if (fileName.endsWith(".docx") || fileName.endsWith(".pdf") || fileName.endsWith(".xlsx")) {
+            return ZipEntry.STORED;
+        }
+        return ZipEntry.DEFLATED;
+    }
+
+    /**
+     * Открывает архив для постепенного добавления записей по мере их готовности
+     */
+    public ArchiveWriter openArchive(Path zipPath) throws IOException {
+        return new ArchiveWriter(new ZipArchiveOutputStream(zipPath), true);
+    }
+
+    /**
+     * Архив пишется в переданный поток; сам поток после close() не закрывается
+     */
+    public ArchiveWriter openArchive(OutputStream outputStream) {
+        return new ArchiveWriter(new ZipArchiveOutputStream(outputStream), false);
+    }
+
+    public class ArchiveWriter implements Closeable {
+        private final ZipArchiveOutputStream zos;
+        private final boolean ownsStream;
+        // Окно ограничивает число уже сжатых, но ещё не записанных записей
+        private final Deque<Future<CompressedEntry>> pending = new ArrayDeque<>();
+        private final LongAdder compressNanos = new LongAdder();
+
+        private ArchiveWriter(ZipArchiveOutputStream zos, boolean ownsStream) {
+            this.zos = zos;
+            this.ownsStream = ownsStream;
+        }
+
+        public void add(ArchiveEntry entry) throws IOException {
+            if (pending.size() >= maxPendingEntries) {
+                writeNext();
+            }
+            pending.add(executor.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return compress(entry);
+                } finally {
+                    compressNanos.add(System.nanoTime() - start);
+                }
+            }));
+        }
+
+        /**
+         * Суммарное время сжатия записей во всех потоках
+         */
+        public long getCompressNanos() {
+            return compressNanos.sum();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                while (!pending.isEmpty()) {
+                    writeNext();
+                }
+            } finally {
+                discard(pending);
+                if (ownsStream) {
+                    zos.close();
+                } else {
+                    zos.finish();
+                }
+            }
+        }
+
+        private void writeNext() throws IOException {
+            CompressedEntry compressed = await(pending.poll());
+            try (InputStream rawStream = compressed.openRawStream()) {
+                zos.addRawArchiveEntry(compressed.zipEntry, rawStream);
+            } finally {
+                compressed.release();
+            }
+        }
+    }
+
+    private CompressedEntry compress(ArchiveEntry entry) throws IOException {
+        ZipArchiveEntry zipEntry = new ZipArchiveEntry(entry.getName());
+        zipEntry.setMethod(entry.getMethod());
+
+        CRC32 crc = new CRC32();
+        byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+        long size = 0;
+
+        if (entry.getMethod() == ZipEntry.STORED) {
+            // Данные не копируются: при сборке архива файл читается напрямую
+            try (InputStream in = Files.newInputStream(entry.getSource())) {
+                int read;
+                while ((read = in.read(copyBuffer)) != -1) {
+                    crc.update(copyBuffer, 0, read);
+                    size += read;
+                }
+            }
+            zipEntry.setSize(size);
+            zipEntry.setCompressedSize(size);
+            zipEntry.setCrc(crc.getValue());
+            return new CompressedEntry(zipEntry, entry.getSource(), null);
+        }
+
+        OutputBuffer buffer = outputBufferService.newBuffer();
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try (InputStream in = Files.newInputStream(entry.getSource());
+             DeflaterOutputStream out = new DeflaterOutputStream(buffer, deflater, COPY_BUFFER_SIZE)) {
+            int read;
+            while ((read = in.read(copyBuffer)) != -1) {
+                crc.update(copyBuffer, 0, read);
+                out.write(copyBuffer, 0, read);
+                size += read;
+            }
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            throw e;
+        } finally {
+            deflater.end();
+        }
+
+        zipEntry.setSize(size);
+        zipEntry.setCompressedSize(buffer.size());
+        zipEntry.setCrc(crc.getValue());
+        return new CompressedEntry(zipEntry, null, buffer);
+    }
+
+    private CompressedEntry await(Future<CompressedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("ZIP archiving interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress ZIP entry: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Отменяет незаписанные записи и освобождает их буферы
+    private void discard(Deque<Future<CompressedEntry>> pending) {
+        for (Future<CompressedEntry> future : pending) {
+            future.cancel(true);
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get().release();
+                } catch (Exception ignored) {
+                    // Запись уже не попадёт в архив
+                }
+            }
+        }
+        pending.clear();
+    }
+
+    private static class CompressedEntry {
+        private final ZipArchiveEntry zipEntry;
+        private final Path storedSource;
+        private final OutputBuffer deflatedData;
+
+        CompressedEntry(ZipArchiveEntry zipEntry, Path storedSource, OutputBuffer deflatedData) {
+            this.zipEntry = zipEntry;
+            this.storedSource = storedSource;
+            this.deflatedData = deflatedData;
+        }
+
+        InputStream openRawStream() throws IOException {
+            return deflatedData != null ? deflatedData.openInputStream() : Files.newInputStream(storedSource);
+        }
+
+        void release() {
+            if (deflatedData != null) {
+                deflatedData.release();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
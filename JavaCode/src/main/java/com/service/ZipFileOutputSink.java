@@ -0,0 +1,75 @@
+package com.service;
+
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * ZIP-архив в локальном каталоге temp; его отдаёт /api/documents/batch/download/{batchId}.
+ * Архив пишется в <batchId>.zip.partial и переименовывается в <batchId>.zip одной атомарной
+ * операцией, так что скачивание не видит недописанный архив, а упавший запуск не оставляет битый.
+ */
+@Component
+public class ZipFileOutputSink implements BatchOutputSink {
+
+    public static final String NAME = "zip";
+
+    private static final Path ZIP_DIRECTORY = Paths.get("temp");
+
+    private final ZipArchiveService zipArchiveService;
+
+    public ZipFileOutputSink(ZipArchiveService zipArchiveService) {
+        this.zipArchiveService = zipArchiveService;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public BatchOutput open(String batchId) throws IOException {
+        Files.createDirectories(ZIP_DIRECTORY);
+        Path zipPath = ZIP_DIRECTORY.resolve(batchId + ".zip");
+        Path partial = ZIP_DIRECTORY.resolve(batchId + ".zip.partial");
+        ZipArchiveService.ArchiveWriter writer = zipArchiveService.openArchive(partial);
+
+        return new BatchOutput() {
+            @Override
+            public void add(String entryName, Path source) throws IOException {
+                writer.add(new ZipArchiveService.ArchiveEntry(
+                        entryName, source, ZipArchiveService.compressionMethodFor(entryName)));
+            }
+
+            @Override
+            public String complete() throws IOException {
+                writer.close();
+                Files.move(partial, zipPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                return zipPath.getFileName().toString();
+            }
+
+            @Override
+            public void abort() {
+                try {
+                    writer.close();
+                } catch (IOException ignored) {
+                    // Архив всё равно удаляется
+                }
+                try {
+                    Files.deleteIfExists(partial);
+                } catch (IOException ignored) {
+                    // Останется до очистки temp
+                }
+            }
+
+            @Override
+            public long getCompressNanos() {
+                return writer.getCompressNanos();
+            }
+        };
+    }
+}